@@ -1,15 +1,16 @@
 package telecom.basestation;
 
 import java.util.ArrayList;
-import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
 
+import telecom.util.LineTokenizer;
 import telecom.util.Parser;
 import telecom.util.Point2D;
 import telecom.util.Point3D;
 
 public abstract class BaseStation {
 	private long id;
-	private static long lastID = 0;
+	private static AtomicLong lastID = new AtomicLong();
 	private String name;
 	private Point2D pos;
 	private double[] height;
@@ -97,48 +98,91 @@ public abstract class BaseStation {
 	}
 	
 	public String toString() {
-		String result = Parser.codeWhitespaces(getClass().getCanonicalName().toString()) + "\t"
-				+ Parser.codeWhitespaces(getName()) + "\t"
-				+ getPosition().getLatitude() + "\t"
-				+ getPosition().getLongitude() + "\t"
-				+ Parser.codeDoubleArray(getHeight()) + "\t"
-				+ Parser.codeDoubleArray(getFrequencyMHz()) + "\t"
-				+ doToString("\t");
-		return result;
+		StringBuilder result = new StringBuilder();
+		result.append(Parser.codeWhitespaces(getClass().getCanonicalName().toString())).append('\t')
+				.append(Parser.codeWhitespaces(getName())).append('\t')
+				.append(getPosition().getLatitude()).append('\t')
+				.append(getPosition().getLongitude()).append('\t');
+		Parser.codeDoubleArray(getHeight(), result);
+		result.append('\t');
+		Parser.codeDoubleArray(getFrequencyMHz(), result);
+		result.append('\t')
+				.append(doToString("\t"));
+		return result.toString();
 	}
 	public String doToString(String separator) {
 		return "";
 	}
 	public static BaseStation fromString(String str) throws Exception {
-		String separator = "\t";
-		StringTokenizer tokenizer = new StringTokenizer(str, separator);
+		LineTokenizer tokenizer = new LineTokenizer(str, '\t');
 
-		String classNameString = Parser.uncodeWhitespaces(tokenizer.nextToken());
-		BaseStation bs = null;
-		bs = (BaseStation) Class.forName(classNameString).newInstance();
-		String name = Parser.uncodeWhitespaces(tokenizer.nextToken());
-		double latitude = Double.parseDouble(tokenizer.nextToken());
-		double longitude = Double.parseDouble(tokenizer.nextToken());
-		double[] height = Parser.uncodeDoubleArray(tokenizer.nextToken());
-		double[] freqMHz = Parser.uncodeDoubleArray(tokenizer.nextToken());
+		BaseStation bs = BaseStationRegistry.create(tokenizer.nextUncodedToken());
+		String name = tokenizer.nextUncodedToken();
+		double latitude = tokenizer.nextDouble();
+		double longitude = tokenizer.nextDouble();
+		double[] height = tokenizer.nextDoubleArray();
+		double[] freqMHz = tokenizer.nextDoubleArray();
 		
 		bs.setName(name);
 		bs.setPosition(new Point2D(latitude, longitude));
 		bs.setHeight(height);
 		bs.setFrequencyMHz(freqMHz);
 		
-		ArrayList<String> nextTokens = new ArrayList<String>();
-		while (tokenizer.hasMoreTokens())
-			nextTokens.add(tokenizer.nextToken());
-		bs.doFromString(nextTokens);
+		bs.doFromString(tokenizer);
 
 		return bs;
 	}
+	/**
+	 * Reads the fields written by doToString from the tokenizer. By default, the remaining tokens are
+	 * given to doFromString(ArrayList<String>); subclasses can parse them in place instead.
+	 */
+	public void doFromString(LineTokenizer tokenizer) {
+		doFromString(tokenizer.remainingTokens());
+	}
 	public void doFromString(ArrayList<String> strings) {
 	}
+	/**
+	 * Puts the fields written by doToString in a scenario snapshot. By default, the text of
+	 * doToString is put as a single string; subclasses can put their fields as double arrays, which
+	 * are stored without text.
+	 */
+	public void doToSnapshot(SnapshotFields fields) {
+		fields.putString(doToString("\t"));
+	}
+	/**
+	 * Reads the fields put by doToSnapshot, in the same order
+	 */
+	public void doFromSnapshot(SnapshotFields fields) {
+		doFromString(new LineTokenizer(fields.nextString(), '\t'));
+	}
+	/**
+	 * Returns a new base station (with a new id) of the same class and with the same fields,
+	 * copied through the snapshot hooks, so later changes in this one are not seen by the copy
+	 */
+	public BaseStation copy() {
+		BaseStation bs;
+		try {
+			bs = BaseStationRegistry.create(getClass().getCanonicalName());
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot copy " + getClass().getName(), e);
+		}
+		bs.setName(getName());
+		bs.setPosition(new Point2D(getLatitude(), getLongitude()));
+		bs.setHeight(getHeight().clone());
+		bs.setFrequencyMHz(getFrequencyMHz().clone());
+
+		SnapshotFields fields = new SnapshotFields();
+		doToSnapshot(fields);
+		SnapshotFields copy = new SnapshotFields();
+		for (int i = 0; i < fields.getNDoubleArrays(); i++)
+			copy.putDoubleArray(fields.getDoubleArray(i).clone());
+		for (int i = 0; i < fields.getNStrings(); i++)
+			copy.putString(fields.getString(i));
+		bs.doFromSnapshot(copy);
+		return bs;
+	}
 	private void setId() {
-		lastID++;
-		id = lastID;
+		id = lastID.incrementAndGet();
 	}
 	public String getId() {
 		return "" + id;
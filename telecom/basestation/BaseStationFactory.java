@@ -0,0 +1,8 @@
+package telecom.basestation;
+
+/**
+ * Creates empty base stations of a type, to be filled by BaseStation.fromString
+ */
+public interface BaseStationFactory {
+	BaseStation create();
+}
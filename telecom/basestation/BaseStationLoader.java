@@ -0,0 +1,92 @@
+package telecom.basestation;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import telecom.util.Pair;
+
+/**
+ * Loads base stations from a scenario file, with one base station per line in the format of
+ * BaseStation.toString. Blank lines are skipped. The lines are parsed in parallel, and a line that
+ * cannot be parsed is reported as an error ("line N: cause") without stopping the others.
+ */
+public class BaseStationLoader {
+	private static final int LINES_PER_TASK = 512;
+
+	/**
+	 * Returns the base stations of the file, in the order of the file, and the errors
+	 */
+	public static Pair<List<BaseStation>, List<String>> load(String fileName) throws IOException {
+		return load(fileName, ForkJoinPool.commonPool());
+	}
+	public static Pair<List<BaseStation>, List<String>> load(String fileName, ForkJoinPool pool) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(fileName), 1 << 20);
+		try {
+			String line;
+			while ((line = reader.readLine()) != null)
+				lines.add(line);
+		} finally {
+			reader.close();
+		}
+		return parse(lines, pool);
+	}
+	public static Pair<List<BaseStation>, List<String>> parse(List<String> lines, ForkJoinPool pool) {
+		BaseStation[] stations = new BaseStation[lines.size()];
+		String[] errors = new String[lines.size()];
+		pool.invoke(new ParseLinesTask(lines, stations, errors, 0, lines.size()));
+
+		List<BaseStation> stationList = new ArrayList<BaseStation>(lines.size());
+		List<String> errorList = new ArrayList<String>();
+		for (int i = 0; i < stations.length; i++) {
+			if (stations[i] != null)
+				stationList.add(stations[i]);
+			if (errors[i] != null)
+				errorList.add(errors[i]);
+		}
+		return new Pair<List<BaseStation>, List<String>>(stationList, errorList);
+	}
+
+	private static class ParseLinesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private List<String> lines;
+		private BaseStation[] stations;
+		private String[] errors;
+		private int firstLine;
+		private int lastLine;
+
+		ParseLinesTask(List<String> lines, BaseStation[] stations, String[] errors, int firstLine, int lastLine) {
+			this.lines = lines;
+			this.stations = stations;
+			this.errors = errors;
+			this.firstLine = firstLine;
+			this.lastLine = lastLine;
+		}
+
+		@Override
+		protected void compute() {
+			if (lastLine - firstLine > LINES_PER_TASK) {
+				int middle = (firstLine + lastLine) >>> 1;
+				invokeAll(new ParseLinesTask(lines, stations, errors, firstLine, middle),
+						new ParseLinesTask(lines, stations, errors, middle, lastLine));
+				return;
+			}
+			for (int i = firstLine; i < lastLine; i++) {
+				String line = lines.get(i);
+				if (line.trim().isEmpty())
+					continue;
+				try {
+					stations[i] = BaseStation.fromString(line);
+				} catch (Exception e) {
+					errors[i] = "line " + (i + 1) + ": " + e;
+				}
+			}
+		}
+	}
+}
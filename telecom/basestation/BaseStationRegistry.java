@@ -0,0 +1,53 @@
+package telecom.basestation;
+
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the class names written by BaseStation.toString to the factories of the base stations.
+ * DirectivityCat2BS is registered. Other classes are looked up by reflection the first time they
+ * are used, and their constructor is cached, so reflection is not used for every station.
+ */
+public class BaseStationRegistry {
+	private static ConcurrentHashMap<String, BaseStationFactory> factories = new ConcurrentHashMap<String, BaseStationFactory>();
+
+	static {
+		register(DirectivityCat2BS.class.getCanonicalName(), new BaseStationFactory() {
+			public BaseStation create() {
+				return new DirectivityCat2BS();
+			}
+		});
+	}
+
+	public static void register(String className, BaseStationFactory factory) {
+		factories.put(className, factory);
+	}
+	/**
+	 * Returns a new base station of the class className
+	 */
+	public static BaseStation create(String className) throws Exception {
+		BaseStationFactory factory = factories.get(className);
+		if (factory == null) {
+			factory = new ConstructorFactory(Class.forName(className).asSubclass(BaseStation.class).getConstructor());
+			BaseStationFactory previous = factories.putIfAbsent(className, factory);
+			if (previous != null)
+				factory = previous;
+		}
+		return factory.create();
+	}
+
+	private static class ConstructorFactory implements BaseStationFactory {
+		private Constructor<? extends BaseStation> constructor;
+
+		ConstructorFactory(Constructor<? extends BaseStation> constructor) {
+			this.constructor = constructor;
+		}
+		public BaseStation create() {
+			try {
+				return constructor.newInstance();
+			} catch (Exception e) {
+				throw new IllegalStateException("Cannot create " + constructor.getDeclaringClass().getName(), e);
+			}
+		}
+	}
+}
@@ -9,6 +9,7 @@ import static telecom.util.Functions.watt2dB;
 import java.util.ArrayList;
 
 import telecom.util.Functions;
+import telecom.util.LineTokenizer;
 import telecom.util.Parser;
 import telecom.util.Point2D;
 import telecom.util.Point3D;
@@ -22,6 +23,9 @@ import telecom.util.Point3D;
  * 
  * Note: Antenna is considered omnidirectional in the horizontal plane.
  * 
+ * Note: by default the vertical pattern is interpolated in tables, within 0.004 dB of the
+ * analytic pattern (see PatternTable; PatternTable.setResolutionDegree(0) disables them).
+ * 
  * [1] Recommendation ITU-T K.52 - Guidance on complying with limits for human
  * exposure to electromagnetic fields
  * [2] Estimating the location of maximum exposure to electromagnetic fields 
@@ -32,11 +36,15 @@ import telecom.util.Point3D;
  *
  */
 public class DirectivityCat2BS extends BaseStation {
+	// Around the tilt (+- 0.1 degree) the pattern is 0 dB
+	static final double BORESIGHT_RAD = 0.00175;
+
 	private double[] tilt_degree;
 	private double[] theta_bw_vertical_degree;
 	private double[] theta_bw_vertical_rad;
 	private double[] eirp_max_dbm;
 	private double[] envelope_db;
+	private PatternTable[] patternTables;
 
 	public DirectivityCat2BS() {
 		
@@ -67,32 +75,37 @@ public class DirectivityCat2BS extends BaseStation {
 					getHeight()[i]);
 			double theta_vertical_rad = 
 					Functions.getThetaRad(radioSource, probe);
-			double F = getFdB(theta_vertical_rad, 
-					deg2rad(tilt_degree[i]), 
-					theta_bw_vertical_rad[i], 
-					envelope_db[i]);
+			double F;
+			if (patternTables != null)
+				F = patternTables[i].getFdB(theta_vertical_rad, deg2rad(tilt_degree[i]));
+			else
+				F = getFdB(theta_vertical_rad, 
+						deg2rad(tilt_degree[i]), 
+						theta_bw_vertical_rad[i], 
+						envelope_db[i]);
 			eirp[i] = eirp_max_dbm[i] + F;
 		}
 		return eirp;
 	}
 	
-	private double getFdB(double theta_rad, double tilt_rad, 
+	/**
+	 * Returns the vertical pattern (dB) of a radio source in the elevation angle theta_rad
+	 */
+	public static double getFdB(double theta_rad, double tilt_rad, 
 			double theta_bw_vertical_rad, double envelope_db) {
-		double firstNull = 2.257*theta_bw_vertical_rad/2;
+		double firstNull = getFirstNullRad(theta_bw_vertical_rad);
 		double firstNullMin = tilt_rad - firstNull;
 		double firstNullMax = tilt_rad + firstNull;
 		boolean mainBeam = between(firstNullMin, 
 				theta_rad, firstNullMax);
 
-		if (between(tilt_rad - 0.00175, 
-				theta_rad, tilt_rad + 0.00175)) {
+		if (between(tilt_rad - BORESIGHT_RAD, 
+				theta_rad, tilt_rad + BORESIGHT_RAD)) {
 			return 0;
 		}
 
 		if (mainBeam) {
-			double c = 1.392/sin(theta_bw_vertical_rad/2);
-			double aux = c*sin(theta_rad-tilt_rad);
-			double FLinear = pow(sin(aux)/aux, 2);
+			double FLinear = getMainLobeLinear(theta_rad-tilt_rad, theta_bw_vertical_rad);
 
 			double FdB = watt2dB(FLinear);
 			if (FdB < envelope_db)
@@ -102,14 +115,62 @@ public class DirectivityCat2BS extends BaseStation {
 			return envelope_db;
 		}
 	}
+	/**
+	 * Returns the vertical pattern (linear) of a radio source in the elevation angle theta_rad, the
+	 * same as dB2Watt(getFdB(...)) without the logarithm, for envelope_linear = dB2Watt(envelope_db)
+	 */
+	public static double getGainLinear(double theta_rad, double tilt_rad, 
+			double theta_bw_vertical_rad, double envelope_linear) {
+		if (between(tilt_rad - BORESIGHT_RAD, 
+				theta_rad, tilt_rad + BORESIGHT_RAD)) {
+			return 1;
+		}
+		double firstNull = getFirstNullRad(theta_bw_vertical_rad);
+		if (between(tilt_rad - firstNull, theta_rad, tilt_rad + firstNull)) {
+			double FLinear = getMainLobeLinear(theta_rad-tilt_rad, theta_bw_vertical_rad);
+			return FLinear < envelope_linear ? envelope_linear : FLinear;
+		}
+		return envelope_linear;
+	}
+	/**
+	 * Returns the angle between the tilt and the first null of the main lobe
+	 */
+	static double getFirstNullRad(double theta_bw_vertical_rad) {
+		return 2.257*theta_bw_vertical_rad/2;
+	}
+	/**
+	 * Returns the (linear) main lobe pattern at delta_rad from the tilt, without the side lobe envelope
+	 */
+	static double getMainLobeLinear(double delta_rad, double theta_bw_vertical_rad) {
+		double c = 1.392/sin(theta_bw_vertical_rad/2);
+		double aux = c*sin(delta_rad);
+		return pow(sin(aux)/aux, 2);
+	}
 	
 	@Override
 	public String doToString(String separator) {
-		String result = Parser.codeDoubleArray(getTiltDegree()) + separator +
-				Parser.codeDoubleArray(getThetaBwVerticalDegree()) + separator + 
-				Parser.codeDoubleArray(getEirpMaxdBm()) + separator +
-				Parser.codeDoubleArray(getMaxSideLobeEnvelopedB()) + separator;
-		return result;
+		StringBuilder result = new StringBuilder();
+		Parser.codeDoubleArray(getTiltDegree(), result);
+		result.append(separator);
+		Parser.codeDoubleArray(getThetaBwVerticalDegree(), result);
+		result.append(separator);
+		Parser.codeDoubleArray(getEirpMaxdBm(), result);
+		result.append(separator);
+		Parser.codeDoubleArray(getMaxSideLobeEnvelopedB(), result);
+		result.append(separator);
+		return result.toString();
+	}
+	@Override
+	public void doFromString(LineTokenizer tokenizer) {
+		// Subclasses may read their own fields in doFromString(ArrayList<String>)
+		if (getClass() != DirectivityCat2BS.class) {
+			super.doFromString(tokenizer);
+			return;
+		}
+		setTiltDegree(tokenizer.nextDoubleArray());
+		setThetaBwVerticalDegree(tokenizer.nextDoubleArray());
+		setEirpMaxdBm(tokenizer.nextDoubleArray());
+		setMaxSideLobeEnvelopedB(tokenizer.nextDoubleArray());
 	}
 	@Override
 	public void doFromString(ArrayList<String> strings) {
@@ -119,8 +180,28 @@ public class DirectivityCat2BS extends BaseStation {
 		setMaxSideLobeEnvelopedB(Parser.uncodeDoubleArray(strings.remove(0)));
 	}
 	
+	/**
+	 * Puts the tilt, beamwidth, EIRP and envelope arrays. Subclasses with their own fields must
+	 * override doToSnapshot and doFromSnapshot, calling the super methods first.
+	 */
+	@Override
+	public void doToSnapshot(SnapshotFields fields) {
+		fields.putDoubleArray(getTiltDegree());
+		fields.putDoubleArray(getThetaBwVerticalDegree());
+		fields.putDoubleArray(getEirpMaxdBm());
+		fields.putDoubleArray(getMaxSideLobeEnvelopedB());
+	}
+	@Override
+	public void doFromSnapshot(SnapshotFields fields) {
+		setTiltDegree(fields.nextDoubleArray());
+		setThetaBwVerticalDegree(fields.nextDoubleArray());
+		setEirpMaxdBm(fields.nextDoubleArray());
+		setMaxSideLobeEnvelopedB(fields.nextDoubleArray());
+	}
+	
 	public void setMaxSideLobeEnvelopedB(double[] envelope) {
 		envelope_db = envelope;
+		updatePatternTables();
 	}
 	public double[] getMaxSideLobeEnvelopedB() {
 		if (envelope_db == null)
@@ -140,6 +221,7 @@ public class DirectivityCat2BS extends BaseStation {
 	public void setThetaBwVerticalDegree(double[] thetaDeg) {
 		theta_bw_vertical_degree = thetaDeg;
 		theta_bw_vertical_rad = deg2rad(theta_bw_vertical_degree);
+		updatePatternTables();
 	}
 	public double[] getThetaBwVerticalDegree() {
 		if (theta_bw_vertical_degree == null)
@@ -155,5 +237,42 @@ public class DirectivityCat2BS extends BaseStation {
 	}
 	public void setTiltDegree(double[] tiltDegree) {
 		tilt_degree = tiltDegree;
+		updatePatternTables();
+	}
+	/**
+	 * Looks up the pattern tables of the radio sources (see PatternTable). The tables are used only
+	 * when tables are enabled and the tilt, beamwidth and envelope of every radio source are set.
+	 */
+	private void updatePatternTables() {
+		patternTables = null;
+		if (PatternTable.getResolutionDegree() <= 0 || tilt_degree == null 
+				|| theta_bw_vertical_rad == null || envelope_db == null)
+			return;
+		int NRadioSources = theta_bw_vertical_rad.length;
+		if (tilt_degree.length != NRadioSources || envelope_db.length != NRadioSources)
+			return;
+
+		PatternTable[] tables = new PatternTable[NRadioSources];
+		for (int i = 0; i < NRadioSources; i++)
+			tables[i] = PatternTable.getTable(theta_bw_vertical_rad[i], envelope_db[i]);
+		patternTables = tables;
+	}
+	/**
+	 * Returns the pattern tables of the radio sources, or null when the analytic pattern is used
+	 */
+	public PatternTable[] getPatternTables() {
+		return patternTables;
+	}
+	/**
+	 * Returns, for each radio source, the maximum error (dB) of its pattern table against the
+	 * analytic pattern (getFdB), or null when the analytic pattern is used
+	 */
+	public double[] getPatternTableMaxErrordB() {
+		if (patternTables == null)
+			return null;
+		double[] error = new double[patternTables.length];
+		for (int i = 0; i < patternTables.length; i++)
+			error[i] = patternTables[i].getMaxErrordB();
+		return error;
 	}
 }
@@ -0,0 +1,50 @@
+package telecom.basestation;
+
+import java.util.ArrayList;
+
+/**
+ * The fields of a base station subclass in a scenario snapshot (see telecom.nir.ScenarioSnapshot):
+ * a sequence of double arrays and a sequence of strings. BaseStation.doToSnapshot puts the fields
+ * and BaseStation.doFromSnapshot reads them back in the same order.
+ */
+public class SnapshotFields {
+	private ArrayList<double[]> arrays = new ArrayList<double[]>();
+	private ArrayList<String> strings = new ArrayList<String>();
+	private int nextArray;
+	private int nextString;
+
+	public void putDoubleArray(double[] array) {
+		arrays.add(array);
+	}
+	public void putString(String string) {
+		strings.add(string);
+	}
+	public double[] nextDoubleArray() {
+		if (nextArray >= arrays.size())
+			throw new IllegalArgumentException("No more double arrays in the snapshot fields");
+		return arrays.get(nextArray++);
+	}
+	public String nextString() {
+		if (nextString >= strings.size())
+			throw new IllegalArgumentException("No more strings in the snapshot fields");
+		return strings.get(nextString++);
+	}
+	public int getNDoubleArrays() {
+		return arrays.size();
+	}
+	public double[] getDoubleArray(int i) {
+		return arrays.get(i);
+	}
+	public int getNStrings() {
+		return strings.size();
+	}
+	public String getString(int i) {
+		return strings.get(i);
+	}
+	public void clear() {
+		arrays.clear();
+		strings.clear();
+		nextArray = 0;
+		nextString = 0;
+	}
+}
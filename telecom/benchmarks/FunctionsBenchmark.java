@@ -0,0 +1,63 @@
+package telecom.benchmarks;
+
+import static telecom.util.Functions.get2DDistanceKM;
+import static telecom.util.Functions.get3DDistanceKM;
+import static telecom.util.Functions.getPhiDegree;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import telecom.propagation.FreeSpace;
+import telecom.util.Point3D;
+
+/**
+ * The geometry and the propagation between pairs of consecutive probes of Scenarios.createProbes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FunctionsBenchmark {
+	private Point3D[] probes;
+	private FreeSpace fs;
+	private int p;
+
+	@Setup
+	public void setUp() {
+		probes = Scenarios.createProbes();
+		fs = new FreeSpace();
+	}
+
+	@Benchmark
+	public double get2DDistance() {
+		p = (p + 1) & (Scenarios.N_PROBES - 1);
+		return get2DDistanceKM(probes[p], probes[(p + 1) & (Scenarios.N_PROBES - 1)]);
+	}
+	@Benchmark
+	public double get3DDistance() {
+		p = (p + 1) & (Scenarios.N_PROBES - 1);
+		return get3DDistanceKM(probes[p], probes[(p + 1) & (Scenarios.N_PROBES - 1)]);
+	}
+	@Benchmark
+	public double getPhi() {
+		p = (p + 1) & (Scenarios.N_PROBES - 1);
+		return getPhiDegree(probes[p], probes[(p + 1) & (Scenarios.N_PROBES - 1)]);
+	}
+	@Benchmark
+	public double getFreeSpacePathLoss() {
+		p = (p + 1) & (Scenarios.N_PROBES - 1);
+		return fs.getPathLoss(probes[p], probes[(p + 1) & (Scenarios.N_PROBES - 1)], 1800);
+	}
+}
@@ -0,0 +1,64 @@
+package telecom.benchmarks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import telecom.nir.NIR;
+import telecom.util.Pair;
+import telecom.util.Point2D;
+import telecom.util.SimpleMatrix;
+
+/**
+ * The evaluation of a grid x grid plane over the 10 km square of Scenarios, at 1.5 m, by a pool of
+ * the given threads and with the given kernel (see Scenarios.setKernel)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class PlaneBenchmark {
+	@Param({"10", "100"})
+	public int stations;
+	@Param({"1", "3"})
+	public int radios;
+	@Param({"100"})
+	public int grid;
+	@Param({"1", "4"})
+	public int threads;
+	@Param({"scalar", "linear", "vector", "float32"})
+	public String kernel;
+
+	private NIR nir;
+	private ForkJoinPool pool;
+
+	@Setup
+	public void setUp() {
+		Scenarios.setKernel(kernel);
+		nir = Scenarios.createNIR(stations, radios);
+		pool = new ForkJoinPool(threads);
+	}
+	@TearDown
+	public void tearDown() {
+		pool.shutdown();
+	}
+
+	@Benchmark
+	public Pair<SimpleMatrix, SimpleMatrix> evalEandTERAtPlane() {
+		return nir.evalEandTERAtPlane(new Point2D(-15.85, -47.95), new Point2D(-15.76, -47.86), 1.5, grid, pool);
+	}
+}
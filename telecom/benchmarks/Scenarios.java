@@ -0,0 +1,81 @@
+package telecom.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import telecom.basestation.BaseStation;
+import telecom.basestation.DirectivityCat2BS;
+import telecom.nir.CompiledScene;
+import telecom.nir.NIR;
+import telecom.propagation.FreeSpace;
+import telecom.util.Point2D;
+import telecom.util.Point3D;
+
+/**
+ * The scenarios of the benchmarks, generated from a fixed seed so that runs of different versions
+ * are comparable: stations and probes spread over a 10 km square
+ */
+class Scenarios {
+	static final long SEED = 1;
+	static final int N_PROBES = 1024;
+
+	/**
+	 * Returns nStations stations with nRadios radio sources each
+	 */
+	static List<BaseStation> createStations(int nStations, int nRadios) {
+		Random random = new Random(SEED);
+		List<BaseStation> result = new ArrayList<BaseStation>();
+		for (int s = 0; s < nStations; s++) {
+			double[] height = new double[nRadios];
+			double[] frequency = new double[nRadios];
+			double[] tilt = new double[nRadios];
+			double[] bw = new double[nRadios];
+			double[] eirp = new double[nRadios];
+			double[] envelope = new double[nRadios];
+			for (int r = 0; r < nRadios; r++) {
+				height[r] = 15 + 35*random.nextDouble();
+				frequency[r] = new double[]{700, 850, 1800, 2100, 2600, 3500}[random.nextInt(6)];
+				tilt[r] = 10*random.nextDouble();
+				bw[r] = 5 + 10*random.nextDouble();
+				eirp[r] = 50 + 15*random.nextDouble();
+				envelope[r] = -25 + 10*random.nextDouble();
+			}
+			result.add(new DirectivityCat2BS("BS " + s, new Point2D(-15.85 + 0.09*random.nextDouble(), -47.95 + 0.09*random.nextDouble()),
+					height, frequency, tilt, bw, eirp, envelope));
+		}
+		return result;
+	}
+	/**
+	 * Returns N_PROBES probes at 1.5 m, indexed by (p + 1) & (N_PROBES - 1) by the benchmarks
+	 */
+	static Point3D[] createProbes() {
+		Random random = new Random(SEED);
+		Point3D[] probes = new Point3D[N_PROBES];
+		for (int p = 0; p < N_PROBES; p++)
+			probes[p] = new Point3D(-15.85 + 0.09*random.nextDouble(), -47.95 + 0.09*random.nextDouble(), 1.5);
+		return probes;
+	}
+	/**
+	 * Returns a NIR of the stations of createStations with free space propagation
+	 */
+	static NIR createNIR(int nStations, int nRadios) {
+		NIR nir = new NIR();
+		FreeSpace fs = new FreeSpace();
+		for (BaseStation bs : createStations(nStations, nRadios))
+			nir.addBaseStation(bs, fs);
+		return nir;
+	}
+	/**
+	 * Selects the kernel of the scenes compiled from now on: scalar (in dB), linear, vector or float32
+	 */
+	static void setKernel(String kernel) {
+		if (!kernel.equals("scalar") && !kernel.equals("linear") && !kernel.equals("vector") && !kernel.equals("float32"))
+			throw new IllegalArgumentException("Unknown kernel " + kernel);
+		CompiledScene.setLinearKernel(kernel.equals("linear"));
+		CompiledScene.setVectorKernel(kernel.equals("vector"));
+		CompiledScene.setFloat32Kernel(kernel.equals("float32"));
+		if ((kernel.equals("vector") || kernel.equals("float32")) && !CompiledScene.isVectorKernelAvailable())
+			throw new IllegalStateException("The " + kernel + " kernel needs nir-vector and --add-modules jdk.incubator.vector");
+	}
+}
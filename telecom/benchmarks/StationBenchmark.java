@@ -0,0 +1,78 @@
+package telecom.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import telecom.basestation.BaseStation;
+import telecom.nir.NIR;
+import telecom.util.Point3D;
+
+/**
+ * The operations on the stations of Scenarios.createStations: the EIRP towards a probe, the
+ * evaluation of a probe over all the stations and the conversion from and to the text format. The
+ * scene of the NIR is compiled with the given kernel (see Scenarios.setKernel).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class StationBenchmark {
+	@Param({"10", "100"})
+	public int stations;
+	@Param({"1", "3"})
+	public int radios;
+	@Param({"scalar"})
+	public String kernel;
+
+	private List<BaseStation> list;
+	private String[] lines;
+	private NIR nir;
+	private Point3D[] probes;
+	private int p;
+
+	@Setup
+	public void setUp() {
+		Scenarios.setKernel(kernel);
+		list = Scenarios.createStations(stations, radios);
+		lines = new String[list.size()];
+		for (int s = 0; s < lines.length; s++)
+			lines[s] = list.get(s).toString();
+		nir = Scenarios.createNIR(stations, radios);
+		probes = Scenarios.createProbes();
+	}
+
+	@Benchmark
+	public double getEIRPdBm() {
+		p = (p + 1) & (Scenarios.N_PROBES - 1);
+		return list.get(p % list.size()).getEIRPdBm(probes[p])[0];
+	}
+	@Benchmark
+	public double evalEandTERAtProbe() {
+		p = (p + 1) & (Scenarios.N_PROBES - 1);
+		return nir.evalEandTERAtProbe(probes[p]).getSecond();
+	}
+	@Benchmark
+	public BaseStation fromString() throws Exception {
+		p = (p + 1) % lines.length;
+		return BaseStation.fromString(lines[p]);
+	}
+	@Benchmark
+	public String baseStationToString() {
+		p = (p + 1) % list.size();
+		return list.get(p).toString();
+	}
+}
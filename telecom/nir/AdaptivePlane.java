@@ -0,0 +1,383 @@
+package telecom.nir;
+
+import static java.lang.Math.log;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import telecom.util.Pair;
+import telecom.util.Point2D;
+import telecom.util.SimpleMatrix;
+
+/**
+ * A plane of E and TER sampled by a quadtree (see NIR.evalAdaptivePlane). The plane starts as the
+ * coarse grid of PlaneGrid(coord1, coord2, nStepsLongitude), and each cell is evaluated at its four
+ * corners. A cell is split in four (five new probes: its center and the middle of its edges) when
+ * its corners cross one of the TER thresholds, when the ratio between its largest and smallest
+ * TER is above maxRatio or when it holds a radio source, until the cells reach maxDepth splits or
+ * the probe budget is spent. The near field hotspot under an antenna can fall between the corners
+ * of a cell, so the cells of the radio sources are always split.
+ *
+ * Cells are split from the largest to the smallest, and among cells of the same size the ones that
+ * cross a threshold first and then the ones with the largest ratio, so a budget that ends the
+ * refinement early leaves the most important cells split (cells with radio sources count as
+ * crossing a threshold). The corners of the coarse grid are
+ * always evaluated, even if they exceed the budget.
+ *
+ * The corners of all cells lie on a lattice with the coarse steps divided by 2^maxDepth. Inside a
+ * leaf cell, E and TER are interpolated bilinearly from its corners (see evalEandTER and resample).
+ */
+public class AdaptivePlane {
+	private CompiledScene scene;
+	private double height;
+	private int maxDepth;
+	private double maxRatio;
+	private double[] thresholds;
+	private int maxProbes;
+
+	private double latitudeMax;
+	private double longitudeMin;
+	private double latitudeMin;
+	private double longitudeMax;
+	private int nStepsLatitude;
+	private int nStepsLongitude;
+	private double stepLat;
+	private double stepLong;
+	private Cell[] roots;
+	// Radio sources inside the plane, in units of the finest lattice
+	private double[] sourceRow;
+	private double[] sourceColumn;
+
+	// Values of the lattice points already evaluated
+	private HashMap<Long, Integer> probeIndex = new HashMap<Long, Integer>();
+	private double[] probeE = new double[1024];
+	private double[] probeTER = new double[1024];
+	private int nProbes;
+
+	/**
+	 * @param maxDepth		Largest number of splits of a coarse cell: the smallest cells have the coarse steps / 2^maxDepth
+	 * 						(the steps of the plane times 2^maxDepth must be less than 2^31)
+	 * @param maxRatio		A cell is split when the ratio between its largest and smallest TER is above maxRatio
+	 * @param thresholds	TER values (%): a cell is split when its corners are on both sides of a threshold
+	 * @param maxProbes		Probe budget of the splits
+	 */
+	public AdaptivePlane(CompiledScene scene, Point2D coord1, Point2D coord2, double height, int nStepsLongitude,
+			int maxDepth, double maxRatio, double[] thresholds, int maxProbes) {
+		if (maxDepth < 0 || maxDepth > 20)
+			throw new IllegalArgumentException("maxDepth must be in [0, 20]: " + maxDepth);
+		this.scene = scene;
+		this.height = height;
+		this.maxDepth = maxDepth;
+		this.maxRatio = maxRatio;
+		this.thresholds = thresholds == null ? new double[0] : thresholds.clone();
+		this.maxProbes = maxProbes;
+
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		latitudeMax = grid.getLatitudeMax();
+		longitudeMin = grid.getLongitudeMin();
+		latitudeMin = grid.getLatitudeMin();
+		longitudeMax = grid.getLongitudeMax();
+		nStepsLatitude = grid.getNStepsLatitude();
+		this.nStepsLongitude = nStepsLongitude;
+		stepLat = grid.getStepLatitude();
+		stepLong = grid.getStepLongitude();
+		// The lattice points are keyed by (row << 32) | column
+		if (((long) nStepsLatitude << maxDepth) >= 1L << 31 || ((long) nStepsLongitude << maxDepth) >= 1L << 31)
+			throw new IllegalArgumentException("The finest lattice must have less than 2^31 rows and columns: "
+					+ nStepsLatitude + " x " + nStepsLongitude + " steps with maxDepth " + maxDepth);
+
+		refine();
+	}
+
+	private void refine() {
+		long n = 1L << maxDepth;
+		List<Point2D> positions = scene.getSourcePositions();
+		sourceRow = new double[positions.size()];
+		sourceColumn = new double[positions.size()];
+		List<List<Integer>> rootSources = new ArrayList<List<Integer>>();
+		for (int k = 0; k < nStepsLatitude*nStepsLongitude; k++)
+			rootSources.add(new ArrayList<Integer>());
+		for (int s = 0; s < positions.size(); s++) {
+			sourceRow[s] = (latitudeMax - positions.get(s).getLatitude())/stepLat*n;
+			sourceColumn[s] = (positions.get(s).getLongitude() - longitudeMin)/stepLong*n;
+			if (sourceRow[s] < 0 || sourceRow[s] > nStepsLatitude*n || sourceColumn[s] < 0 || sourceColumn[s] > nStepsLongitude*n)
+				continue;
+			int i = (int) min(nStepsLatitude - 1, (long) (sourceRow[s]/n));
+			int j = (int) min(nStepsLongitude - 1, (long) (sourceColumn[s]/n));
+			rootSources.get(i*nStepsLongitude + j).add(s);
+		}
+
+		PriorityQueue<Cell> queue = new PriorityQueue<Cell>();
+		roots = new Cell[nStepsLatitude*nStepsLongitude];
+		for (int i = 0; i < nStepsLatitude; i++) {
+			for (int j = 0; j < nStepsLongitude; j++) {
+				List<Integer> sources = rootSources.get(i*nStepsLongitude + j);
+				int[] cellSources = new int[sources.size()];
+				for (int k = 0; k < cellSources.length; k++)
+					cellSources[k] = sources.get(k);
+				Cell cell = new Cell(0, (long) i << maxDepth, (long) j << maxDepth, cellSources);
+				roots[i*nStepsLongitude + j] = cell;
+				if (cell.needsSplit())
+					queue.add(cell);
+			}
+		}
+		while (!queue.isEmpty()) {
+			Cell cell = queue.poll();
+			if (nProbes + cell.getNewProbesOfSplit() > maxProbes)
+				break;
+			cell.split();
+			for (Cell child : cell.children)
+				if (child.needsSplit())
+					queue.add(child);
+		}
+	}
+
+	/**
+	 * Returns the index of the lattice point (i, j), in units of the finest lattice, evaluating it
+	 * if it was not evaluated yet
+	 */
+	private int getProbe(long i, long j) {
+		Long key = (i << 32) | j;
+		Integer index = probeIndex.get(key);
+		if (index != null)
+			return index;
+		if (nProbes == probeE.length) {
+			probeE = Arrays.copyOf(probeE, 2*nProbes);
+			probeTER = Arrays.copyOf(probeTER, 2*nProbes);
+		}
+		scene.evalEandTERAtProbe(getLatitude(i), getLongitude(j), height, probeE, probeTER, nProbes);
+		probeIndex.put(key, nProbes);
+		return nProbes++;
+	}
+	private boolean hasProbe(long i, long j) {
+		return probeIndex.containsKey((i << 32) | j);
+	}
+	private double getLatitude(long i) {
+		return latitudeMax - i*stepLat/(1 << maxDepth);
+	}
+	private double getLongitude(long j) {
+		return longitudeMin + j*stepLong/(1 << maxDepth);
+	}
+
+	/**
+	 * Returns the number of probes evaluated
+	 */
+	public int getNProbes() {
+		return nProbes;
+	}
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+	/**
+	 * Returns the leaf cells of the quadtree
+	 */
+	public List<Cell> getLeaves() {
+		List<Cell> leaves = new ArrayList<Cell>();
+		for (Cell root : roots)
+			root.addLeaves(leaves);
+		return leaves;
+	}
+	/**
+	 * Returns the cell of the coarse grid in the row i and column j, the root of its quadtree
+	 */
+	public Cell getRoot(int i, int j) {
+		return roots[i*nStepsLongitude + j];
+	}
+	public int getNStepsLatitude() {
+		return nStepsLatitude;
+	}
+	public int getNStepsLongitude() {
+		return nStepsLongitude;
+	}
+	/**
+	 * Returns E and TER interpolated at (latitude, longitude), in the leaf cell that holds the point.
+	 * Points outside the plane are clamped to its edges.
+	 */
+	public Pair<Double, Double> evalEandTER(double latitude, double longitude) {
+		double[] E = new double[1];
+		double[] TER = new double[1];
+		evalEandTER(latitude, longitude, E, TER, 0);
+		return new Pair<Double, Double>(E[0], TER[0]);
+	}
+	private void evalEandTER(double latitude, double longitude, double[] resultE, double[] resultTER, int offset) {
+		// Position in units of the finest lattice
+		long n = 1L << maxDepth;
+		double y = min(max((latitudeMax - latitude)/stepLat*n, 0), (double) nStepsLatitude*n);
+		double x = min(max((longitude - longitudeMin)/stepLong*n, 0), (double) nStepsLongitude*n);
+		int i = (int) min(nStepsLatitude - 1, (long) (y/n));
+		int j = (int) min(nStepsLongitude - 1, (long) (x/n));
+
+		Cell cell = getRoot(i, j);
+		while (cell.children != null) {
+			long size = cell.getSize()/2;
+			int child = (y >= cell.getFirstRow() + size ? 2 : 0) + (x >= cell.getFirstColumn() + size ? 1 : 0);
+			cell = cell.children[child];
+		}
+		double size = cell.getSize();
+		double v = min(1, max(0, (y - cell.getFirstRow())/size));
+		double u = min(1, max(0, (x - cell.getFirstColumn())/size));
+		resultE[offset] = interpolate(cell.getCornerE(), u, v);
+		resultTER[offset] = interpolate(cell.getCornerTER(), u, v);
+	}
+	private static double interpolate(double[] corner, double u, double v) {
+		double north = corner[0] + (corner[1] - corner[0])*u;
+		double south = corner[2] + (corner[3] - corner[2])*u;
+		return north + (south - north)*v;
+	}
+	/**
+	 * Resamples the plane onto the grid of evalEandTERAtPlane with nStepsLongitude columns
+	 */
+	public Pair<SimpleMatrix, SimpleMatrix> resample(int nStepsLongitude) {
+		PlaneGrid grid = new PlaneGrid(new Point2D(latitudeMin, longitudeMin), new Point2D(latitudeMax, longitudeMax), nStepsLongitude);
+		int nStepsLatitude = grid.getNStepsLatitude();
+		SimpleMatrix resultE = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
+		SimpleMatrix resultTER = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
+		for (int i = 0; i < nStepsLatitude; i++)
+			for (int j = 0; j < nStepsLongitude; j++)
+				evalEandTER(grid.getLatitude(i), grid.getLongitude(j), resultE.getRow(i), resultTER.getRow(i), j);
+		return new Pair<SimpleMatrix, SimpleMatrix>(resultE, resultTER);
+	}
+
+	/**
+	 * A cell of the quadtree. The corners are ordered north west, north east, south west, south
+	 * east, and so are the children of a split cell.
+	 */
+	public class Cell implements Comparable<Cell> {
+		private int depth;
+		// North west corner, in units of the finest lattice
+		private long firstRow;
+		private long firstColumn;
+		private int[] corner = new int[4];
+		// Radio sources inside the cell
+		private int[] sources;
+		private Cell[] children;
+		private double score;
+
+		private Cell(int depth, long firstRow, long firstColumn, int[] sources) {
+			this.depth = depth;
+			this.sources = sources;
+			this.firstRow = firstRow;
+			this.firstColumn = firstColumn;
+			long size = getSize();
+			corner[0] = getProbe(firstRow, firstColumn);
+			corner[1] = getProbe(firstRow, firstColumn + size);
+			corner[2] = getProbe(firstRow + size, firstColumn);
+			corner[3] = getProbe(firstRow + size, firstColumn + size);
+			score = computeScore();
+		}
+		/**
+		 * Returns infinity for a cell that crosses a threshold or holds a radio source, the log of the ratio of its largest
+		 * and smallest TER otherwise
+		 */
+		private double computeScore() {
+			if (sources.length > 0)
+				return Double.POSITIVE_INFINITY;
+			double minTER = Double.POSITIVE_INFINITY, maxTER = 0;
+			for (int k = 0; k < 4; k++) {
+				minTER = min(minTER, probeTER[corner[k]]);
+				maxTER = max(maxTER, probeTER[corner[k]]);
+			}
+			for (double threshold : thresholds)
+				if (minTER < threshold && maxTER >= threshold)
+					return Double.POSITIVE_INFINITY;
+			if (maxTER == 0)
+				return 0;
+			return minTER > 0 ? log(maxTER/minTER) : Double.POSITIVE_INFINITY;
+		}
+		private boolean needsSplit() {
+			return depth < maxDepth && (score == Double.POSITIVE_INFINITY || score > log(maxRatio));
+		}
+		private int getNewProbesOfSplit() {
+			long half = getSize()/2;
+			int n = 0;
+			if (!hasProbe(firstRow + half, firstColumn + half)) n++;
+			if (!hasProbe(firstRow, firstColumn + half)) n++;
+			if (!hasProbe(firstRow + 2*half, firstColumn + half)) n++;
+			if (!hasProbe(firstRow + half, firstColumn)) n++;
+			if (!hasProbe(firstRow + half, firstColumn + 2*half)) n++;
+			return n;
+		}
+		private void split() {
+			long half = getSize()/2;
+			children = new Cell[]{
+				new Cell(depth + 1, firstRow, firstColumn, getSources(firstRow, firstColumn, half)),
+				new Cell(depth + 1, firstRow, firstColumn + half, getSources(firstRow, firstColumn + half, half)),
+				new Cell(depth + 1, firstRow + half, firstColumn, getSources(firstRow + half, firstColumn, half)),
+				new Cell(depth + 1, firstRow + half, firstColumn + half, getSources(firstRow + half, firstColumn + half, half))
+			};
+			sources = null;
+		}
+		/**
+		 * Returns the sources of this cell inside the box of a child (a source on an edge goes to both)
+		 */
+		private int[] getSources(long row, long column, long size) {
+			int n = 0;
+			int[] result = new int[sources.length];
+			for (int s : sources)
+				if (sourceRow[s] >= row && sourceRow[s] <= row + size && sourceColumn[s] >= column && sourceColumn[s] <= column + size)
+					result[n++] = s;
+			return Arrays.copyOf(result, n);
+		}
+		private void addLeaves(List<Cell> leaves) {
+			if (children == null) {
+				leaves.add(this);
+				return;
+			}
+			for (Cell child : children)
+				child.addLeaves(leaves);
+		}
+		public int compareTo(Cell other) {
+			if (depth != other.depth)
+				return depth < other.depth ? -1 : 1;
+			return Double.compare(other.score, score);
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+		/**
+		 * Returns the side of the cell, in units of the finest lattice
+		 */
+		public long getSize() {
+			return 1L << (maxDepth - depth);
+		}
+		public long getFirstRow() {
+			return firstRow;
+		}
+		public long getFirstColumn() {
+			return firstColumn;
+		}
+		public boolean isLeaf() {
+			return children == null;
+		}
+		/**
+		 * Returns the children (north west, north east, south west, south east), or null for a leaf
+		 */
+		public Cell[] getChildren() {
+			return children == null ? null : children.clone();
+		}
+		public double getLatitudeMax() {
+			return getLatitude(firstRow);
+		}
+		public double getLatitudeMin() {
+			return getLatitude(firstRow + getSize());
+		}
+		public double getLongitudeMin() {
+			return getLongitude(firstColumn);
+		}
+		public double getLongitudeMax() {
+			return getLongitude(firstColumn + getSize());
+		}
+		public double[] getCornerE() {
+			return new double[]{probeE[corner[0]], probeE[corner[1]], probeE[corner[2]], probeE[corner[3]]};
+		}
+		public double[] getCornerTER() {
+			return new double[]{probeTER[corner[0]], probeTER[corner[1]], probeTER[corner[2]], probeTER[corner[3]]};
+		}
+	}
+}
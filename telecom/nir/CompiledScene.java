@@ -0,0 +1,733 @@
+package telecom.nir;
+
+import static java.lang.Math.PI;
+import static java.lang.Math.abs;
+import static java.lang.Math.acos;
+import static java.lang.Math.atan2;
+import static java.lang.Math.cos;
+import static java.lang.Math.log10;
+import static java.lang.Math.max;
+import static java.lang.Math.pow;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+import static telecom.util.Constants.DEGREE_TO_RAD;
+import static telecom.util.Functions.dB2Watt;
+import static telecom.util.Functions.deg2rad;
+import static telecom.util.Functions.getGeodesy;
+import static telecom.util.Functions.getICNIRPLimits;
+import static telecom.util.Functions.getProjected2DDistanceKM;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import telecom.basestation.BaseStation;
+import telecom.basestation.DirectivityCat2BS;
+import telecom.basestation.PatternTable;
+import telecom.propagation.FreeSpace;
+import telecom.propagation.PropagationModel;
+import telecom.util.Geodesy;
+import telecom.util.Pair;
+import telecom.util.Point2D;
+import telecom.util.Point3D;
+
+/**
+ * A snapshot of the base stations of a NIR, frozen into flat arrays with one element per radio
+ * source. The probe kernel runs over these arrays without allocating objects and without calling
+ * the getters of the base stations.
+ *
+ * Only DirectivityCat2BS stations propagated by FreeSpace are compiled (subclasses may override
+ * the pattern or the path loss, so they are not). The other stations are evaluated through
+ * BaseStation.getEIRPdBm and PropagationModel.getPathLoss, after the compiled radios.
+ *
+ * For the compiled radios the kernel performs the same floating point operations, in the same
+ * order, as the generic evaluation, so a scene with only compiled radios gives exactly the same
+ * E and TER as NIR.evalEandTERAtProbe.
+ *
+ * When the scene is compiled with a TER tolerance greater than zero, the compiled radios are
+ * indexed by a RadioIndex and the groups of radio sources whose TER at the probe is negligible are
+ * skipped. The TER dropped at a probe is at most the tolerance (and can be reported, see
+ * evalEandTERAtProbe). A zero tolerance (the default) evaluates every radio source.
+ *
+ * The distances are computed with the geodesy selected in Functions when the scene is compiled.
+ *
+ * With setVectorKernel(true), scenes compiled afterwards evaluate the compiled radios with
+ * VectorKernel, several radio sources at once in SIMD lanes, when the jdk.incubator.vector module
+ * is present (--add-modules jdk.incubator.vector); otherwise they keep the scalar kernel. The vector
+ * kernel agrees with the scalar one up to rounding, not bit by bit, so it is disabled by default.
+ * The vector kernels are in the source set vector/, built with the module and loaded by reflection
+ * behind RadioKernel, so the other classes build and run without it.
+ *
+ * With setLinearKernel(true), scenes compiled afterwards evaluate the compiled radios of the scalar
+ * kernel in the linear domain. The dB kernel converts the pattern to dB, adds the EIRP and subtracts
+ * the path loss in dB, and converts back with pow and sqrt, which cancel out algebraically: the
+ * linear kernel folds the EIRP, the wavelength, the 377 ohm impedance and the path loss constant in
+ * the squared E field at 1 km (squaredEAt1km), so the squared E field of a radio source is
+ * squaredEAt1km*G/d^2, with the pattern G linear (see DirectivityCat2BS.getGainLinear, or the
+ * linear lookup of the pattern table, PatternTable.getGainLinear) and d the 3D distance in km, and
+ * its TER that over the squared ICNIRP limit. With the analytic pattern it agrees with the dB kernel
+ * up to rounding (relative differences of a few 1e-15); with pattern tables (the default) the linear
+ * and dB lookups interpolate between the same samples and differ by less than the error of the table
+ * (PatternTable.getMaxErrordB). It is disabled by default. The vector kernel, when selected, does not use it.
+ *
+ * With setFloat32Kernel(true), scenes compiled afterwards evaluate the compiled radios with
+ * FloatVectorKernel, in single precision and in the linear domain, with twice the lanes of
+ * VectorKernel; the contributions of the radio sources are added in double. It takes precedence over
+ * setVectorKernel, needs the same module (otherwise the scene keeps the kernels selected without it),
+ * and agrees with the double kernels up to the precision of float (see NIR.getFloat32Accuracy).
+ *
+ * Note: the scene is a snapshot. Changes in the base stations after the compilation are not seen.
+ */
+public class CompiledScene {
+	// Classes of the vector source set, loaded only when they are selected
+	private static final String VECTOR_KERNEL = "telecom.nir.VectorKernel";
+	private static final String FLOAT_VECTOR_KERNEL = "telecom.nir.FloatVectorKernel";
+	private static boolean vectorKernelEnabled = false;
+	private static Boolean vectorKernelAvailable;
+	private static boolean linearKernelEnabled = false;
+	private static boolean float32KernelEnabled = false;
+
+	private int nRadios;
+	private double[] latitude;
+	private double[] longitude;
+	private double[] height;
+	private double[] frequency_mhz;
+	private double[] eirp_max_dbm;
+	private double[] tilt_rad;
+	private double[] theta_bw_vertical_rad;
+	private double[] envelope_db;
+	private PatternTable[] pattern;
+
+	// Terms of the kernel that depend only on the radio source
+	private double[] cosColatitude;
+	private double[] sinColatitude;
+	private double[] cosLatitude;
+	private double[] sinLatitude;
+	private double[] pathLossConstant;
+	private double[] aff;
+	private double[] icnirpLimit;
+	// Terms of the linear kernel: squared E field at 1 km with a 0 dB pattern, 1/(ICNIRP limit)^2, linear envelope
+	private double[] squaredEAt1km;
+	private double[] inverseSquaredLimit;
+	private double[] envelopeLinear;
+
+	private List<Pair<BaseStation, PropagationModel>> genericStations;
+
+	private double terTolerance;
+	private RadioIndex index;
+	private boolean projected;
+	private RadioKernel vectorKernel;
+	private boolean linear;
+	private boolean float32;
+	// The sums of the vector kernel calls of each thread, so that the probes do not allocate
+	private ThreadLocal<KernelSums> kernelSums = new ThreadLocal<KernelSums>() {
+		protected KernelSums initialValue() {
+			return new KernelSums();
+		}
+	};
+
+	private static class KernelSums {
+		double[] sums = new double[2];
+		double[] columnE2 = new double[1];
+		double[] columnTER = new double[1];
+
+		/**
+		 * Clears the sums of the first nHeights heights of a column, growing the arrays if needed
+		 */
+		void clearColumn(int nHeights) {
+			if (columnE2.length < nHeights) {
+				columnE2 = new double[nHeights];
+				columnTER = new double[nHeights];
+			} else {
+				Arrays.fill(columnE2, 0, nHeights, 0);
+				Arrays.fill(columnTER, 0, nHeights, 0);
+			}
+		}
+	}
+
+	public CompiledScene(List<Pair<BaseStation, PropagationModel>> stations) {
+		this(stations, 0);
+	}
+	/**
+	 * @param terTolerance	The maximum TER (%) that may be dropped at each probe
+	 */
+	public CompiledScene(List<Pair<BaseStation, PropagationModel>> stations, double terTolerance) {
+		this(stations, terTolerance, float32KernelEnabled);
+	}
+	/**
+	 * Same as CompiledScene(stations, terTolerance), with FloatVectorKernel if float32Kernel (and the
+	 * module is available) instead of the kernel selected by setFloat32Kernel
+	 */
+	CompiledScene(List<Pair<BaseStation, PropagationModel>> stations, double terTolerance, boolean float32Kernel) {
+		this.terTolerance = terTolerance;
+		projected = getGeodesy() == Geodesy.LOCAL_PROJECTION;
+		genericStations = new ArrayList<Pair<BaseStation, PropagationModel>>();
+		List<DirectivityCat2BS> compiled = new ArrayList<DirectivityCat2BS>();
+		for (Pair<BaseStation, PropagationModel> pairBsPm : stations) {
+			if (isCompilable(pairBsPm.getFirst(), pairBsPm.getSecond())) {
+				DirectivityCat2BS bs = (DirectivityCat2BS) pairBsPm.getFirst();
+				compiled.add(bs);
+				nRadios += bs.getNRadioSources();
+			} else {
+				genericStations.add(pairBsPm);
+			}
+		}
+
+		allocate();
+		int r = 0;
+		for (DirectivityCat2BS bs : compiled) {
+			int NRadioSources = bs.getNRadioSources();
+			for (int i = 0; i < NRadioSources; i++, r++) {
+				latitude[r] = bs.getLatitude();
+				longitude[r] = bs.getLongitude();
+				height[r] = bs.getHeight()[i];
+				frequency_mhz[r] = bs.getFrequencyMHz()[i];
+				eirp_max_dbm[r] = bs.getEirpMaxdBm()[i];
+				tilt_rad[r] = deg2rad(bs.getTiltDegree()[i]);
+				theta_bw_vertical_rad[r] = deg2rad(bs.getThetaBwVerticalDegree()[i]);
+				envelope_db[r] = bs.getMaxSideLobeEnvelopedB()[i];
+				if (bs.getPatternTables() != null)
+					pattern[r] = bs.getPatternTables()[i];
+
+				cosColatitude[r] = cos((90-latitude[r])*DEGREE_TO_RAD);
+				sinColatitude[r] = sin((90-latitude[r])*DEGREE_TO_RAD);
+				cosLatitude[r] = cos(latitude[r]*DEGREE_TO_RAD);
+				sinLatitude[r] = sin(latitude[r]*DEGREE_TO_RAD);
+				pathLossConstant[r] = 32.44 + 20*log10(frequency_mhz[r]);
+				double lambda = 3e8/(frequency_mhz[r]*1e6);
+				aff[r] = (lambda*lambda)/(4*PI);
+				icnirpLimit[r] = getICNIRPLimits(frequency_mhz[r]);
+				squaredEAt1km[r] = 377*dB2Watt(eirp_max_dbm[r] - 30 - pathLossConstant[r])/aff[r];
+				inverseSquaredLimit[r] = 1/(icnirpLimit[r]*icnirpLimit[r]);
+				envelopeLinear[r] = dB2Watt(envelope_db[r]);
+			}
+		}
+		linear = linearKernelEnabled;
+		if (terTolerance > 0)
+			buildIndex();
+		if (float32Kernel && isVectorKernelAvailable()) {
+			vectorKernel = createKernel(FLOAT_VECTOR_KERNEL, latitude, longitude, height, tilt_rad, theta_bw_vertical_rad,
+					envelope_db, pattern, cosLatitude, sinLatitude, squaredEAt1km, inverseSquaredLimit, projected);
+			float32 = true;
+		} else if (vectorKernelEnabled && isVectorKernelAvailable())
+			vectorKernel = createKernel(VECTOR_KERNEL, latitude, longitude, height, eirp_max_dbm, tilt_rad, theta_bw_vertical_rad,
+					envelope_db, pattern, cosColatitude, sinColatitude, cosLatitude, sinLatitude, pathLossConstant,
+					aff, icnirpLimit, projected);
+	}
+	/**
+	 * Returns a new kernel of the class className, from the arguments of its constructor
+	 */
+	private static RadioKernel createKernel(String className, Object... args) {
+		try {
+			return (RadioKernel) Class.forName(className).getDeclaredConstructors()[0].newInstance(args);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot create " + className, e);
+		}
+	}
+	/**
+	 * Selects the kernel of the scenes compiled from now on: VectorKernel if enabled and available,
+	 * else the scalar kernel (the default)
+	 */
+	public static void setVectorKernel(boolean enabled) {
+		vectorKernelEnabled = enabled;
+	}
+	public static boolean isVectorKernelEnabled() {
+		return vectorKernelEnabled;
+	}
+	/**
+	 * Returns true if the vector kernels are in the class path and the jdk.incubator.vector module is
+	 * present, so VectorKernel and FloatVectorKernel can be used
+	 */
+	public static synchronized boolean isVectorKernelAvailable() {
+		if (vectorKernelAvailable == null) {
+			try {
+				vectorKernelAvailable = (Integer) Class.forName(VECTOR_KERNEL).getDeclaredMethod("getNLanes").invoke(null) > 1
+						&& (Integer) Class.forName(FLOAT_VECTOR_KERNEL).getDeclaredMethod("getNLanes").invoke(null) > 1;
+			} catch (ReflectiveOperationException e) {
+				vectorKernelAvailable = false;
+			} catch (LinkageError e) {
+				vectorKernelAvailable = false;
+			}
+		}
+		return vectorKernelAvailable;
+	}
+	/**
+	 * Selects the domain of the scalar kernel of the scenes compiled from now on: linear if enabled,
+	 * else dB (the default)
+	 */
+	public static void setLinearKernel(boolean enabled) {
+		linearKernelEnabled = enabled;
+	}
+	public static boolean isLinearKernelEnabled() {
+		return linearKernelEnabled;
+	}
+	/**
+	 * Returns true if the scalar kernel of this scene works in the linear domain
+	 */
+	public boolean isLinearKernel() {
+		return linear;
+	}
+	/**
+	 * Selects the precision of the scenes compiled from now on: FloatVectorKernel if enabled and the
+	 * vector module is available, else the kernels in double (the default)
+	 */
+	public static void setFloat32Kernel(boolean enabled) {
+		float32KernelEnabled = enabled;
+	}
+	public static boolean isFloat32KernelEnabled() {
+		return float32KernelEnabled;
+	}
+	/**
+	 * Returns the global settings that change the results of the scenes compiled from now on: the
+	 * kernel, the geodesy and the resolution of the pattern tables (see ResultCache)
+	 */
+	static String getEvaluationSettings() {
+		boolean available = (vectorKernelEnabled || float32KernelEnabled) && isVectorKernelAvailable();
+		return "vector=" + (vectorKernelEnabled && available) + " float32=" + (float32KernelEnabled && available)
+				+ " linear=" + linearKernelEnabled + " geodesy=" + getGeodesy() + " patternResolution=" + PatternTable.getResolutionDegree();
+	}
+	/**
+	 * Returns true if the compiled radios of this scene are evaluated by VectorKernel
+	 */
+	public boolean isVectorKernel() {
+		return vectorKernel != null && !float32;
+	}
+	/**
+	 * Returns true if the compiled radios of this scene are evaluated by FloatVectorKernel
+	 */
+	public boolean isFloat32Kernel() {
+		return float32;
+	}
+	/**
+	 * Builds the index and reorders the radio sources in the order of the tree
+	 */
+	private void buildIndex() {
+		// The pattern is at most max(0, envelope) dB and the 3D distance is at least the 2D distance
+		double[] K = new double[nRadios];
+		for (int r = 0; r < nRadios; r++)
+			K[r] = getTERConstant(r);
+		index = new RadioIndex(latitude, longitude, K, terTolerance, projected);
+
+		int[] order = index.getOrder();
+		latitude = reorder(latitude, order);
+		longitude = reorder(longitude, order);
+		height = reorder(height, order);
+		frequency_mhz = reorder(frequency_mhz, order);
+		eirp_max_dbm = reorder(eirp_max_dbm, order);
+		tilt_rad = reorder(tilt_rad, order);
+		theta_bw_vertical_rad = reorder(theta_bw_vertical_rad, order);
+		envelope_db = reorder(envelope_db, order);
+		PatternTable[] patternInOrder = new PatternTable[nRadios];
+		for (int i = 0; i < nRadios; i++)
+			patternInOrder[i] = pattern[order[i]];
+		pattern = patternInOrder;
+		cosColatitude = reorder(cosColatitude, order);
+		sinColatitude = reorder(sinColatitude, order);
+		cosLatitude = reorder(cosLatitude, order);
+		sinLatitude = reorder(sinLatitude, order);
+		pathLossConstant = reorder(pathLossConstant, order);
+		aff = reorder(aff, order);
+		icnirpLimit = reorder(icnirpLimit, order);
+		squaredEAt1km = reorder(squaredEAt1km, order);
+		inverseSquaredLimit = reorder(inverseSquaredLimit, order);
+		envelopeLinear = reorder(envelopeLinear, order);
+	}
+	/**
+	 * Returns K such that the TER (%) of the radio source r at a 2D distance d (km) is at most K/d^2
+	 */
+	private double getTERConstant(int r) {
+		double maxRxPowerAt1km = eirp_max_dbm[r] + max(0, envelope_db[r]) - 30 - pathLossConstant[r];
+		return 100*377*dB2Watt(maxRxPowerAt1km)/aff[r]/(icnirpLimit[r]*icnirpLimit[r]);
+	}
+	/**
+	 * Returns K such that the TER (%) of all compiled radio sources at a probe whose 2D distance to
+	 * each of them is at least d (km) is at most K/d^2, or infinity if some station is not compiled
+	 */
+	double getTERConstant() {
+		if (!genericStations.isEmpty())
+			return Double.POSITIVE_INFINITY;
+		double K = 0;
+		for (int r = 0; r < nRadios; r++)
+			K += getTERConstant(r);
+		return K;
+	}
+	/**
+	 * Evaluates E and TER at the probes (latProbe, longProbe, heights[k]) and stores them in
+	 * resultE[offset + k*stride] and resultTER[offset + k*stride]. The 2D distance to each radio
+	 * source (and the pruning of the index, which depends only on it) is computed once for all the
+	 * heights; the results are the same as evalEandTERAtProbe at each height.
+	 */
+	public void evalEandTERAtColumn(double latProbe, double longProbe, double[] heights,
+			double[] resultE, double[] resultTER, int offset, int stride) {
+		int nHeights = heights.length;
+		for (int k = 0; k < nHeights; k++) {
+			resultE[offset + k*stride] = 0;
+			resultTER[offset + k*stride] = 0;
+		}
+
+		double cosColatProbe = cos((90-latProbe)*DEGREE_TO_RAD);
+		double sinColatProbe = sin((90-latProbe)*DEGREE_TO_RAD);
+		KernelSums columnSums = vectorKernel == null ? null : kernelSums.get();
+		long visited = 0;
+
+		int nNodes = index == null ? 1 : index.getNNodes();
+		int node = 0;
+		while (node < nNodes) {
+			int firstRadio = 0;
+			int lastRadio = nRadios;
+			int nextNode = node + 1;
+			if (index != null) {
+				double bound = index.getTERBound(node, latProbe, longProbe, sinColatProbe);
+				if (bound <= index.getBudget(node)) {
+					node = index.getSkip(node);
+					continue;
+				}
+				if (!index.isLeaf(node)) {
+					node++;
+					continue;
+				}
+				firstRadio = index.getFirst(node);
+				lastRadio = index.getLast(node);
+				nextNode = index.getSkip(node);
+			}
+			visited += lastRadio - firstRadio;
+
+			if (columnSums != null) {
+				columnSums.clearColumn(nHeights);
+				vectorKernel.sumColumn(latProbe, longProbe, heights, cosColatProbe, sinColatProbe,
+						firstRadio, lastRadio, columnSums.columnE2, columnSums.columnTER);
+				for (int k = 0; k < nHeights; k++) {
+					resultE[offset + k*stride] += columnSums.columnE2[k];
+					resultTER[offset + k*stride] += columnSums.columnTER[k];
+				}
+				node = nextNode;
+				continue;
+			}
+
+			for (int r = firstRadio; r < lastRadio; r++) {
+				double d_2d;
+				if (projected)
+					d_2d = getProjected2DDistanceKM(cosLatitude[r], sinLatitude[r], 
+							latProbe - latitude[r], longProbe - longitude[r]);
+				else
+					d_2d = 6371*acos(cosColatProbe*cosColatitude[r]
+							+ sinColatProbe*sinColatitude[r]*cos((longitude[r]-longProbe)*DEGREE_TO_RAD));
+
+				for (int k = 0; k < nHeights; k++) {
+					double hProbe = heights[k];
+					if (linear) {
+						double E2_bs_i = getSquaredELinear(r, d_2d, hProbe);
+						resultE[offset + k*stride] += E2_bs_i;
+						resultTER[offset + k*stride] += E2_bs_i*inverseSquaredLimit[r];
+						continue;
+					}
+					double theta_vertical_rad = atan2(height[r]-hProbe, d_2d*1000);
+					double F;
+					if (pattern[r] != null)
+						F = pattern[r].getFdB(theta_vertical_rad, tilt_rad[r]);
+					else
+						F = DirectivityCat2BS.getFdB(theta_vertical_rad, 
+								tilt_rad[r], theta_bw_vertical_rad[r], envelope_db[r]);
+					double eirpToProbe_dBm = eirp_max_dbm[r] + F;
+
+					double d_km = sqrt(d_2d*d_2d + pow(abs(height[r]-hProbe)/1000, 2));
+					double pathLoss = pathLossConstant[r] + 20*log10(d_km);
+					double rxIsotropicPower = eirpToProbe_dBm - 30 - pathLoss;
+
+					double E_field_bs_i = sqrt(377*dB2Watt(rxIsotropicPower)/aff[r]);
+					double ER_bs_i = pow((E_field_bs_i/icnirpLimit[r]), 2);
+
+					resultE[offset + k*stride] += pow(E_field_bs_i, 2);
+					resultTER[offset + k*stride] += ER_bs_i;
+				}
+			}
+			node = nextNode;
+		}
+
+		for (int k = 0; k < nHeights; k++) {
+			int o = offset + k*stride;
+			if (!genericStations.isEmpty()) {
+				double[] sums = new double[]{resultE[o], resultTER[o]};
+				Point3D probe = new Point3D(latProbe, longProbe, heights[k]);
+				for (Pair<BaseStation, PropagationModel> pairBsPm : genericStations)
+					NIR.addContribution(pairBsPm.getFirst(), pairBsPm.getSecond(), probe, sums);
+				resultE[o] = sums[0];
+				resultTER[o] = sums[1];
+			}
+			resultE[o] = pow(resultE[o], 0.5);
+			resultTER[o] = resultTER[o] * 100;
+		}
+		if (Metrics.enabled)
+			Metrics.addProbes(nHeights, visited*nHeights);
+	}
+
+	/**
+	 * Returns the squared E field of the radio source r at a 2D distance d_2d (km) and at the height
+	 * hProbe, in the linear domain (see setLinearKernel)
+	 */
+	private double getSquaredELinear(int r, double d_2d, double hProbe) {
+		double dh = height[r] - hProbe;
+		double theta_vertical_rad = atan2(dh, d_2d*1000);
+		double G;
+		if (pattern[r] != null)
+			G = pattern[r].getGainLinear(theta_vertical_rad, tilt_rad[r]);
+		else
+			G = DirectivityCat2BS.getGainLinear(theta_vertical_rad, 
+					tilt_rad[r], theta_bw_vertical_rad[r], envelopeLinear[r]);
+		double dh_km = dh/1000;
+		return squaredEAt1km[r]*G/(d_2d*d_2d + dh_km*dh_km);
+	}
+
+	double getRadioLatitude(int r) {
+		return latitude[r];
+	}
+	double getRadioLongitude(int r) {
+		return longitude[r];
+	}
+	/**
+	 * Returns the TER (%) of the radio source r for an E field of 1 V/m
+	 */
+	double getTERPerSquaredE(int r) {
+		return 100/(icnirpLimit[r]*icnirpLimit[r]);
+	}
+	/**
+	 * Returns an upper bound of the squared E field of the radio source r at the probes with a 2D
+	 * distance (km) in [d2dMin, d2dMax] and a height (m) in [hMin, hMax]. The pattern is
+	 * nonincreasing with the distance to the tilt, so it is bounded by its value at the elevation
+	 * angle of the box closest to the tilt.
+	 */
+	double getSquaredEBound(int r, double d2dMin, double d2dMax, double hMin, double hMax) {
+		double dhMin = height[r] - hMax;
+		double dhMax = height[r] - hMin;
+		// atan2(dh, x) is monotone in dh, and in x for a fixed dh
+		double thetaMin = Math.min(atan2(dhMin, d2dMin*1000), atan2(dhMin, d2dMax*1000));
+		double thetaMax = max(atan2(dhMax, d2dMin*1000), atan2(dhMax, d2dMax*1000));
+		double theta = Math.min(max(tilt_rad[r], thetaMin), thetaMax);
+		double F;
+		if (pattern[r] != null)
+			F = pattern[r].getFdB(theta, tilt_rad[r]);
+		else
+			F = DirectivityCat2BS.getFdB(theta, tilt_rad[r], theta_bw_vertical_rad[r], envelope_db[r]);
+
+		double dhAbs = dhMin > 0 ? dhMin : dhMax < 0 ? -dhMax : 0;
+		double d_km = sqrt(d2dMin*d2dMin + pow(dhAbs/1000, 2));
+		if (d_km <= 0)
+			return Double.POSITIVE_INFINITY;
+		// Slack for the rounding of the kernel
+		double rxIsotropicPower = eirp_max_dbm[r] + F + 1e-9 - 30 - pathLossConstant[r] - 20*log10(d_km);
+		return 377*dB2Watt(rxIsotropicPower)/aff[r]*(1 + 1e-9);
+	}
+	/**
+	 * Returns the positions (latitude, longitude) of the radio sources, compiled and generic
+	 */
+	List<Point2D> getSourcePositions() {
+		List<Point2D> positions = new ArrayList<Point2D>(nRadios + genericStations.size());
+		for (int r = 0; r < nRadios; r++)
+			positions.add(new Point2D(latitude[r], longitude[r]));
+		for (Pair<BaseStation, PropagationModel> pairBsPm : genericStations)
+			positions.add(pairBsPm.getFirst().getPosition());
+		return positions;
+	}
+	/**
+	 * Returns true if the distances are computed with Geodesy.LOCAL_PROJECTION
+	 */
+	boolean isProjected() {
+		return projected;
+	}
+	private static double[] reorder(double[] array, int[] order) {
+		double[] result = new double[array.length];
+		for (int i = 0; i < order.length; i++)
+			result[i] = array[order[i]];
+		return result;
+	}
+	private void allocate() {
+		latitude = new double[nRadios];
+		longitude = new double[nRadios];
+		height = new double[nRadios];
+		frequency_mhz = new double[nRadios];
+		eirp_max_dbm = new double[nRadios];
+		tilt_rad = new double[nRadios];
+		theta_bw_vertical_rad = new double[nRadios];
+		envelope_db = new double[nRadios];
+		pattern = new PatternTable[nRadios];
+		cosColatitude = new double[nRadios];
+		sinColatitude = new double[nRadios];
+		cosLatitude = new double[nRadios];
+		sinLatitude = new double[nRadios];
+		pathLossConstant = new double[nRadios];
+		aff = new double[nRadios];
+		icnirpLimit = new double[nRadios];
+		squaredEAt1km = new double[nRadios];
+		inverseSquaredLimit = new double[nRadios];
+		envelopeLinear = new double[nRadios];
+	}
+	private static boolean isCompilable(BaseStation bs, PropagationModel pm) {
+		return bs.getClass() == DirectivityCat2BS.class && pm.getClass() == FreeSpace.class;
+	}
+
+	/**
+	 * Returns the number of radio sources evaluated by the compiled kernel
+	 */
+	public int getNCompiledRadios() {
+		return nRadios;
+	}
+	/**
+	 * Returns the number of base stations that could not be compiled
+	 */
+	public int getNGenericStations() {
+		return genericStations.size();
+	}
+	/**
+	 * Returns the maximum TER (%) that may be dropped at each probe
+	 */
+	public double getTERTolerance() {
+		return terTolerance;
+	}
+
+	public Pair<Double, Double> evalEandTERAtProbe(Point3D probe) {
+		return evalEandTERAtProbe(probe.getLatitude(), probe.getLongitude(), probe.getHeight());
+	}
+	public Pair<Double, Double> evalEandTERAtProbe(double latProbe, double longProbe, double hProbe) {
+		double[] E = new double[1];
+		double[] TER = new double[1];
+		evalEandTERAtProbe(latProbe, longProbe, hProbe, E, TER, 0);
+		return new Pair<Double, Double>(E[0], TER[0]);
+	}
+	/**
+	 * Evaluates E and TER at the probes (latitude[p], longitude[p], height[p]) and stores them in
+	 * resultE[p] and resultTER[p], in the order of a Hilbert curve and in chunks run by the threads
+	 * of pool (serially if pool is null), as NIR.evalEandTERAtProbes
+	 */
+	public void evalEandTERAtProbes(double[] latitude, double[] longitude, double[] height, 
+			double[] resultE, double[] resultTER, ForkJoinPool pool) {
+		int n = latitude.length;
+		if (longitude.length != n || height.length != n || resultE.length < n || resultTER.length < n)
+			throw new IllegalArgumentException("The arrays of the probes must have the same length");
+		int[] order = ProbeBatchTask.getHilbertOrder(latitude, longitude);
+		ProbeBatchTask task = new ProbeBatchTask(this, order, latitude, longitude, height, resultE, resultTER, 0, n);
+		if (pool != null)
+			pool.invoke(task);
+		else
+			task.evalProbes();
+	}
+	/**
+	 * Evaluates E and TER at the probe and stores them in resultE[offset] and resultTER[offset].
+	 * When all the stations are compiled no object is allocated (the vector kernels use buffers per
+	 * thread).
+	 */
+	public void evalEandTERAtProbe(double latProbe, double longProbe, double hProbe,
+			double[] resultE, double[] resultTER, int offset) {
+		evalEandTERAtProbe(latProbe, longProbe, hProbe, resultE, resultTER, null, offset);
+	}
+	/**
+	 * Same as evalEandTERAtProbe(latProbe, longProbe, hProbe, resultE, resultTER, offset). If droppedTER
+	 * is not null, droppedTER[offset] receives an upper bound of the TER (%) of the radio sources
+	 * skipped by the index (0 when the tolerance is 0).
+	 */
+	public void evalEandTERAtProbe(double latProbe, double longProbe, double hProbe,
+			double[] resultE, double[] resultTER, double[] droppedTER, int offset) {
+		double E_field_total = 0;
+		double TER = 0;
+		double dropped = 0;
+
+		double cosColatProbe = cos((90-latProbe)*DEGREE_TO_RAD);
+		double sinColatProbe = sin((90-latProbe)*DEGREE_TO_RAD);
+		double[] vectorSums = null;
+		if (vectorKernel != null) {
+			vectorSums = kernelSums.get().sums;
+			vectorSums[0] = 0;
+			vectorSums[1] = 0;
+		}
+		long visited = 0;
+
+		// Without index the whole scene is a single range of radio sources
+		int nNodes = index == null ? 1 : index.getNNodes();
+		int node = 0;
+		while (node < nNodes) {
+			int firstRadio = 0;
+			int lastRadio = nRadios;
+			int nextNode = node + 1;
+			if (index != null) {
+				// cos(lat) = sin(colatitude)
+				double bound = index.getTERBound(node, latProbe, longProbe, sinColatProbe);
+				if (bound <= index.getBudget(node)) {
+					dropped += bound;
+					node = index.getSkip(node);
+					continue;
+				}
+				if (!index.isLeaf(node)) {
+					node++;
+					continue;
+				}
+				firstRadio = index.getFirst(node);
+				lastRadio = index.getLast(node);
+				nextNode = index.getSkip(node);
+			}
+			visited += lastRadio - firstRadio;
+
+			if (vectorSums != null) {
+				vectorKernel.sum(latProbe, longProbe, hProbe, cosColatProbe, sinColatProbe, firstRadio, lastRadio, vectorSums);
+				node = nextNode;
+				continue;
+			}
+
+			for (int r = firstRadio; r < lastRadio; r++) {
+				// Same as Functions.get2DDistanceKM(radio source, probe)
+				double d_2d;
+				if (projected)
+					d_2d = getProjected2DDistanceKM(cosLatitude[r], sinLatitude[r], 
+							latProbe - latitude[r], longProbe - longitude[r]);
+				else
+					d_2d = 6371*acos(cosColatProbe*cosColatitude[r]
+							+ sinColatProbe*sinColatitude[r]*cos((longitude[r]-longProbe)*DEGREE_TO_RAD));
+
+				if (linear) {
+					double E2_bs_i = getSquaredELinear(r, d_2d, hProbe);
+					E_field_total += E2_bs_i;
+					TER += E2_bs_i*inverseSquaredLimit[r];
+					continue;
+				}
+				double theta_vertical_rad = atan2(height[r]-hProbe, d_2d*1000);
+				double F;
+				if (pattern[r] != null)
+					F = pattern[r].getFdB(theta_vertical_rad, tilt_rad[r]);
+				else
+					F = DirectivityCat2BS.getFdB(theta_vertical_rad, 
+							tilt_rad[r], theta_bw_vertical_rad[r], envelope_db[r]);
+				double eirpToProbe_dBm = eirp_max_dbm[r] + F;
+
+				double d_km = sqrt(d_2d*d_2d + pow(abs(height[r]-hProbe)/1000, 2));
+				double pathLoss = pathLossConstant[r] + 20*log10(d_km);
+				double rxIsotropicPower = eirpToProbe_dBm - 30 - pathLoss;
+
+				double E_field_bs_i = sqrt(377*dB2Watt(rxIsotropicPower)/aff[r]);
+				double ER_bs_i = pow((E_field_bs_i/icnirpLimit[r]), 2);
+
+				E_field_total += pow(E_field_bs_i, 2);
+				TER += ER_bs_i;
+			}
+			node = nextNode;
+		}
+		if (vectorSums != null) {
+			E_field_total += vectorSums[0];
+			TER += vectorSums[1];
+		}
+
+		if (!genericStations.isEmpty()) {
+			double[] sums = new double[]{E_field_total, TER};
+			Point3D probe = new Point3D(latProbe, longProbe, hProbe);
+			for (Pair<BaseStation, PropagationModel> pairBsPm : genericStations)
+				NIR.addContribution(pairBsPm.getFirst(), pairBsPm.getSecond(), probe, sums);
+			E_field_total = sums[0];
+			TER = sums[1];
+		}
+
+		resultE[offset] = pow(E_field_total, 0.5);
+		resultTER[offset] = TER * 100;
+		if (droppedTER != null)
+			droppedTER[offset] = dropped;
+		if (Metrics.enabled)
+			Metrics.addProbes(1, visited);
+	}
+}
@@ -0,0 +1,269 @@
+package telecom.nir;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import telecom.util.Point2D;
+
+/**
+ * The isolines of a plane at a set of levels (see NIR.evalTERContours), built by marching squares
+ * from the rows of the plane as they are evaluated: only the previous row and the open ends of the
+ * contours are kept, never the whole plane.
+ *
+ * The probes of the plane are the corners of the squares. The plane is surrounded by a border
+ * below every level, on its edges, so every contour is a closed polygon: the region where the
+ * value is at least the level is closed along the edges of the plane. A polygon is a list of
+ * (latitude, longitude) vertices whose last vertex repeats the first one. Holes are returned as
+ * separate polygons. In the ambiguous squares (two opposite corners inside) the average of the
+ * corners decides whether the inside corners are connected.
+ */
+public class Contours implements PlaneRowWriter {
+	private PlaneGrid grid;
+	private double[] levels;
+	private List<List<List<Point2D>>> polygons = new ArrayList<List<List<Point2D>>>();
+	private List<HashMap<Long, Chain>> openChains = new ArrayList<HashMap<Long, Chain>>();
+
+	// Rows with the border: element 0 and nStepsLongitude + 1 are the border
+	private double[] previousRow;
+	private double[] currentRow;
+	// Row of currentRow in the plane with the border: 0 is the north border
+	private int row;
+	private boolean closed;
+
+	Contours(PlaneGrid grid, double[] levels) {
+		this.grid = grid;
+		this.levels = levels.clone();
+		for (int k = 0; k < levels.length; k++) {
+			polygons.add(new ArrayList<List<Point2D>>());
+			openChains.add(new HashMap<Long, Chain>());
+		}
+		int width = grid.getNStepsLongitude() + 2;
+		previousRow = new double[width];
+		currentRow = new double[width];
+		Arrays.fill(currentRow, Double.NEGATIVE_INFINITY);
+	}
+
+	public double[] getLevels() {
+		return levels.clone();
+	}
+	/**
+	 * Returns the closed polygons of the level k
+	 */
+	public List<List<Point2D>> getPolygons(int k) {
+		return polygons.get(k);
+	}
+
+	public void writeRow(double[] values, int length) {
+		double[] aux = previousRow;
+		previousRow = currentRow;
+		currentRow = aux;
+		currentRow[0] = Double.NEGATIVE_INFINITY;
+		System.arraycopy(values, 0, currentRow, 1, length);
+		currentRow[length + 1] = Double.NEGATIVE_INFINITY;
+		row++;
+		processSquares();
+	}
+	/**
+	 * Adds the south border, which closes every contour
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		double[] aux = previousRow;
+		previousRow = currentRow;
+		currentRow = aux;
+		Arrays.fill(currentRow, Double.NEGATIVE_INFINITY);
+		row++;
+		processSquares();
+		for (HashMap<Long, Chain> open : openChains)
+			if (!open.isEmpty())
+				throw new IllegalStateException("Contours with " + (row - 1) + " rows are not closed: the plane has "
+						+ grid.getNStepsLatitude() + " rows");
+	}
+
+	/**
+	 * Processes the squares between previousRow (row - 1) and currentRow (row)
+	 */
+	private void processSquares() {
+		int width = grid.getNStepsLongitude() + 2;
+		for (int k = 0; k < levels.length; k++) {
+			double level = levels[k];
+			for (int c = 0; c < width - 1; c++) {
+				double nw = previousRow[c], ne = previousRow[c+1];
+				double sw = currentRow[c], se = currentRow[c+1];
+				int square = (nw >= level ? 8 : 0) | (ne >= level ? 4 : 0) | (se >= level ? 2 : 0) | (sw >= level ? 1 : 0);
+				if (square == 0 || square == 15)
+					continue;
+				processSquare(k, level, c, square, nw, ne, se, sw);
+			}
+		}
+	}
+	// Edges of a square
+	private static final int NORTH = 0, EAST = 1, SOUTH = 2, WEST = 3;
+
+	private void processSquare(int k, double level, int c, int square, double nw, double ne, double se, double sw) {
+		switch (square) {
+		case 1: case 14: addSegment(k, level, c, WEST, SOUTH); break;
+		case 2: case 13: addSegment(k, level, c, SOUTH, EAST); break;
+		case 3: case 12: addSegment(k, level, c, WEST, EAST); break;
+		case 4: case 11: addSegment(k, level, c, NORTH, EAST); break;
+		case 6: case 9: addSegment(k, level, c, NORTH, SOUTH); break;
+		case 7: case 8: addSegment(k, level, c, NORTH, WEST); break;
+		case 5: case 10:
+			// Saddle: the average decides whether the inside corners are connected
+			boolean centerInside = 0.25*(nw + ne + se + sw) >= level;
+			boolean northWestInside = square == 10;
+			if (northWestInside == centerInside) {
+				// The north east and south west corners are cut off
+				addSegment(k, level, c, NORTH, EAST);
+				addSegment(k, level, c, SOUTH, WEST);
+			} else {
+				// The north west and south east corners are cut off
+				addSegment(k, level, c, NORTH, WEST);
+				addSegment(k, level, c, SOUTH, EAST);
+			}
+			break;
+		}
+	}
+	private void addSegment(int k, double level, int c, int edge1, int edge2) {
+		long key1 = getEdgeKey(c, edge1);
+		long key2 = getEdgeKey(c, edge2);
+		Point2D p1 = getCrossing(level, c, edge1);
+		Point2D p2 = getCrossing(level, c, edge2);
+
+		HashMap<Long, Chain> open = openChains.get(k);
+		Chain chain1 = open.remove(key1);
+		Chain chain2 = open.remove(key2);
+		if (chain1 == null && chain2 == null) {
+			Chain chain = new Chain(key1, p1, key2, p2);
+			open.put(key1, chain);
+			open.put(key2, chain);
+		} else if (chain2 == null) {
+			chain1.extend(key1, key2, p2);
+			open.put(key2, chain1);
+		} else if (chain1 == null) {
+			chain2.extend(key2, key1, p1);
+			open.put(key1, chain2);
+		} else if (chain1 == chain2) {
+			List<Point2D> polygon = new ArrayList<Point2D>(chain1.points);
+			polygon.add(polygon.get(0));
+			polygons.get(k).add(polygon);
+		} else {
+			// Merge the shorter chain into the longer one
+			if (chain1.points.size() < chain2.points.size()) {
+				Chain aux = chain1; chain1 = chain2; chain2 = aux;
+				long auxKey = key1; key1 = key2; key2 = auxKey;
+			}
+			long otherEnd = chain2.getOtherEnd(key2);
+			chain1.merge(key1, chain2, key2);
+			open.put(otherEnd, chain1);
+		}
+	}
+	/**
+	 * Returns a key of the edge of the square c (between previousRow and currentRow) shared with the
+	 * neighbor square: horizontal edges are identified by their west probe, vertical edges by their
+	 * north probe
+	 */
+	private long getEdgeKey(int c, int edge) {
+		long width = grid.getNStepsLongitude() + 2;
+		switch (edge) {
+		case NORTH: return 2*((row - 1)*width + c);
+		case SOUTH: return 2*(row*width + c);
+		case WEST: return 2*((row - 1)*width + c) + 1;
+		default: return 2*((row - 1)*width + c + 1) + 1;
+		}
+	}
+	private Point2D getCrossing(double level, int c, int edge) {
+		switch (edge) {
+		case NORTH: return interpolate(level, row - 1, c, previousRow[c], row - 1, c + 1, previousRow[c+1]);
+		case SOUTH: return interpolate(level, row, c, currentRow[c], row, c + 1, currentRow[c+1]);
+		case WEST: return interpolate(level, row - 1, c, previousRow[c], row, c, currentRow[c]);
+		default: return interpolate(level, row - 1, c + 1, previousRow[c+1], row, c + 1, currentRow[c+1]);
+		}
+	}
+	/**
+	 * Returns the point between the probes (r0, c0) and (r1, c1), with the border, where the value
+	 * crosses the level. A crossing with the border lies on the edge of the plane.
+	 */
+	private Point2D interpolate(double level, int r0, int c0, double v0, int r1, int c1, double v1) {
+		double t;
+		if (v0 == Double.NEGATIVE_INFINITY)
+			t = 0;
+		else if (v1 == Double.NEGATIVE_INFINITY)
+			t = 1;
+		else
+			t = (level - v0)/(v1 - v0);
+		double lat0 = getLatitude(r0), lat1 = getLatitude(r1);
+		double long0 = getLongitude(c0), long1 = getLongitude(c1);
+		return new Point2D(lat0 + t*(lat1 - lat0), long0 + t*(long1 - long0));
+	}
+	private double getLatitude(int r) {
+		if (r == 0)
+			return grid.getLatitudeMax();
+		if (r > grid.getNStepsLatitude())
+			return grid.getLatitudeMin();
+		return grid.getLatitude(r - 1);
+	}
+	private double getLongitude(int c) {
+		if (c == 0)
+			return grid.getLongitudeMin();
+		if (c > grid.getNStepsLongitude())
+			return grid.getLongitudeMax();
+		return grid.getLongitude(c - 1);
+	}
+
+	/**
+	 * An open contour, with the keys of the edges of its ends
+	 */
+	private static class Chain {
+		private ArrayDeque<Point2D> points = new ArrayDeque<Point2D>();
+		private long headKey;
+		private long tailKey;
+
+		Chain(long key1, Point2D p1, long key2, Point2D p2) {
+			points.add(p1);
+			points.add(p2);
+			headKey = key1;
+			tailKey = key2;
+		}
+		long getOtherEnd(long key) {
+			return key == headKey ? tailKey : headKey;
+		}
+		/**
+		 * Extends the end at key with the point p of the edge newKey
+		 */
+		void extend(long key, long newKey, Point2D p) {
+			if (key == headKey) {
+				points.addFirst(p);
+				headKey = newKey;
+			} else {
+				points.addLast(p);
+				tailKey = newKey;
+			}
+		}
+		/**
+		 * Joins the end at key of this chain with the end at otherKey of other, through the segment
+		 * between both edges: every point of other is appended, from the end at otherKey
+		 */
+		void merge(long key, Chain other, long otherKey) {
+			boolean otherFromHead = otherKey == other.headKey;
+			long otherEnd = other.getOtherEnd(otherKey);
+			if (key == tailKey) {
+				Iterator<Point2D> it = otherFromHead ? other.points.iterator() : other.points.descendingIterator();
+				while (it.hasNext())
+					points.addLast(it.next());
+				tailKey = otherEnd;
+			} else {
+				Iterator<Point2D> it = otherFromHead ? other.points.iterator() : other.points.descendingIterator();
+				while (it.hasNext())
+					points.addFirst(it.next());
+				headKey = otherEnd;
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package telecom.nir;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.log10;
+import static java.lang.Math.max;
+
+/**
+ * The result of NIR.getFloat32Accuracy: the errors of the single precision kernel (see
+ * CompiledScene.setFloat32Kernel) against the kernel in double over the probes of a plane. The
+ * relative errors are |float - double|/double, over the probes where the double value is not zero;
+ * the error in dB is that of E, to be compared with the uncertainty of the inputs (the EIRP and the
+ * patterns are given to 0.1 dB at best).
+ */
+public class Float32Accuracy {
+	private boolean float32Kernel;
+	private int nProbes;
+	private double maxRelativeErrorE;
+	private double sumRelativeErrorE;
+	private double maxRelativeErrorTER;
+	private double sumRelativeErrorTER;
+	private double maxErrorEdB;
+
+	Float32Accuracy(boolean float32Kernel) {
+		this.float32Kernel = float32Kernel;
+	}
+
+	/**
+	 * Adds a probe evaluated by both kernels
+	 */
+	void add(double EDouble, double TERDouble, double EFloat, double TERFloat) {
+		nProbes++;
+		if (EDouble > 0) {
+			double error = abs(EFloat - EDouble)/EDouble;
+			maxRelativeErrorE = max(maxRelativeErrorE, error);
+			sumRelativeErrorE += error;
+			if (EFloat > 0)
+				maxErrorEdB = max(maxErrorEdB, abs(20*log10(EFloat/EDouble)));
+		}
+		if (TERDouble > 0) {
+			double error = abs(TERFloat - TERDouble)/TERDouble;
+			maxRelativeErrorTER = max(maxRelativeErrorTER, error);
+			sumRelativeErrorTER += error;
+		}
+	}
+
+	/**
+	 * Returns false if the single precision kernel is not available (see
+	 * CompiledScene.isVectorKernelAvailable): both evaluations used the kernel in double, and the
+	 * errors are zero.
+	 */
+	public boolean isFloat32Kernel() {
+		return float32Kernel;
+	}
+	public int getNProbes() {
+		return nProbes;
+	}
+	public double getMaxRelativeErrorE() {
+		return maxRelativeErrorE;
+	}
+	public double getMeanRelativeErrorE() {
+		return nProbes == 0 ? 0 : sumRelativeErrorE/nProbes;
+	}
+	public double getMaxRelativeErrorTER() {
+		return maxRelativeErrorTER;
+	}
+	public double getMeanRelativeErrorTER() {
+		return nProbes == 0 ? 0 : sumRelativeErrorTER/nProbes;
+	}
+	/**
+	 * Returns the largest difference (dB) between E of both kernels
+	 */
+	public double getMaxErrorEdB() {
+		return maxErrorEdB;
+	}
+	public String toString() {
+		return "float32 kernel " + float32Kernel + ", " + nProbes + " probes: E max " + maxRelativeErrorE
+				+ " mean " + getMeanRelativeErrorE() + " (max " + maxErrorEdB + " dB), TER max "
+				+ maxRelativeErrorTER + " mean " + getMeanRelativeErrorTER();
+	}
+}
@@ -0,0 +1,23 @@
+package telecom.nir;
+
+import telecom.util.FloatMatrix;
+
+/**
+ * Rounds the rows of a plane to float into the rows of a FloatMatrix, from the first one
+ */
+class FloatPlaneWriter implements PlaneRowWriter {
+	private FloatMatrix matrix;
+	private int row;
+
+	FloatPlaneWriter(FloatMatrix matrix) {
+		this.matrix = matrix;
+	}
+
+	public void writeRow(double[] row, int length) {
+		float[] target = matrix.getRow(this.row++);
+		for (int j = 0; j < length; j++)
+			target[j] = (float) row[j];
+	}
+	public void close() {
+	}
+}
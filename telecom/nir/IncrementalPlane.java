@@ -0,0 +1,246 @@
+package telecom.nir;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.asin;
+import static java.lang.Math.cos;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.pow;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+import static telecom.util.Constants.DEGREE_TO_RAD;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import telecom.basestation.BaseStation;
+import telecom.propagation.PropagationModel;
+import telecom.util.Pair;
+import telecom.util.Point2D;
+import telecom.util.SimpleMatrix;
+
+/**
+ * A plane (see NIR.evalEandTERAtPlane) that keeps, for each cell, the sum of the squared E field
+ * and the sum of the TER of its base stations, so that adding, removing or changing a base station
+ * only adds or subtracts the contribution of that station.
+ *
+ * Each base station is copied when it is added or updated (see BaseStation.copy), and its old
+ * contribution is subtracted by evaluating the copy again, so the same values are added and
+ * subtracted. Base stations are changed in place and then given to updateBaseStation.
+ *
+ * With a zero TER tolerance (the default) every station changes the whole plane: an update costs
+ * two evaluations of that station at every cell, and the result agrees with a full evaluation up to
+ * the rounding of the sums, which grows with the number of updates; recompute() evaluates the sums
+ * again from the current copies.
+ *
+ * Only with a TER tolerance greater than zero does a station change just the cells inside its
+ * influence radius: the distance beyond which its TER is below the tolerance (see CompiledScene, a
+ * station that is not compiled has no bound and changes the whole plane). The result then differs
+ * from a full evaluation: the TER missing at a cell is at most the tolerance times the number of
+ * base stations.
+ */
+public class IncrementalPlane {
+	private static final double EARTH_RADIUS_KM = 6371;
+
+	private PlaneGrid grid;
+	private double height;
+	private double terTolerance;
+	private SimpleMatrix sumE2;
+	private SimpleMatrix sumTER;
+	private LinkedHashMap<BaseStation, Contribution> stations = new LinkedHashMap<BaseStation, Contribution>();
+
+	// Scratch of evalContribution
+	private double[] probeE = new double[1];
+	private double[] probeTER = new double[1];
+
+	public IncrementalPlane(Point2D coord1, Point2D coord2, double height, int nStepsLongitude) {
+		this(coord1, coord2, height, nStepsLongitude, 0);
+	}
+	/**
+	 * @param terTolerance	The maximum TER (%) of a base station at the cells outside its influence radius
+	 */
+	public IncrementalPlane(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, double terTolerance) {
+		this.grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		this.height = height;
+		this.terTolerance = terTolerance;
+		sumE2 = new SimpleMatrix(grid.getNStepsLatitude(), nStepsLongitude);
+		sumTER = new SimpleMatrix(grid.getNStepsLatitude(), nStepsLongitude);
+	}
+
+	public void addBaseStation(BaseStation bs, PropagationModel pm) {
+		if (stations.containsKey(bs))
+			throw new IllegalArgumentException("Base station " + bs.getId() + " was already added");
+		Contribution contribution = new Contribution(bs, pm);
+		evalContribution(contribution, 1);
+		stations.put(bs, contribution);
+	}
+	public void removeBaseStation(BaseStation bs) {
+		Contribution contribution = stations.remove(bs);
+		if (contribution == null)
+			throw new IllegalArgumentException("Base station " + bs.getId() + " was not added");
+		evalContribution(contribution, -1);
+	}
+	/**
+	 * Replaces the contribution of bs, changed since it was added or updated, by its current one.
+	 * With a zero tolerance this evaluates bs at every cell; with a tolerance greater than zero only
+	 * at the cells inside its old and new influence radii, dropping at most the tolerance elsewhere.
+	 */
+	public void updateBaseStation(BaseStation bs) {
+		Contribution old = stations.get(bs);
+		if (old == null)
+			throw new IllegalArgumentException("Base station " + bs.getId() + " was not added");
+		updateBaseStation(bs, old.pm);
+	}
+	public void updateBaseStation(BaseStation bs, PropagationModel pm) {
+		removeBaseStation(bs);
+		addBaseStation(bs, pm);
+	}
+	/**
+	 * Evaluates the sums again from the copies of the base stations, without the rounding errors
+	 * accumulated by the updates
+	 */
+	public void recompute() {
+		int nStepsLatitude = grid.getNStepsLatitude();
+		for (int i = 0; i < nStepsLatitude; i++) {
+			Arrays.fill(sumE2.getRow(i), 0);
+			Arrays.fill(sumTER.getRow(i), 0);
+		}
+		for (Contribution contribution : stations.values())
+			evalContribution(contribution, 1);
+	}
+
+	public PlaneGrid getGrid() {
+		return grid;
+	}
+	public double getHeight() {
+		return height;
+	}
+	public double getTERTolerance() {
+		return terTolerance;
+	}
+	public int getNBaseStations() {
+		return stations.size();
+	}
+	public List<BaseStation> getBaseStations() {
+		return new ArrayList<BaseStation>(stations.keySet());
+	}
+	/**
+	 * Returns the cells changed by bs when it was added or last updated: the first row, the last
+	 * row (exclusive), the first column and the last column (exclusive)
+	 */
+	public int[] getInfluenceCells(BaseStation bs) {
+		Contribution contribution = stations.get(bs);
+		if (contribution == null)
+			throw new IllegalArgumentException("Base station " + bs.getId() + " was not added");
+		return new int[]{contribution.firstRow, contribution.lastRow, contribution.firstColumn, contribution.lastColumn};
+	}
+	/**
+	 * Returns E (V/m) and TER (%) of the plane, as evalEandTERAtPlane
+	 */
+	public Pair<SimpleMatrix, SimpleMatrix> getEandTER() {
+		int nStepsLatitude = grid.getNStepsLatitude();
+		int nStepsLongitude = grid.getNStepsLongitude();
+		SimpleMatrix resultE = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
+		SimpleMatrix resultTER = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
+		for (int i = 0; i < nStepsLatitude; i++) {
+			double[] rowE2 = sumE2.getRow(i);
+			double[] rowTER = sumTER.getRow(i);
+			double[] E = resultE.getRow(i);
+			double[] TER = resultTER.getRow(i);
+			// Subtractions can leave tiny negative sums
+			for (int j = 0; j < nStepsLongitude; j++) {
+				E[j] = pow(max(0, rowE2[j]), 0.5);
+				TER[j] = max(0, rowTER[j]);
+			}
+		}
+		return new Pair<SimpleMatrix, SimpleMatrix>(resultE, resultTER);
+	}
+
+	/**
+	 * Adds (sign 1) or subtracts (sign -1) the contribution to the cells of its influence radius
+	 */
+	private void evalContribution(Contribution contribution, double sign) {
+		for (int i = contribution.firstRow; i < contribution.lastRow; i++) {
+			double latProbe = grid.getLatitude(i);
+			double[] rowE2 = sumE2.getRow(i);
+			double[] rowTER = sumTER.getRow(i);
+			for (int j = contribution.firstColumn; j < contribution.lastColumn; j++) {
+				contribution.scene.evalEandTERAtProbe(latProbe, grid.getLongitude(j), height, probeE, probeTER, 0);
+				rowE2[j] += sign*probeE[0]*probeE[0];
+				rowTER[j] += sign*probeTER[0];
+			}
+		}
+	}
+
+	/**
+	 * A frozen copy of a base station, compiled alone, and the cells of its influence radius
+	 */
+	private class Contribution {
+		private PropagationModel pm;
+		private CompiledScene scene;
+		private int firstRow;
+		private int lastRow;
+		private int firstColumn;
+		private int lastColumn;
+
+		Contribution(BaseStation bs, PropagationModel pm) {
+			this.pm = pm;
+			List<Pair<BaseStation, PropagationModel>> station = new ArrayList<Pair<BaseStation, PropagationModel>>();
+			station.add(new Pair<BaseStation, PropagationModel>(bs.copy(), pm));
+			scene = new CompiledScene(station);
+
+			firstRow = 0;
+			lastRow = grid.getNStepsLatitude();
+			firstColumn = 0;
+			lastColumn = grid.getNStepsLongitude();
+			double K = scene.getTERConstant();
+			if (terTolerance > 0 && K < Double.POSITIVE_INFINITY)
+				setInfluenceCells(bs.getLatitude(), bs.getLongitude(), sqrt(K/terTolerance));
+		}
+		/**
+		 * Restricts the cells to the box that holds every cell at a great circle distance below radius
+		 */
+		private void setInfluenceCells(double latitude, double longitude, double radius_km) {
+			// The kernel distance can be shorter than the great circle distance (see RadioIndex)
+			double margin = RadioIndex.getDistanceMargin(scene.isProjected());
+			double radius_rad = radius_km/margin/EARTH_RADIUS_KM;
+			double dLat = radius_rad/DEGREE_TO_RAD;
+
+			int nStepsLatitude = grid.getNStepsLatitude();
+			firstRow = nStepsLatitude;
+			lastRow = 0;
+			for (int i = 0; i < nStepsLatitude; i++) {
+				if (abs(grid.getLatitude(i) - latitude) <= dLat) {
+					firstRow = min(firstRow, i);
+					lastRow = i + 1;
+				}
+			}
+			if (firstRow >= lastRow) {
+				firstRow = lastRow = firstColumn = lastColumn = 0;
+				return;
+			}
+
+			// With haversine, sin(dLong/2) <= sin(d/2)/cos(lat) for the largest |lat| of the box
+			double cosMin = cos(min(90, abs(latitude) + dLat)*DEGREE_TO_RAD);
+			double sinHalfLong = cosMin > 0 ? sin(0.5*min(radius_rad, Math.PI))/cosMin : 2;
+			if (sinHalfLong >= 1)
+				return;
+			double dLong = 2*asin(sinHalfLong)/DEGREE_TO_RAD;
+
+			int nStepsLongitude = grid.getNStepsLongitude();
+			firstColumn = nStepsLongitude;
+			lastColumn = 0;
+			for (int j = 0; j < nStepsLongitude; j++) {
+				double d = abs(grid.getLongitude(j) - longitude) % 360;
+				if (min(d, 360 - d) <= dLong) {
+					firstColumn = min(firstColumn, j);
+					lastColumn = j + 1;
+				}
+			}
+			if (firstColumn >= lastColumn)
+				firstRow = lastRow = firstColumn = lastColumn = 0;
+		}
+	}
+}
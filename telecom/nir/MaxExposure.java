@@ -0,0 +1,46 @@
+package telecom.nir;
+
+import telecom.util.Point3D;
+
+/**
+ * The result of NIR.findMaxTER and NIR.findMaxE: the probe with the largest value found, its E and
+ * TER, and an upper bound of the value anywhere in the searched region
+ */
+public class MaxExposure {
+	private Point3D location;
+	private double E;
+	private double TER;
+	private double upperBound;
+	private int nProbes;
+
+	MaxExposure(Point3D location, double E, double TER, double upperBound, int nProbes) {
+		this.location = location;
+		this.E = E;
+		this.TER = TER;
+		this.upperBound = upperBound;
+		this.nProbes = nProbes;
+	}
+
+	public Point3D getLocation() {
+		return location;
+	}
+	public double getE() {
+		return E;
+	}
+	public double getTER() {
+		return TER;
+	}
+	/**
+	 * Returns an upper bound of the searched value (E in V/m or TER in %) in the whole region. The
+	 * maximum lies between the value at getLocation() and this bound.
+	 */
+	public double getUpperBound() {
+		return upperBound;
+	}
+	/**
+	 * Returns the number of probes evaluated by the search
+	 */
+	public int getNProbes() {
+		return nProbes;
+	}
+}
@@ -0,0 +1,225 @@
+package telecom.nir;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.asin;
+import static java.lang.Math.cos;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+import static telecom.util.Constants.DEGREE_TO_RAD;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+import telecom.util.Point2D;
+import telecom.util.Point3D;
+
+/**
+ * Branch and bound search of the maximum E or TER in a box of latitude, longitude and height
+ * (see NIR.findMaxTER and NIR.findMaxE).
+ *
+ * Each cell of the search has an upper bound of the value at any of its probes: the sum, over the
+ * radio sources, of CompiledScene.getSquaredEBound (weighted by the ICNIRP limit for TER). The cell
+ * with the largest bound is split in halves along its longest side (in km), and the value at the
+ * center of each half is evaluated. Cells whose bound cannot beat the best value found by more
+ * than the relative tolerance are dropped. The search stops when no cell can, when the remaining
+ * cells are smaller than the resolution, or when the probe budget is spent.
+ *
+ * A cell keeps the list of radio sources whose bound is still significant. The bounds of the
+ * others, computed at the cell, are kept as a single sum, which is valid for its halves too, so
+ * far radio sources are not bounded again for every cell.
+ *
+ * Note: a cell that holds a radio source has no bound (free space loss is infinite at zero
+ * distance), so a region holding antennas converges to them at the resolution.
+ */
+class MaxExposureSearch {
+	private static final double EARTH_RADIUS_KM = 6371;
+	private static final double KM_PER_DEGREE = EARTH_RADIUS_KM*DEGREE_TO_RAD;
+	// Radio sources whose bound is below this fraction of the best value / number of radio sources go to the far sum
+	private static final double FAR_FRACTION = 1e-3;
+
+	private CompiledScene scene;
+	private boolean maxE;
+	private double resolution_km;
+	private double relativeTolerance;
+	private int maxProbes;
+	private double distanceMargin;
+
+	private int nProbes;
+	private double[] E = new double[1];
+	private double[] TER = new double[1];
+	private Point3D bestLocation;
+	private double bestE;
+	private double bestTER;
+	private double best;
+
+	/**
+	 * @param maxE	If true the search maximizes E, else TER
+	 */
+	MaxExposureSearch(CompiledScene scene, boolean maxE, double resolution_m, double relativeTolerance, int maxProbes) {
+		if (scene.getNGenericStations() > 0)
+			throw new IllegalArgumentException("Only DirectivityCat2BS stations with FreeSpace can be bounded");
+		this.scene = scene;
+		this.maxE = maxE;
+		this.resolution_km = resolution_m/1000;
+		this.relativeTolerance = relativeTolerance;
+		this.maxProbes = maxProbes;
+		// The kernel distance can be shorter than the great circle distance (see RadioIndex)
+		distanceMargin = RadioIndex.getDistanceMargin(scene.isProjected());
+	}
+
+	MaxExposure search(Point2D coord1, Point2D coord2, double heightMin, double heightMax) {
+		int nRadios = scene.getNCompiledRadios();
+		int[] all = new int[nRadios];
+		for (int r = 0; r < nRadios; r++)
+			all[r] = r;
+		Cell root = new Cell(min(coord1.getLatitude(), coord2.getLatitude()), max(coord1.getLatitude(), coord2.getLatitude()),
+				min(coord1.getLongitude(), coord2.getLongitude()), max(coord1.getLongitude(), coord2.getLongitude()),
+				min(heightMin, heightMax), max(heightMin, heightMax), all, 0);
+		evalCenter(root);
+
+		PriorityQueue<Cell> queue = new PriorityQueue<Cell>();
+		queue.add(root);
+		double unresolved = 0;
+		while (!queue.isEmpty()) {
+			Cell cell = queue.peek();
+			if (cell.bound <= best*(1 + relativeTolerance) || nProbes >= maxProbes)
+				break;
+			queue.poll();
+			if (cell.getLongestSide() < resolution_km) {
+				unresolved = max(unresolved, cell.bound);
+				continue;
+			}
+			for (Cell half : cell.split()) {
+				evalCenter(half);
+				if (half.bound > best*(1 + relativeTolerance))
+					queue.add(half);
+			}
+		}
+		double upperBound = max(best*(1 + relativeTolerance), unresolved);
+		if (!queue.isEmpty())
+			upperBound = max(upperBound, queue.peek().bound);
+		return new MaxExposure(bestLocation, bestE, bestTER, upperBound, nProbes);
+	}
+	private void evalCenter(Cell cell) {
+		double lat = 0.5*(cell.latMin + cell.latMax);
+		double lon = 0.5*(cell.longMin + cell.longMax);
+		double h = 0.5*(cell.hMin + cell.hMax);
+		scene.evalEandTERAtProbe(lat, lon, h, E, TER, 0);
+		nProbes++;
+		double value = maxE ? E[0] : TER[0];
+		if (bestLocation == null || value > best) {
+			best = value;
+			bestE = E[0];
+			bestTER = TER[0];
+			bestLocation = new Point3D(lat, lon, h);
+		}
+	}
+	/**
+	 * Returns the bound of a radio source, in the units summed by the cells: E^2 or TER
+	 */
+	private double getBound(int r, Cell cell) {
+		double squaredE = scene.getSquaredEBound(r, getMinDistanceKM(r, cell), getMaxDistanceKM(r, cell), cell.hMin, cell.hMax);
+		return maxE ? squaredE : squaredE*scene.getTERPerSquaredE(r);
+	}
+	/**
+	 * Returns a lower bound of the 2D distance between the radio source and the probes of the cell
+	 * (haversine, with every term replaced by a lower bound over the cell)
+	 */
+	private double getMinDistanceKM(int r, Cell cell) {
+		double lat = scene.getRadioLatitude(r);
+		double lon = scene.getRadioLongitude(r);
+		double dLat = lat < cell.latMin ? cell.latMin - lat : lat > cell.latMax ? lat - cell.latMax : 0;
+		double dLong = 0;
+		if (lon < cell.longMin || lon > cell.longMax)
+			dLong = min(longitudeDifference(lon, cell.longMin), longitudeDifference(lon, cell.longMax));
+		double c = cos(lat*DEGREE_TO_RAD)*cos(max(abs(cell.latMin), abs(cell.latMax))*DEGREE_TO_RAD);
+		double sinHalfLat = sin(0.5*dLat*DEGREE_TO_RAD);
+		double sinHalfLong = sin(0.5*dLong*DEGREE_TO_RAD);
+		double h = sinHalfLat*sinHalfLat + max(0, c)*sinHalfLong*sinHalfLong;
+		return 2*EARTH_RADIUS_KM*asin(sqrt(min(1, h)))*distanceMargin;
+	}
+	/**
+	 * Returns an upper bound of the 2D distance between the radio source and the probes of the cell
+	 */
+	private double getMaxDistanceKM(int r, Cell cell) {
+		double lat = scene.getRadioLatitude(r);
+		double lon = scene.getRadioLongitude(r);
+		double dLat = max(abs(lat - cell.latMin), abs(lat - cell.latMax));
+		double dLong = max(longitudeDifference(lon, cell.longMin), longitudeDifference(lon, cell.longMax));
+		if (lon >= cell.longMin && lon <= cell.longMax)
+			dLong = max(lon - cell.longMin, cell.longMax - lon);
+		double sinHalfLat = sin(0.5*min(dLat, 180)*DEGREE_TO_RAD);
+		double sinHalfLong = sin(0.5*min(dLong, 180)*DEGREE_TO_RAD);
+		double h = sinHalfLat*sinHalfLat + cos(lat*DEGREE_TO_RAD)*sinHalfLong*sinHalfLong;
+		return 2*EARTH_RADIUS_KM*asin(sqrt(min(1, h)))/distanceMargin;
+	}
+	private static double longitudeDifference(double long1, double long2) {
+		double d = abs(long1 - long2) % 360;
+		return min(d, 360 - d);
+	}
+
+	private class Cell implements Comparable<Cell> {
+		private double latMin, latMax, longMin, longMax, hMin, hMax;
+		// Radio sources bounded one by one, and the sum of the bounds of the others
+		private int[] near;
+		private double farBound;
+		private double bound;
+
+		Cell(double latMin, double latMax, double longMin, double longMax, double hMin, double hMax,
+				int[] parentNear, double parentFarBound) {
+			this.latMin = latMin;
+			this.latMax = latMax;
+			this.longMin = longMin;
+			this.longMax = longMax;
+			this.hMin = hMin;
+			this.hMax = hMax;
+
+			double cutoff = FAR_FRACTION*(maxE ? best*best : best)/max(1, parentNear.length);
+			near = new int[parentNear.length];
+			int nNear = 0;
+			double sum = parentFarBound;
+			farBound = parentFarBound;
+			for (int r : parentNear) {
+				double b = getBound(r, this);
+				sum += b;
+				if (b < cutoff)
+					farBound += b;
+				else
+					near[nNear++] = r;
+			}
+			near = Arrays.copyOf(near, nNear);
+			bound = maxE ? sqrt(sum) : sum;
+		}
+		double getLongestSide() {
+			double latKm = (latMax - latMin)*KM_PER_DEGREE;
+			double longKm = (longMax - longMin)*KM_PER_DEGREE*cos(0.5*(latMin + latMax)*DEGREE_TO_RAD);
+			return max(max(latKm, longKm), (hMax - hMin)/1000);
+		}
+		Cell[] split() {
+			double latKm = (latMax - latMin)*KM_PER_DEGREE;
+			double longKm = (longMax - longMin)*KM_PER_DEGREE*cos(0.5*(latMin + latMax)*DEGREE_TO_RAD);
+			double hKm = (hMax - hMin)/1000;
+			if (latKm >= longKm && latKm >= hKm) {
+				double middle = 0.5*(latMin + latMax);
+				return new Cell[]{
+					new Cell(latMin, middle, longMin, longMax, hMin, hMax, near, farBound),
+					new Cell(middle, latMax, longMin, longMax, hMin, hMax, near, farBound)};
+			}
+			if (longKm >= hKm) {
+				double middle = 0.5*(longMin + longMax);
+				return new Cell[]{
+					new Cell(latMin, latMax, longMin, middle, hMin, hMax, near, farBound),
+					new Cell(latMin, latMax, middle, longMax, hMin, hMax, near, farBound)};
+			}
+			double middle = 0.5*(hMin + hMax);
+			return new Cell[]{
+				new Cell(latMin, latMax, longMin, longMax, hMin, middle, near, farBound),
+				new Cell(latMin, latMax, longMin, longMax, middle, hMax, near, farBound)};
+		}
+		public int compareTo(Cell other) {
+			return Double.compare(other.bound, bound);
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package telecom.nir;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.min;
+import static java.lang.Math.pow;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and timers of the evaluations, disabled by default. While disabled the evaluations only
+ * test a flag; while enabled they add to striped counters (LongAdder), so threads do not contend.
+ *
+ * The phases are timed where they are separate calls: COMPILE is NIR.compile, EVALUATE the rows
+ * of planes and volumes (the tiles) and the chunks of evalEandTERAtProbes, WRITE the rows written
+ * to files and contours. PATTERN (getEIRPdBm) and PATH_LOSS (getPathLoss, with its geodesy) are
+ * timed only for the stations evaluated through the generic interface: the compiled kernel fuses
+ * them in one loop over the radio sources, so it reports instead the radio sources visited (those
+ * not skipped by the TER tolerance, see CompiledScene).
+ *
+ * The tile latencies are kept in a histogram of powers of two: element b counts the tiles that
+ * took [2^b, 2^(b+1)) microseconds (element 0 also those below 1 microsecond).
+ *
+ * registerMBean publishes the metrics through JMX. The evaluations also emit the JFR events
+ * telecom.nir.PlaneTile and telecom.nir.PlaneWrite when a flight recording enables them, whether
+ * the metrics are enabled or not.
+ */
+public class Metrics implements MetricsMBean {
+	public enum Phase {COMPILE, EVALUATE, PATTERN, PATH_LOSS, WRITE}
+
+	public static final String OBJECT_NAME = "telecom.nir:type=Metrics";
+	private static final int HISTOGRAM_SIZE = 40;
+	private static final Metrics instance = new Metrics();
+
+	// Read by the evaluations before recording anything
+	static volatile boolean enabled = false;
+
+	private LongAdder probes = new LongAdder();
+	private LongAdder radioSources = new LongAdder();
+	private LongAdder tiles = new LongAdder();
+	private LongAdder[] histogram = new LongAdder[HISTOGRAM_SIZE];
+	private LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+	private LongAdder[] phaseCount = new LongAdder[Phase.values().length];
+	private volatile long resetTime = System.nanoTime();
+
+	private Metrics() {
+		for (int b = 0; b < HISTOGRAM_SIZE; b++)
+			histogram[b] = new LongAdder();
+		for (int p = 0; p < phaseNanos.length; p++) {
+			phaseNanos[p] = new LongAdder();
+			phaseCount[p] = new LongAdder();
+		}
+	}
+	public static Metrics getInstance() {
+		return instance;
+	}
+	/**
+	 * Registers the metrics in the platform MBean server, under OBJECT_NAME
+	 */
+	public static synchronized void registerMBean() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(OBJECT_NAME);
+		if (!server.isRegistered(name))
+			server.registerMBean(instance, name);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+	/**
+	 * Enables or disables the recording. The counters are kept (see reset).
+	 */
+	public void setEnabled(boolean enabled) {
+		Metrics.enabled = enabled;
+	}
+	/**
+	 * Sets every counter to zero and restarts the clock of getProbesPerSecond
+	 */
+	public void reset() {
+		probes.reset();
+		radioSources.reset();
+		tiles.reset();
+		for (LongAdder bucket : histogram)
+			bucket.reset();
+		for (int p = 0; p < phaseNanos.length; p++) {
+			phaseNanos[p].reset();
+			phaseCount[p].reset();
+		}
+		resetTime = System.nanoTime();
+	}
+
+	static void addProbes(long nProbes, long nRadioSources) {
+		instance.probes.add(nProbes);
+		instance.radioSources.add(nRadioSources);
+	}
+	static void addRadioSources(long nRadioSources) {
+		instance.radioSources.add(nRadioSources);
+	}
+	static void addPhase(Phase phase, long nanos) {
+		instance.phaseNanos[phase.ordinal()].add(nanos);
+		instance.phaseCount[phase.ordinal()].increment();
+	}
+	static void addTile(long nanos) {
+		addPhase(Phase.EVALUATE, nanos);
+		instance.tiles.increment();
+		long micros = nanos/1000;
+		int bucket = micros <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+		instance.histogram[min(bucket, HISTOGRAM_SIZE - 1)].increment();
+	}
+
+	public long getProbes() {
+		return probes.sum();
+	}
+	/**
+	 * Returns the probes evaluated per second of wall time since the last reset
+	 */
+	public double getProbesPerSecond() {
+		double seconds = (System.nanoTime() - resetTime)/1e9;
+		return seconds > 0 ? probes.sum()/seconds : 0;
+	}
+	public long getRadioSourcesVisited() {
+		return radioSources.sum();
+	}
+	public double getRadioSourcesPerProbe() {
+		long n = probes.sum();
+		return n > 0 ? (double) radioSources.sum()/n : 0;
+	}
+
+	public long getTiles() {
+		return tiles.sum();
+	}
+	public long[] getTileLatencyHistogram() {
+		long[] result = new long[HISTOGRAM_SIZE];
+		for (int b = 0; b < HISTOGRAM_SIZE; b++)
+			result[b] = histogram[b].sum();
+		return result;
+	}
+	/**
+	 * Returns an upper bound (the end of the bucket) of the fraction q of the tile latencies, in microseconds
+	 */
+	public double getTileLatencyQuantileMicros(double q) {
+		long[] counts = getTileLatencyHistogram();
+		long total = 0;
+		for (long count : counts)
+			total += count;
+		if (total == 0)
+			return 0;
+		long target = (long) ceil(q*total);
+		long accumulated = 0;
+		for (int b = 0; b < HISTOGRAM_SIZE; b++) {
+			accumulated += counts[b];
+			if (accumulated >= target)
+				return pow(2, b + 1);
+		}
+		return Double.POSITIVE_INFINITY;
+	}
+	public double getTileLatencyP50Micros() {
+		return getTileLatencyQuantileMicros(0.5);
+	}
+	public double getTileLatencyP99Micros() {
+		return getTileLatencyQuantileMicros(0.99);
+	}
+
+	public long getPhaseNanos(Phase phase) {
+		return phaseNanos[phase.ordinal()].sum();
+	}
+	/**
+	 * Returns the number of timed sections of the phase (tiles, chunks, calls or blocks)
+	 */
+	public long getPhaseCount(Phase phase) {
+		return phaseCount[phase.ordinal()].sum();
+	}
+	public double getCompileMillis() {
+		return getPhaseNanos(Phase.COMPILE)/1e6;
+	}
+	public double getEvaluateMillis() {
+		return getPhaseNanos(Phase.EVALUATE)/1e6;
+	}
+	public double getPatternMillis() {
+		return getPhaseNanos(Phase.PATTERN)/1e6;
+	}
+	public double getPathLossMillis() {
+		return getPhaseNanos(Phase.PATH_LOSS)/1e6;
+	}
+	public double getWriteMillis() {
+		return getPhaseNanos(Phase.WRITE)/1e6;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder str = new StringBuilder();
+		str.append("probes ").append(getProbes())
+				.append(String.format(" (%.1f/s), radio sources/probe %.2f, tiles %d (p50 %.0f us, p99 %.0f us)",
+						getProbesPerSecond(), getRadioSourcesPerProbe(), getTiles(), getTileLatencyP50Micros(), getTileLatencyP99Micros()));
+		for (Phase phase : Phase.values())
+			str.append(String.format(", %s %.3f ms", phase.toString().toLowerCase(), getPhaseNanos(phase)/1e6));
+		return str.toString();
+	}
+}
@@ -0,0 +1,26 @@
+package telecom.nir;
+
+/**
+ * The JMX view of Metrics (see Metrics.registerMBean)
+ */
+public interface MetricsMBean {
+	boolean isEnabled();
+	void setEnabled(boolean enabled);
+	void reset();
+
+	long getProbes();
+	double getProbesPerSecond();
+	long getRadioSourcesVisited();
+	double getRadioSourcesPerProbe();
+
+	long getTiles();
+	long[] getTileLatencyHistogram();
+	double getTileLatencyP50Micros();
+	double getTileLatencyP99Micros();
+
+	double getCompileMillis();
+	double getEvaluateMillis();
+	double getPatternMillis();
+	double getPathLossMillis();
+	double getWriteMillis();
+}
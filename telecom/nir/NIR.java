@@ -10,110 +10,619 @@ import static telecom.util.Functions.dB2Watt;
 import static telecom.util.Functions.getICNIRPLimits;
 import static telecom.util.Functions.power2electricfield;
 
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
 
 import telecom.basestation.BaseStation;
+import telecom.basestation.BaseStationLoader;
+import telecom.basestation.DirectivityCat2BS;
+import telecom.basestation.PatternTable;
 import telecom.propagation.PropagationModel;
+import telecom.util.FloatMatrix;
 import telecom.util.Pair;
 import telecom.util.Point2D;
 import telecom.util.Point3D;
 import telecom.util.SimpleMatrix;
 
 public class NIR {
+	// Memory budget of the results of saveEandTerAtFile and saveEandTerAtRasterFile
+	private static final long DEFAULT_BLOCK_SIZE_BYTES = 64L << 20;
+	// Rows of double evaluated before they are rounded by evalEandTERAtPlaneFloat32
+	private static final int FLOAT32_BLOCK_ROWS = 64;
+
 	private Vector<Pair<BaseStation, PropagationModel>> baseStations;
+	private double terTolerance = 0;
+	private ResultCache resultCache;
+	// Content hash of the scenario, null when it must be computed again
+	private volatile String scenarioHash;
 	
 	public NIR() {
 		baseStations = new Vector<Pair<BaseStation, PropagationModel>>();
 	}
 	public void clearBaseStations() {
 		baseStations.clear();
+		scenarioChanged();
 	}
 	public void addBaseStation(BaseStation bs, PropagationModel pm) {
 		baseStations.add(new Pair<BaseStation, PropagationModel>(bs, pm));
+		scenarioChanged();
 	}
-	
-	public Pair<Double, Double> evalEandTERAtProbe(Point3D probe) {
-		double E_field_total = 0;
-		double TER = 0;
-		
-		for (Pair<BaseStation, PropagationModel> pairBsPm : baseStations) {
-			BaseStation bs = pairBsPm.getFirst();
-			PropagationModel pm = pairBsPm.getSecond();
-
-			int NRadioSources = bs.getNRadioSources();
-			double[] freq_mhz = bs.getFrequencyMHz();
-			double[] eirpToProbe_dBm = bs.getEIRPdBm(probe);
-			for (int i = 0; i < NRadioSources; i++) {
-				Point3D txPos = new Point3D(bs.getLatitude(), 
-						bs.getLongitude(), bs.getHeight()[i]);
-				double rxIsotropicPower = eirpToProbe_dBm[i] - 30 
-						- pm.getPathLoss(txPos, probe, freq_mhz[i]);
-
-				double E_field_bs_i = power2electricfield(dB2Watt(rxIsotropicPower), freq_mhz[i]);
-				double ER_bs_i = pow((E_field_bs_i/getICNIRPLimits(freq_mhz[i])), 2);
-
-				E_field_total += pow(E_field_bs_i, 2);
-				TER += ER_bs_i;
+	/**
+	 * Returns a copy of the list of base stations and their propagation models
+	 */
+	public List<Pair<BaseStation, PropagationModel>> getBaseStations() {
+		return new ArrayList<Pair<BaseStation, PropagationModel>>(baseStations);
+	}
+	/**
+	 * Adds the base stations of a scenario file (see BaseStationLoader), all with the propagation model
+	 * pm. Returns the lines that could not be loaded.
+	 */
+	public List<String> loadBaseStations(String fileName, PropagationModel pm) throws IOException {
+		Pair<List<BaseStation>, List<String>> loaded = BaseStationLoader.load(fileName);
+		for (BaseStation bs : loaded.getFirst())
+			addBaseStation(bs, pm);
+		return loaded.getSecond();
+	}
+	/**
+	 * Sets the maximum TER (%) that the compiled evaluations (planes and compile()) may drop at each
+	 * probe by skipping far base stations. The default, 0, evaluates every base station.
+	 */
+	public void setTERTolerance(double terTolerance) {
+		this.terTolerance = terTolerance;
+		scenarioChanged();
+	}
+	public double getTERTolerance() {
+		return terTolerance;
+	}
+	/**
+	 * Keeps the results of evalEandTERAtProbe, and of evalEandTERAtPlane if the cache keeps planes
+	 * (see ResultCache.isCachingPlanes), in the cache, or stops keeping them if cache is null. The
+	 * entries are removed from the cache when the base stations or the TER tolerance change, and are
+	 * not used after a change of the kernel, the geodesy or the resolution of the pattern tables. The
+	 * cached planes are evaluated on the lattice of the cache, which moves the probes by less than
+	 * ResultCache.QUANTUM degrees per cell (see ResultCache).
+	 * 
+	 * Note: a base station changed in place is not seen by the cache; add it again instead.
+	 */
+	public void setResultCache(ResultCache cache) {
+		this.resultCache = cache;
+	}
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+	/**
+	 * Returns the SHA-256 (hexadecimal) of the base stations (BaseStation.toString and the steps of
+	 * their pattern tables), their propagation models (class names) and the TER tolerance, so equal
+	 * scenarios have equal hashes
+	 */
+	public String getScenarioHash() {
+		String hash = scenarioHash;
+		if (hash == null) {
+			MessageDigest digest;
+			try {
+				digest = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
 			}
+			digest.update(Double.toString(terTolerance).getBytes(StandardCharsets.UTF_8));
+			for (Pair<BaseStation, PropagationModel> pairBsPm : baseStations) {
+				BaseStation bs = pairBsPm.getFirst();
+				PropagationModel pm = pairBsPm.getSecond();
+				StringBuilder str = new StringBuilder("\n").append(bs).append('\t').append(pm == null ? "" : pm.getClass().getName());
+				// The tables depend on the resolution when the station was created (see PatternTable)
+				if (bs instanceof DirectivityCat2BS && ((DirectivityCat2BS) bs).getPatternTables() != null)
+					for (PatternTable table : ((DirectivityCat2BS) bs).getPatternTables())
+						str.append('\t').append(table.getStepRad());
+				digest.update(str.toString().getBytes(StandardCharsets.UTF_8));
+			}
+			StringBuilder str = new StringBuilder();
+			for (byte b : digest.digest())
+				str.append(String.format("%02x", b));
+			hash = str.toString();
+			scenarioHash = hash;
 		}
-		E_field_total = pow(E_field_total, 0.5);
-		TER *= 100;
-
-		return new Pair<Double, Double>(E_field_total, TER);
+		return hash;
+	}
+	private void scenarioChanged() {
+		String hash = scenarioHash;
+		scenarioHash = null;
+		if (resultCache != null && hash != null)
+			resultCache.invalidate(hash);
 	}
 	
+	public Pair<Double, Double> evalEandTERAtProbe(Point3D probe) {
+		double[] E = new double[1];
+		double[] TER = new double[1];
+		evalEandTERAtProbe(probe, E, TER, 0);
+		return new Pair<Double, Double>(E[0], TER[0]);
+	}
+
+	/**
+	 * Evaluates E and TER at the probe and stores them in resultE[offset] and resultTER[offset].
+	 * 
+	 * Note: the base stations are evaluated through the generic interface, which allocates objects.
+	 * Use a CompiledScene (see compile()) to evaluate many probes without garbage.
+	 */
+	public void evalEandTERAtProbe(Point3D probe, double[] resultE, double[] resultTER, int offset) {
+		if (resultCache != null)
+			resultCache.evalEandTERAtProbe(this, probe, resultE, resultTER, offset);
+		else
+			evalEandTERAtProbeUncached(probe, resultE, resultTER, offset);
+	}
+	void evalEandTERAtProbeUncached(Point3D probe, double[] resultE, double[] resultTER, int offset) {
+		double[] sums = new double[2];
+		for (Pair<BaseStation, PropagationModel> pairBsPm : baseStations)
+			addContribution(pairBsPm.getFirst(), pairBsPm.getSecond(), probe, sums);
+		if (Metrics.enabled)
+			Metrics.addProbes(1, 0);
+
+		resultE[offset] = pow(sums[0], 0.5);
+		resultTER[offset] = sums[1] * 100;
+	}
+	/**
+	 * Adds the squared E field of every radio source of bs to sums[0] and its exposure ratio to sums[1]
+	 */
+	static void addContribution(BaseStation bs, PropagationModel pm, Point3D probe, double[] sums) {
+		boolean timed = Metrics.enabled;
+		long start = timed ? System.nanoTime() : 0;
+		long pathLossNanos = 0;
+		int NRadioSources = bs.getNRadioSources();
+		double[] freq_mhz = bs.getFrequencyMHz();
+		double[] eirpToProbe_dBm = bs.getEIRPdBm(probe);
+		if (timed)
+			Metrics.addPhase(Metrics.Phase.PATTERN, System.nanoTime() - start);
+		for (int i = 0; i < NRadioSources; i++) {
+			Point3D txPos = new Point3D(bs.getLatitude(), 
+					bs.getLongitude(), bs.getHeight()[i]);
+			long startPathLoss = timed ? System.nanoTime() : 0;
+			double pathLoss = pm.getPathLoss(txPos, probe, freq_mhz[i]);
+			if (timed)
+				pathLossNanos += System.nanoTime() - startPathLoss;
+			double rxIsotropicPower = eirpToProbe_dBm[i] - 30 - pathLoss;
+
+			double E_field_bs_i = power2electricfield(dB2Watt(rxIsotropicPower), freq_mhz[i]);
+			double ER_bs_i = pow((E_field_bs_i/getICNIRPLimits(freq_mhz[i])), 2);
+
+			sums[0] += pow(E_field_bs_i, 2);
+			sums[1] += ER_bs_i;
+		}
+		if (timed) {
+			Metrics.addPhase(Metrics.Phase.PATH_LOSS, pathLossNanos);
+			Metrics.addRadioSources(NRadioSources);
+		}
+	}
+	public void evalEandTERAtProbes(double[] latitude, double[] longitude, double[] height, double[] resultE, double[] resultTER) {
+		evalEandTERAtProbes(latitude, longitude, height, resultE, resultTER, ForkJoinPool.commonPool());
+	}
+	/**
+	 * Evaluates E and TER at the probes (latitude[p], longitude[p], height[p]) and stores them in
+	 * resultE[p] and resultTER[p]. The probes are evaluated in the order of a Hilbert curve, so
+	 * neighbor probes are evaluated together, in chunks run by the threads of pool (serially if pool
+	 * is null). The results are the same as the compiled scene (see compile()) at each probe.
+	 */
+	public void evalEandTERAtProbes(double[] latitude, double[] longitude, double[] height, 
+			double[] resultE, double[] resultTER, ForkJoinPool pool) {
+		compile().evalEandTERAtProbes(latitude, longitude, height, resultE, resultTER, pool);
+	}
+	/**
+	 * Freezes the current base stations into a CompiledScene, with the current TER tolerance. The
+	 * scene does not see later changes in the base stations.
+	 */
+	public CompiledScene compile() {
+		return compile(CompiledScene.isFloat32KernelEnabled());
+	}
+	/**
+	 * Same as compile(), with the single precision kernel if float32Kernel instead of the kernel
+	 * selected by CompiledScene.setFloat32Kernel
+	 */
+	private CompiledScene compile(boolean float32Kernel) {
+		return compile(terTolerance, float32Kernel);
+	}
+	/**
+	 * Same as compile(boolean), with the given TER tolerance instead of the current one
+	 */
+	private CompiledScene compile(double terTolerance, boolean float32Kernel) {
+		long start = Metrics.enabled ? System.nanoTime() : 0;
+		CompiledScene scene = new CompiledScene(new ArrayList<Pair<BaseStation, PropagationModel>>(baseStations), terTolerance, float32Kernel);
+		if (Metrics.enabled)
+			Metrics.addPhase(Metrics.Phase.COMPILE, System.nanoTime() - start);
+		return scene;
+	}
+	/**
+	 * Returns E and TER at the cells of the plane between coord1 and coord2 at the height, with
+	 * nStepsLongitude columns. If the result cache keeps planes (see setResultCache) the plane is
+	 * assembled from the tiles of the cache, evaluated on its lattice: it then differs from the plane
+	 * evaluated without cache by the rounding of the distances (relative differences of a few 1e-6).
+	 */
 	public Pair<SimpleMatrix, SimpleMatrix> evalEandTERAtPlane(Point2D coord1, Point2D coord2, double height, int nStepsLongitude) {
-		double latitudeMin = min(coord1.getLatitude(), coord2.getLatitude());
-		double longitudeMin = min(coord1.getLongitude(), coord2.getLongitude());
-		double latitudeMax = max(coord1.getLatitude(), coord2.getLatitude());
-		double longitudeMax = max(coord1.getLongitude(), coord2.getLongitude());
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		if (resultCache != null && resultCache.isCachingPlanes())
+			return resultCache.evalEandTERAtPlane(this, grid, height, null);
+		int nStepsLatitude = grid.getNStepsLatitude();
+
+		SimpleMatrix resultE = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
+		SimpleMatrix resultTER = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
 
-		int nStepsLatitude = (int) (((latitudeMax-latitudeMin)/(longitudeMax-longitudeMin))*nStepsLongitude);
-		if (nStepsLatitude < 1)
-			nStepsLatitude = 1;
-		double stepLong = (longitudeMax-longitudeMin)/nStepsLongitude;
-		double stepLat = (latitudeMax-latitudeMin)/nStepsLatitude;
+		CompiledScene scene = compile();
+		double[] heights = new double[]{height};
+		SimpleMatrix[] planeE = new SimpleMatrix[]{resultE};
+		SimpleMatrix[] planeTER = new SimpleMatrix[]{resultTER};
+		for (int i = 0; i < nStepsLatitude; i++)
+			evalRow(scene, grid, i, heights, planeE, planeTER, i);
+
+		return new Pair<SimpleMatrix, SimpleMatrix>(resultE, resultTER);
+	}
+	/**
+	 * Same as evalEandTERAtPlane(coord1, coord2, height, nStepsLongitude), but the rows of the plane
+	 * are evaluated by nThreads threads. The result is identical to the serial evaluation.
+	 */
+	public Pair<SimpleMatrix, SimpleMatrix> evalEandTERAtPlane(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, int nThreads) {
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try {
+			return evalEandTERAtPlane(coord1, coord2, height, nStepsLongitude, pool);
+		} finally {
+			pool.shutdown();
+		}
+	}
+	/**
+	 * Same as evalEandTERAtPlane(coord1, coord2, height, nStepsLongitude), but the rows of the plane
+	 * are evaluated by the threads of pool. The result is identical to the serial evaluation (with
+	 * the same result cache).
+	 * 
+	 * Note: the base stations must not be changed while the plane is evaluated.
+	 */
+	public Pair<SimpleMatrix, SimpleMatrix> evalEandTERAtPlane(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, ForkJoinPool pool) {
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		if (resultCache != null && resultCache.isCachingPlanes())
+			return resultCache.evalEandTERAtPlane(this, grid, height, pool);
+		int nStepsLatitude = grid.getNStepsLatitude();
 
 		SimpleMatrix resultE = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
 		SimpleMatrix resultTER = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
 
-		Point3D probe = new Point3D(0, 0, height);
-		int i = 0;
-		for (double latProbe = latitudeMax - 0.5*stepLat; i < nStepsLatitude; latProbe -= stepLat, i++) {
-			int j = 0;
-			for (double longProbe = longitudeMin + 0.5*stepLong; j < nStepsLongitude; longProbe += stepLong, j++) {
-					probe.setLatitude(latProbe);
-					probe.setLongitude(longProbe);
-
-					Pair<Double, Double> EandTERAtProbe = evalEandTERAtProbe(probe);
-					resultE.setElement(i, j, EandTERAtProbe.getFirst());
-					resultTER.setElement(i, j, EandTERAtProbe.getSecond());
+		pool.invoke(new PlaneRowsTask(this, compile(), grid, height, resultE, resultTER, 0, 0, nStepsLatitude));
+
+		return new Pair<SimpleMatrix, SimpleMatrix>(resultE, resultTER);
+	}
+	/**
+	 * Same as evalEandTERAtPlane(coord1, coord2, height, nStepsLongitude, pool), in single precision:
+	 * the compiled radios are evaluated by the float kernel (see CompiledScene.setFloat32Kernel; the
+	 * kernel in double if the vector module is absent) and E and TER are stored as float, half the
+	 * memory of the double planes. The rows are evaluated in blocks of FLOAT32_BLOCK_ROWS rows,
+	 * serially if pool is null. The result cache is not used. See getFloat32Accuracy for the error.
+	 */
+	public Pair<FloatMatrix, FloatMatrix> evalEandTERAtPlaneFloat32(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, ForkJoinPool pool) {
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		int nStepsLatitude = grid.getNStepsLatitude();
+
+		FloatMatrix resultE = new FloatMatrix(nStepsLatitude, nStepsLongitude);
+		FloatMatrix resultTER = new FloatMatrix(nStepsLatitude, nStepsLongitude);
+		try {
+			saveVolume(compile(true), grid, new double[]{height}, new PlaneRowWriter[]{new FloatPlaneWriter(resultE)},
+					new PlaneRowWriter[]{new FloatPlaneWriter(resultTER)}, 16L*nStepsLongitude*FLOAT32_BLOCK_ROWS, pool);
+		} catch (IOException e) {
+			// FloatPlaneWriter does not throw
+			throw new IllegalStateException(e);
+		}
+		return new Pair<FloatMatrix, FloatMatrix>(resultE, resultTER);
+	}
+	/**
+	 * Evaluates the plane with the single precision kernel and with the kernel in double (selected
+	 * by CompiledScene.setVectorKernel and setLinearKernel) and returns the errors of the former.
+	 * A coarse plane over the area of interest is enough: the errors depend on the distances and the
+	 * angles to the base stations, not on the resolution.
+	 */
+	public Float32Accuracy getFloat32Accuracy(Point2D coord1, Point2D coord2, double height, int nStepsLongitude) {
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		CompiledScene sceneDouble = compile(false);
+		CompiledScene sceneFloat = compile(true);
+		double[] rowE = new double[nStepsLongitude];
+		double[] rowTER = new double[nStepsLongitude];
+		double[] rowEFloat = new double[nStepsLongitude];
+		double[] rowTERFloat = new double[nStepsLongitude];
+
+		Float32Accuracy accuracy = new Float32Accuracy(sceneFloat.isFloat32Kernel());
+		for (int i = 0; i < grid.getNStepsLatitude(); i++) {
+			evalRow(sceneDouble, grid, i, height, rowE, rowTER);
+			evalRow(sceneFloat, grid, i, height, rowEFloat, rowTERFloat);
+			for (int j = 0; j < nStepsLongitude; j++)
+				accuracy.add(rowE[j], rowTER[j], rowEFloat[j], rowTERFloat[j]);
+		}
+		return accuracy;
+	}
+	/**
+	 * Evaluates the plane on a quadtree that starts with the grid of nStepsLongitude columns and is
+	 * refined where TER crosses one of the thresholds (%) or changes by more than maxRatio inside a
+	 * cell, up to maxDepth splits per cell and maxProbes probes (see AdaptivePlane).
+	 */
+	public AdaptivePlane evalAdaptivePlane(Point2D coord1, Point2D coord2, double height, int nStepsLongitude,
+			int maxDepth, double maxRatio, double[] thresholds, int maxProbes) {
+		return new AdaptivePlane(compile(), coord1, coord2, height, nStepsLongitude, maxDepth, maxRatio, thresholds, maxProbes);
+	}
+	/**
+	 * Returns a plane to be evaluated coarse to fine by ProgressivePlane.evaluate, in nLevels passes
+	 * whose strides go from 2^(nLevels - 1) cells down to 1. The base stations are compiled now.
+	 */
+	public ProgressivePlane createProgressivePlane(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, int nLevels) {
+		return new ProgressivePlane(compile(), coord1, coord2, height, nStepsLongitude, nLevels);
+	}
+	/**
+	 * Returns a generator of XYZ map tiles of E (fieldE) or TER at the height, that evaluates the finest
+	 * zoom level and aggregates the coarser ones (see TilePyramid). The base stations are compiled now.
+	 */
+	public TilePyramid createTilePyramid(double height, boolean fieldE, TilePyramid.Aggregation aggregation, double threshold) {
+		return new TilePyramid(compile(), height, fieldE, aggregation, threshold);
+	}
+	/**
+	 * Returns the probe with the largest TER (%) in the box between coord1 and coord2 and between
+	 * heightMin and heightMax (m), found by branch and bound (see MaxExposureSearch). The search
+	 * stops when no cell larger than resolution_m can exceed the best value by relativeTolerance, or
+	 * after maxProbes probes; MaxExposure.getUpperBound bounds the true maximum.
+	 * 
+	 * Note: every base station must be a DirectivityCat2BS with FreeSpace propagation.
+	 */
+	public MaxExposure findMaxTER(Point2D coord1, Point2D coord2, double heightMin, double heightMax,
+			double resolution_m, double relativeTolerance, int maxProbes) {
+		// Without tolerance: the search bounds every radio source itself
+		CompiledScene scene = compile(0, CompiledScene.isFloat32KernelEnabled());
+		return new MaxExposureSearch(scene, false, resolution_m, relativeTolerance, maxProbes).search(coord1, coord2, heightMin, heightMax);
+	}
+	/**
+	 * Same as findMaxTER, for the largest E (V/m)
+	 */
+	public MaxExposure findMaxE(Point2D coord1, Point2D coord2, double heightMin, double heightMax,
+			double resolution_m, double relativeTolerance, int maxProbes) {
+		CompiledScene scene = compile(0, CompiledScene.isFloat32KernelEnabled());
+		return new MaxExposureSearch(scene, true, resolution_m, relativeTolerance, maxProbes).search(coord1, coord2, heightMin, heightMax);
+	}
+	/**
+	 * Evaluates the row i of the grid into rowE and rowTER
+	 */
+	private void evalRow(CompiledScene scene, PlaneGrid grid, int i, double height,
+			double[] rowE, double[] rowTER) {
+		double latProbe = grid.getLatitude(i);
+		int nStepsLongitude = grid.getNStepsLongitude();
+		for (int j = 0; j < nStepsLongitude; j++)
+			scene.evalEandTERAtProbe(latProbe, grid.getLongitude(j), height, rowE, rowTER, j);
+	}
+	/**
+	 * Evaluates the row i of the grid at every height into the row matrixRow of resultE[k] and
+	 * resultTER[k]. The horizontal geometry of each probe is computed once for all the heights.
+	 * The scene is read only, so rows can be evaluated concurrently. Each row is a tile of the
+	 * metrics and of the JFR event PlaneTile (see Metrics).
+	 */
+	void evalRow(CompiledScene scene, PlaneGrid grid, int i, double[] heights,
+			SimpleMatrix[] resultE, SimpleMatrix[] resultTER, int matrixRow) {
+		PlaneTileEvent event = new PlaneTileEvent();
+		event.begin();
+		long start = Metrics.enabled ? System.nanoTime() : 0;
+		if (heights.length == 1)
+			evalRow(scene, grid, i, heights[0], resultE[0].getRow(matrixRow), resultTER[0].getRow(matrixRow));
+		else
+			evalRowAtHeights(scene, grid, i, heights, resultE, resultTER, matrixRow);
+		if (Metrics.enabled)
+			Metrics.addTile(System.nanoTime() - start);
+		event.end();
+		if (event.shouldCommit()) {
+			event.row = i;
+			event.columns = grid.getNStepsLongitude();
+			event.heights = heights.length;
+			event.commit();
+		}
+	}
+	private void evalRowAtHeights(CompiledScene scene, PlaneGrid grid, int i, double[] heights,
+			SimpleMatrix[] resultE, SimpleMatrix[] resultTER, int matrixRow) {
+		double latProbe = grid.getLatitude(i);
+		int nStepsLongitude = grid.getNStepsLongitude();
+		int nHeights = heights.length;
+		double[] columnE = new double[nHeights];
+		double[] columnTER = new double[nHeights];
+		for (int j = 0; j < nStepsLongitude; j++) {
+			scene.evalEandTERAtColumn(latProbe, grid.getLongitude(j), heights, columnE, columnTER, 0, 1);
+			for (int k = 0; k < nHeights; k++) {
+				resultE[k].getRow(matrixRow)[j] = columnE[k];
+				resultTER[k].getRow(matrixRow)[j] = columnTER[k];
 			}
 		}
-		return new Pair<SimpleMatrix, SimpleMatrix>(resultE, resultTER);
 	}
 	
-	public void saveEandTerAtFile(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, String eFileName, String TERFileName) throws FileNotFoundException {
-		PrintWriter eFile = new PrintWriter(eFileName);
-		PrintWriter terFile = new PrintWriter(TERFileName);
-
-		Pair<SimpleMatrix, SimpleMatrix> E_TER = evalEandTERAtPlane(coord1, coord2, height, nStepsLongitude);
-		SimpleMatrix E = E_TER.getFirst();
-		SimpleMatrix TER = E_TER.getSecond();
-		int N_lat = E.getSize().getFirst();
-		int N_long = E.getSize().getSecond();
-
-		for (int i = 0; i < N_lat; i++) {
-			for (int j = 0; j < N_long; j++) {
-				eFile.print(E.getElement(i, j) + "\t");
-				terFile.print(TER.getElement(i, j) + "\t");
+	public Pair<SimpleMatrix[], SimpleMatrix[]> evalEandTERAtVolume(Point2D coord1, Point2D coord2, double[] heights, int nStepsLongitude) {
+		return evalEandTERAtVolume(coord1, coord2, heights, nStepsLongitude, null);
+	}
+	/**
+	 * Evaluates E and TER at the planes of the heights over the same grid: element k of the results
+	 * is the plane of heights[k], equal to evalEandTERAtPlane(coord1, coord2, heights[k], nStepsLongitude).
+	 * The 2D distances and their trigonometry are computed once per probe and radio source for all
+	 * the heights. If pool is not null the rows are evaluated by its threads.
+	 */
+	public Pair<SimpleMatrix[], SimpleMatrix[]> evalEandTERAtVolume(Point2D coord1, Point2D coord2, double[] heights, int nStepsLongitude, ForkJoinPool pool) {
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		int nStepsLatitude = grid.getNStepsLatitude();
+		SimpleMatrix[] resultE = new SimpleMatrix[heights.length];
+		SimpleMatrix[] resultTER = new SimpleMatrix[heights.length];
+		for (int k = 0; k < heights.length; k++) {
+			resultE[k] = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
+			resultTER[k] = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
+		}
+
+		CompiledScene scene = compile();
+		if (pool != null) {
+			pool.invoke(new PlaneRowsTask(this, scene, grid, heights, resultE, resultTER, 0, 0, nStepsLatitude));
+		} else {
+			for (int i = 0; i < nStepsLatitude; i++)
+				evalRow(scene, grid, i, heights, resultE, resultTER, i);
+		}
+		return new Pair<SimpleMatrix[], SimpleMatrix[]>(resultE, resultTER);
+	}
+	/**
+	 * Same as saveEandTerAtRasterFile for each height, with the planes of all heights evaluated
+	 * together as in evalEandTERAtVolume: the plane of heights[k] is saved in eFileNames[k] and
+	 * TERFileNames[k]. The memory used by the results is about blockSizeBytes, for all the heights.
+	 */
+	public void saveEandTerAtVolumeRasterFiles(Point2D coord1, Point2D coord2, double[] heights, int nStepsLongitude, 
+			String[] eFileNames, String[] TERFileNames, boolean float32, long blockSizeBytes, ForkJoinPool pool) throws IOException {
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		PlaneRowWriter[] eFiles = new PlaneRowWriter[heights.length];
+		PlaneRowWriter[] terFiles = new PlaneRowWriter[heights.length];
+		try {
+			for (int k = 0; k < heights.length; k++) {
+				eFiles[k] = new RasterWriter(eFileNames[k], grid, heights[k], "V/m", float32);
+				terFiles[k] = new RasterWriter(TERFileNames[k], grid, heights[k], "%", float32);
+			}
+			saveVolume(compile(), grid, heights, eFiles, terFiles, blockSizeBytes, pool);
+		} finally {
+			IOException error = null;
+			for (PlaneRowWriter writer : concat(eFiles, terFiles)) {
+				try {
+					if (writer != null)
+						writer.close();
+				} catch (IOException e) {
+					if (error == null)
+						error = e;
+				}
+			}
+			if (error != null)
+				throw error;
+		}
+	}
+	private static List<PlaneRowWriter> concat(PlaneRowWriter[] a, PlaneRowWriter[] b) {
+		List<PlaneRowWriter> all = new ArrayList<PlaneRowWriter>();
+		for (PlaneRowWriter writer : a)
+			all.add(writer);
+		for (PlaneRowWriter writer : b)
+			all.add(writer);
+		return all;
+	}
+	
+	public void saveEandTerAtFile(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, String eFileName, String TERFileName) throws IOException {
+		saveEandTerAtFile(coord1, coord2, height, nStepsLongitude, eFileName, TERFileName, DEFAULT_BLOCK_SIZE_BYTES, null);
+	}
+	/**
+	 * Saves E and TER of the plane as tab separated text, one line per row of the plane.
+	 * 
+	 * The plane is evaluated in blocks of rows, which are written and discarded before the next
+	 * block is evaluated, so the memory used by the results is about blockSizeBytes (at least one
+	 * row), whatever the size of the plane. If pool is not null, the rows of each block are
+	 * evaluated by its threads. The files are the same for any block size and pool.
+	 */
+	public void saveEandTerAtFile(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, 
+			String eFileName, String TERFileName, long blockSizeBytes, ForkJoinPool pool) throws IOException {
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		PlaneRowWriter eFile = new PlaneTextWriter(eFileName);
+		try {
+			PlaneRowWriter terFile = new PlaneTextWriter(TERFileName);
+			try {
+				savePlane(grid, height, eFile, terFile, blockSizeBytes, pool);
+			} finally {
+				terFile.close();
+			}
+		} finally {
+			eFile.close();
+		}
+	}
+	public void saveEandTerAtRasterFile(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, 
+			String eFileName, String TERFileName, boolean float32) throws IOException {
+		saveEandTerAtRasterFile(coord1, coord2, height, nStepsLongitude, eFileName, TERFileName, float32, DEFAULT_BLOCK_SIZE_BYTES, null);
+	}
+	/**
+	 * Same as saveEandTerAtFile, but the planes are saved in the binary raster format (see Raster),
+	 * as float32 or float64 elements. E is saved in V/m and TER in %.
+	 */
+	public void saveEandTerAtRasterFile(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, 
+			String eFileName, String TERFileName, boolean float32, long blockSizeBytes, ForkJoinPool pool) throws IOException {
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		PlaneRowWriter eFile = new RasterWriter(eFileName, grid, height, "V/m", float32);
+		try {
+			PlaneRowWriter terFile = new RasterWriter(TERFileName, grid, height, "%", float32);
+			try {
+				savePlane(grid, height, eFile, terFile, blockSizeBytes, pool);
+			} finally {
+				terFile.close();
+			}
+		} finally {
+			eFile.close();
+		}
+	}
+	public Contours evalTERContours(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, double[] levels) {
+		return evalTERContours(coord1, coord2, height, nStepsLongitude, levels, DEFAULT_BLOCK_SIZE_BYTES, null);
+	}
+	/**
+	 * Returns the closed polygons where TER (%) crosses each of the levels (see Contours). The plane
+	 * is evaluated in blocks of rows as in saveEandTerAtFile, and the contours are built from the
+	 * rows of each block, so the plane is never stored whole.
+	 */
+	public Contours evalTERContours(Point2D coord1, Point2D coord2, double height, int nStepsLongitude, double[] levels, 
+			long blockSizeBytes, ForkJoinPool pool) {
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		Contours contours = new Contours(grid, levels);
+		try {
+			savePlane(grid, height, null, contours, blockSizeBytes, pool);
+		} catch (IOException e) {
+			// Contours does not throw
+			throw new IllegalStateException(e);
+		}
+		contours.close();
+		return contours;
+	}
+	/**
+	 * Evaluates the plane in blocks of rows and writes every block before evaluating the next one.
+	 * A null writer skips its plane.
+	 */
+	private void savePlane(PlaneGrid grid, double height, PlaneRowWriter eFile, PlaneRowWriter terFile, 
+			long blockSizeBytes, ForkJoinPool pool) throws IOException {
+		saveVolume(compile(), grid, new double[]{height}, new PlaneRowWriter[]{eFile}, new PlaneRowWriter[]{terFile}, blockSizeBytes, pool);
+	}
+	/**
+	 * Same as savePlane, for the planes of the heights. A block holds the same rows of every plane.
+	 */
+	private void saveVolume(CompiledScene scene, PlaneGrid grid, double[] heights, PlaneRowWriter[] eFiles, PlaneRowWriter[] terFiles, 
+			long blockSizeBytes, ForkJoinPool pool) throws IOException {
+		int nStepsLatitude = grid.getNStepsLatitude();
+		int nStepsLongitude = grid.getNStepsLongitude();
+		int nHeights = heights.length;
+		int rowsPerBlock = (int) min(nStepsLatitude, max(1, blockSizeBytes/(16L*nStepsLongitude*nHeights)));
+
+		SimpleMatrix[] blockE = new SimpleMatrix[nHeights];
+		SimpleMatrix[] blockTER = new SimpleMatrix[nHeights];
+		for (int k = 0; k < nHeights; k++) {
+			blockE[k] = new SimpleMatrix(rowsPerBlock, nStepsLongitude);
+			blockTER[k] = new SimpleMatrix(rowsPerBlock, nStepsLongitude);
+		}
+
+		for (int firstRow = 0; firstRow < nStepsLatitude; firstRow += rowsPerBlock) {
+			int lastRow = min(firstRow + rowsPerBlock, nStepsLatitude);
+			if (pool != null) {
+				pool.invoke(new PlaneRowsTask(this, scene, grid, heights, blockE, blockTER, firstRow, firstRow, lastRow));
+			} else {
+				for (int i = firstRow; i < lastRow; i++)
+					evalRow(scene, grid, i, heights, blockE, blockTER, i - firstRow);
+			}
+			PlaneWriteEvent event = new PlaneWriteEvent();
+			event.begin();
+			long start = Metrics.enabled ? System.nanoTime() : 0;
+			for (int k = 0; k < nHeights; k++) {
+				for (int i = firstRow; i < lastRow; i++) {
+					if (eFiles[k] != null)
+						eFiles[k].writeRow(blockE[k].getRow(i - firstRow), nStepsLongitude);
+					if (terFiles[k] != null)
+						terFiles[k].writeRow(blockTER[k].getRow(i - firstRow), nStepsLongitude);
+				}
+			}
+			if (Metrics.enabled)
+				Metrics.addPhase(Metrics.Phase.WRITE, System.nanoTime() - start);
+			event.end();
+			if (event.shouldCommit()) {
+				event.firstRow = firstRow;
+				event.rows = lastRow - firstRow;
+				event.planes = nHeights;
+				event.commit();
 			}
-			eFile.print("\n");
-			terFile.print("\n");
 		}
-		eFile.close();
-		terFile.close();
 	}
 }
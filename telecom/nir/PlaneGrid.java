@@ -0,0 +1,88 @@
+package telecom.nir;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import telecom.util.Point2D;
+
+/**
+ * The latitude/longitude grid sampled by NIR.evalEandTERAtPlane. The probe of the cell (i, j) is
+ * at the center of the cell: row 0 is the northernmost row and column 0 is the westernmost column.
+ *
+ * The coordinates of the rows and columns are computed once, in the same order used by the serial
+ * plane evaluation, so every evaluation path (serial, parallel, streaming) probes exactly the same
+ * points.
+ */
+public class PlaneGrid {
+	private double latitudeMin;
+	private double longitudeMin;
+	private double latitudeMax;
+	private double longitudeMax;
+	private int nStepsLatitude;
+	private int nStepsLongitude;
+	private double stepLat;
+	private double stepLong;
+	private double[] latitudes;
+	private double[] longitudes;
+
+	public PlaneGrid(Point2D coord1, Point2D coord2, int nStepsLongitude) {
+		latitudeMin = min(coord1.getLatitude(), coord2.getLatitude());
+		longitudeMin = min(coord1.getLongitude(), coord2.getLongitude());
+		latitudeMax = max(coord1.getLatitude(), coord2.getLatitude());
+		longitudeMax = max(coord1.getLongitude(), coord2.getLongitude());
+
+		nStepsLatitude = (int) (((latitudeMax-latitudeMin)/(longitudeMax-longitudeMin))*nStepsLongitude);
+		if (nStepsLatitude < 1)
+			nStepsLatitude = 1;
+		this.nStepsLongitude = nStepsLongitude;
+		stepLong = (longitudeMax-longitudeMin)/nStepsLongitude;
+		stepLat = (latitudeMax-latitudeMin)/nStepsLatitude;
+
+		latitudes = new double[nStepsLatitude];
+		int i = 0;
+		for (double latProbe = latitudeMax - 0.5*stepLat; i < nStepsLatitude; latProbe -= stepLat, i++)
+			latitudes[i] = latProbe;
+
+		longitudes = new double[nStepsLongitude];
+		int j = 0;
+		for (double longProbe = longitudeMin + 0.5*stepLong; j < nStepsLongitude; longProbe += stepLong, j++)
+			longitudes[j] = longProbe;
+	}
+
+	public double getLatitudeMin() {
+		return latitudeMin;
+	}
+	public double getLongitudeMin() {
+		return longitudeMin;
+	}
+	public double getLatitudeMax() {
+		return latitudeMax;
+	}
+	public double getLongitudeMax() {
+		return longitudeMax;
+	}
+	public int getNStepsLatitude() {
+		return nStepsLatitude;
+	}
+	public int getNStepsLongitude() {
+		return nStepsLongitude;
+	}
+	public double getStepLatitude() {
+		return stepLat;
+	}
+	public double getStepLongitude() {
+		return stepLong;
+	}
+	/**
+	 * Returns the latitude of the probes of row i
+	 */
+	public double getLatitude(int i) {
+		return latitudes[i];
+	}
+	/**
+	 * Returns the longitude of the probes of column j
+	 */
+	public double getLongitude(int j) {
+		return longitudes[j];
+	}
+}
@@ -0,0 +1,11 @@
+package telecom.nir;
+
+import java.io.IOException;
+
+/**
+ * Receives the rows of a plane, from the northernmost to the southernmost, as NIR evaluates them
+ */
+interface PlaneRowWriter {
+	void writeRow(double[] row, int length) throws IOException;
+	void close() throws IOException;
+}
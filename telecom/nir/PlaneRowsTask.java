@@ -0,0 +1,56 @@
+package telecom.nir;
+
+import java.util.concurrent.RecursiveAction;
+
+import telecom.util.SimpleMatrix;
+
+/**
+ * Evaluates the rows [firstRow, lastRow) of a plane, or of the planes of a volume (one per height),
+ * splitting the range in halves until each task has a single row. The row i of the plane k is
+ * stored in the row i - firstMatrixRow of resultE[k] and resultTER[k], so a matrix can hold a block
+ * of the plane. Each row writes only its own elements of the result matrices, so the result does
+ * not depend on the number of threads.
+ */
+class PlaneRowsTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	private NIR nir;
+	private CompiledScene scene;
+	private PlaneGrid grid;
+	private double[] heights;
+	private SimpleMatrix[] resultE;
+	private SimpleMatrix[] resultTER;
+	private int firstMatrixRow;
+	private int firstRow;
+	private int lastRow;
+
+	PlaneRowsTask(NIR nir, CompiledScene scene, PlaneGrid grid, double height,
+			SimpleMatrix resultE, SimpleMatrix resultTER, int firstMatrixRow, int firstRow, int lastRow) {
+		this(nir, scene, grid, new double[]{height}, new SimpleMatrix[]{resultE}, new SimpleMatrix[]{resultTER}, 
+				firstMatrixRow, firstRow, lastRow);
+	}
+	PlaneRowsTask(NIR nir, CompiledScene scene, PlaneGrid grid, double[] heights,
+			SimpleMatrix[] resultE, SimpleMatrix[] resultTER, int firstMatrixRow, int firstRow, int lastRow) {
+		this.nir = nir;
+		this.scene = scene;
+		this.grid = grid;
+		this.heights = heights;
+		this.resultE = resultE;
+		this.resultTER = resultTER;
+		this.firstMatrixRow = firstMatrixRow;
+		this.firstRow = firstRow;
+		this.lastRow = lastRow;
+	}
+
+	@Override
+	protected void compute() {
+		if (lastRow - firstRow <= 1) {
+			for (int i = firstRow; i < lastRow; i++)
+				nir.evalRow(scene, grid, i, heights, resultE, resultTER, i - firstMatrixRow);
+			return;
+		}
+		int middle = (firstRow + lastRow) >>> 1;
+		invokeAll(new PlaneRowsTask(nir, scene, grid, heights, resultE, resultTER, firstMatrixRow, firstRow, middle),
+				new PlaneRowsTask(nir, scene, grid, heights, resultE, resultTER, firstMatrixRow, middle, lastRow));
+	}
+}
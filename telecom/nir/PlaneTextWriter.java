@@ -0,0 +1,55 @@
+package telecom.nir;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the rows of a plane as tab separated text to a FileChannel, through a large direct buffer.
+ * Each element is followed by a tab and each row by a new line, with the text of Double.toString,
+ * so the output is the same as printing element + "\t".
+ */
+class PlaneTextWriter implements PlaneRowWriter {
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private FileOutputStream stream;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private StringBuilder text;
+
+	PlaneTextWriter(String fileName) throws IOException {
+		stream = new FileOutputStream(fileName);
+		channel = stream.getChannel();
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		text = new StringBuilder();
+	}
+
+	public void writeRow(double[] row, int length) throws IOException {
+		text.setLength(0);
+		for (int j = 0; j < length; j++)
+			text.append(row[j]).append('\t');
+		text.append('\n');
+
+		// Double.toString writes only ASCII characters
+		int n = text.length();
+		for (int k = 0; k < n; k++) {
+			if (!buffer.hasRemaining())
+				flush();
+			buffer.put((byte) text.charAt(k));
+		}
+	}
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			stream.close();
+		}
+	}
+}
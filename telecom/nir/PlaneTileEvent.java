@@ -0,0 +1,22 @@
+package telecom.nir;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event of the evaluation of a row of a plane, or of the planes of a volume (see Metrics)
+ */
+@Name("telecom.nir.PlaneTile")
+@Label("Plane Tile")
+@Category({"Telecom", "NIR"})
+@Description("Evaluation of a row of a plane or volume")
+class PlaneTileEvent extends jdk.jfr.Event {
+	@Label("Row")
+	int row;
+	@Label("Columns")
+	int columns;
+	@Label("Heights")
+	int heights;
+}
@@ -0,0 +1,22 @@
+package telecom.nir;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event of the writing of a block of rows to the files of a plane or volume (see Metrics)
+ */
+@Name("telecom.nir.PlaneWrite")
+@Label("Plane Write")
+@Category({"Telecom", "NIR"})
+@Description("Writing of a block of rows of a plane or volume")
+class PlaneWriteEvent extends jdk.jfr.Event {
+	@Label("First Row")
+	int firstRow;
+	@Label("Rows")
+	int rows;
+	@Label("Planes")
+	int planes;
+}
@@ -0,0 +1,117 @@
+package telecom.nir;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates the probes [first, last) of a batch in the order given by getHilbertOrder, splitting
+ * the range in halves until each task has at most CHUNK_SIZE probes. Consecutive probes in this
+ * order are close to each other, so they visit the same nodes of the radio index. The results are
+ * stored at the original positions of the probes, and each probe writes only its own elements.
+ */
+class ProbeBatchTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	static final int CHUNK_SIZE = 1024;
+	// Bits of each coordinate in the Hilbert curve
+	private static final int HILBERT_BITS = 16;
+
+	private CompiledScene scene;
+	private int[] order;
+	private double[] latitude;
+	private double[] longitude;
+	private double[] height;
+	private double[] resultE;
+	private double[] resultTER;
+	private int first;
+	private int last;
+
+	ProbeBatchTask(CompiledScene scene, int[] order, double[] latitude, double[] longitude, double[] height,
+			double[] resultE, double[] resultTER, int first, int last) {
+		this.scene = scene;
+		this.order = order;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.height = height;
+		this.resultE = resultE;
+		this.resultTER = resultTER;
+		this.first = first;
+		this.last = last;
+	}
+
+	@Override
+	protected void compute() {
+		if (last - first <= CHUNK_SIZE) {
+			evalProbes();
+			return;
+		}
+		int middle = (first + last) >>> 1;
+		invokeAll(new ProbeBatchTask(scene, order, latitude, longitude, height, resultE, resultTER, first, middle),
+				new ProbeBatchTask(scene, order, latitude, longitude, height, resultE, resultTER, middle, last));
+	}
+	void evalProbes() {
+		long start = Metrics.enabled ? System.nanoTime() : 0;
+		for (int k = first; k < last; k++) {
+			int p = order[k];
+			scene.evalEandTERAtProbe(latitude[p], longitude[p], height[p], resultE, resultTER, p);
+		}
+		if (Metrics.enabled)
+			Metrics.addPhase(Metrics.Phase.EVALUATE, System.nanoTime() - start);
+	}
+
+	/**
+	 * Returns the indexes of the probes sorted along a Hilbert curve over their bounding box
+	 */
+	static int[] getHilbertOrder(double[] latitude, double[] longitude) {
+		int n = latitude.length;
+		double latMin = Double.POSITIVE_INFINITY, latMax = Double.NEGATIVE_INFINITY;
+		double longMin = Double.POSITIVE_INFINITY, longMax = Double.NEGATIVE_INFINITY;
+		for (int p = 0; p < n; p++) {
+			latMin = min(latMin, latitude[p]);
+			latMax = max(latMax, latitude[p]);
+			longMin = min(longMin, longitude[p]);
+			longMax = max(longMax, longitude[p]);
+		}
+		int side = 1 << HILBERT_BITS;
+		double latScale = latMax > latMin ? (side - 1)/(latMax - latMin) : 0;
+		double longScale = longMax > longMin ? (side - 1)/(longMax - longMin) : 0;
+
+		// The curve index in the high bits and the probe in the low 31 bits, so a sort of the keys sorts the probes
+		long[] keys = new long[n];
+		for (int p = 0; p < n; p++) {
+			int x = (int) min(side - 1, max(0, (longitude[p] - longMin)*longScale));
+			int y = (int) min(side - 1, max(0, (latitude[p] - latMin)*latScale));
+			keys[p] = (getHilbertIndex(x, y) << 31) | p;
+		}
+		Arrays.sort(keys);
+		int[] order = new int[n];
+		for (int k = 0; k < n; k++)
+			order[k] = (int) (keys[k] & Integer.MAX_VALUE);
+		return order;
+	}
+	/**
+	 * Returns the position of (x, y) along the Hilbert curve that fills a square of side 2^HILBERT_BITS
+	 */
+	static long getHilbertIndex(int x, int y) {
+		int side = 1 << HILBERT_BITS;
+		long d = 0;
+		for (int s = side/2; s > 0; s /= 2) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s*s*((3*rx) ^ ry);
+			// Rotates the quadrant so that the curve inside it has the standard orientation
+			if (ry == 0) {
+				if (rx == 1) {
+					x = side - 1 - x;
+					y = side - 1 - y;
+				}
+				int aux = x;
+				x = y;
+				y = aux;
+			}
+		}
+		return d;
+	}
+}
@@ -0,0 +1,217 @@
+package telecom.nir;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import telecom.util.Pair;
+import telecom.util.Point2D;
+import telecom.util.SimpleMatrix;
+
+/**
+ * A plane (see NIR.evalEandTERAtPlane) evaluated coarse to fine, so that a map is available long
+ * before the whole plane is evaluated (see NIR.createProgressivePlane).
+ *
+ * The passes evaluate the cells whose row and column are multiples of a stride, from
+ * 2^(nLevels - 1) down to 1, each pass evaluating only the cells not evaluated by the coarser
+ * ones. After each complete pass the listener is called, and getEandTER returns the plane with
+ * every cell holding the value of the evaluated cell at the north west corner of its block. When
+ * the stride is 1 the plane is exactly the result of evalEandTERAtPlane.
+ *
+ * evaluate stops, between rows, when cancel is called (from any thread) or when the deadline
+ * passes. The first pass always completes unless it is cancelled, so there is always a map. The
+ * cells of an interrupted pass are kept, and used by getEandTER where they are evaluated, and a
+ * later call to evaluate continues from them. getEandTER must be called from the listener or
+ * after evaluate returns.
+ */
+public class ProgressivePlane {
+	/**
+	 * Receives each complete pass, in the thread that runs evaluate
+	 */
+	public interface Listener {
+		void passCompleted(ProgressivePlane plane, int stride);
+	}
+
+	private CompiledScene scene;
+	private PlaneGrid grid;
+	private double height;
+	private int nLevels;
+	private SimpleMatrix valueE;
+	private SimpleMatrix valueTER;
+	// Cells already evaluated, row by row
+	private boolean[][] evaluated;
+	// Stride of the last complete pass, 0 before the first one
+	private int stride = 0;
+	private volatile boolean cancelled;
+
+	/**
+	 * @param nLevels	Number of passes: the first one has a stride of 2^(nLevels - 1) cells
+	 */
+	public ProgressivePlane(CompiledScene scene, Point2D coord1, Point2D coord2, double height, int nStepsLongitude, int nLevels) {
+		if (nLevels < 1 || nLevels > 30)
+			throw new IllegalArgumentException("nLevels must be in [1, 30]: " + nLevels);
+		this.scene = scene;
+		this.grid = new PlaneGrid(coord1, coord2, nStepsLongitude);
+		this.height = height;
+		this.nLevels = nLevels;
+		valueE = new SimpleMatrix(grid.getNStepsLatitude(), nStepsLongitude);
+		valueTER = new SimpleMatrix(grid.getNStepsLatitude(), nStepsLongitude);
+		evaluated = new boolean[grid.getNStepsLatitude()][nStepsLongitude];
+	}
+
+	/**
+	 * Evaluates the passes not completed yet, until the plane is complete, cancel is called or
+	 * timeoutMillis (0 for no deadline) has passed. If pool is not null the rows of each pass are
+	 * evaluated by its threads. Returns true if the plane is complete.
+	 */
+	public boolean evaluate(long timeoutMillis, Listener listener, ForkJoinPool pool) {
+		long deadline = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis*1000000 : 0;
+		for (int level = nLevels - 1; level >= 0; level--) {
+			int passStride = 1 << level;
+			if (stride != 0 && passStride >= stride)
+				continue;
+			// The first pass has no deadline
+			long passDeadline = stride == 0 ? 0 : deadline;
+			if (pool != null) {
+				pool.invoke(new PassTask(passStride, passDeadline, 0, getNRows(passStride)));
+			} else {
+				for (int i = 0; i < grid.getNStepsLatitude() && !mustStop(passDeadline); i += passStride)
+					evalRow(i, passStride);
+			}
+			if (!isPassComplete(passStride))
+				return false;
+			stride = passStride;
+			if (listener != null)
+				listener.passCompleted(this, stride);
+		}
+		return true;
+	}
+	/**
+	 * Stops the evaluation at the end of the rows being evaluated. A cancelled plane is not evaluated again.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+	public boolean isCancelled() {
+		return cancelled;
+	}
+	public boolean isComplete() {
+		return stride == 1;
+	}
+	/**
+	 * Returns the stride (cells) of the last complete pass, or 0 if no pass is complete
+	 */
+	public int getStride() {
+		return stride;
+	}
+	public int getNLevels() {
+		return nLevels;
+	}
+	public PlaneGrid getGrid() {
+		return grid;
+	}
+	/**
+	 * Returns the number of cells evaluated
+	 */
+	public long getNProbes() {
+		long n = 0;
+		for (boolean[] row : evaluated)
+			for (boolean cell : row)
+				if (cell)
+					n++;
+		return n;
+	}
+	/**
+	 * Returns E (V/m) and TER (%) of the plane: each cell holds its own value if it was evaluated, else
+	 * the value of the north west corner of the smallest block, of a stride of a pass, whose corner was
+	 * evaluated. Before the first pass completes the cells not evaluated are NaN.
+	 */
+	public Pair<SimpleMatrix, SimpleMatrix> getEandTER() {
+		int nStepsLatitude = grid.getNStepsLatitude();
+		int nStepsLongitude = grid.getNStepsLongitude();
+		SimpleMatrix resultE = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
+		SimpleMatrix resultTER = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
+		for (int i = 0; i < nStepsLatitude; i++) {
+			double[] E = resultE.getRow(i);
+			double[] TER = resultTER.getRow(i);
+			for (int j = 0; j < nStepsLongitude; j++) {
+				E[j] = Double.NaN;
+				TER[j] = Double.NaN;
+				for (int level = 0; level < nLevels; level++) {
+					int i0 = i >> level << level;
+					int j0 = j >> level << level;
+					if (evaluated[i0][j0]) {
+						E[j] = valueE.getElement(i0, j0);
+						TER[j] = valueTER.getElement(i0, j0);
+						break;
+					}
+				}
+			}
+		}
+		return new Pair<SimpleMatrix, SimpleMatrix>(resultE, resultTER);
+	}
+
+	/**
+	 * Returns the number of rows of the pass of the stride
+	 */
+	private int getNRows(int passStride) {
+		return (grid.getNStepsLatitude() + passStride - 1)/passStride;
+	}
+	private boolean isPassComplete(int passStride) {
+		int nStepsLatitude = grid.getNStepsLatitude();
+		int nStepsLongitude = grid.getNStepsLongitude();
+		for (int i = 0; i < nStepsLatitude; i += passStride)
+			for (int j = 0; j < nStepsLongitude; j += passStride)
+				if (!evaluated[i][j])
+					return false;
+		return true;
+	}
+	/**
+	 * Evaluates the cells of the row i with a column multiple of the stride that were not evaluated yet
+	 */
+	private void evalRow(int i, int passStride) {
+		double latProbe = grid.getLatitude(i);
+		int nStepsLongitude = grid.getNStepsLongitude();
+		double[] rowE = valueE.getRow(i);
+		double[] rowTER = valueTER.getRow(i);
+		boolean[] rowEvaluated = evaluated[i];
+		for (int j = 0; j < nStepsLongitude; j += passStride) {
+			if (rowEvaluated[j])
+				continue;
+			scene.evalEandTERAtProbe(latProbe, grid.getLongitude(j), height, rowE, rowTER, j);
+			rowEvaluated[j] = true;
+		}
+	}
+	private boolean mustStop(long deadline) {
+		return cancelled || (deadline != 0 && System.nanoTime() - deadline > 0);
+	}
+
+	/**
+	 * Evaluates the rows [first, last) of a pass (row k of the pass is the row k*stride of the grid),
+	 * splitting the range in halves until each task has a single row. Each row writes only its own
+	 * cells.
+	 */
+	private class PassTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private int passStride;
+		private long deadline;
+		private int first;
+		private int last;
+
+		PassTask(int passStride, long deadline, int first, int last) {
+			this.passStride = passStride;
+			this.deadline = deadline;
+			this.first = first;
+			this.last = last;
+		}
+		@Override
+		protected void compute() {
+			if (last - first <= 1) {
+				if (first < last && !mustStop(deadline))
+					evalRow(first*passStride, passStride);
+				return;
+			}
+			int middle = (first + last) >>> 1;
+			invokeAll(new PassTask(passStride, deadline, first, middle), new PassTask(passStride, deadline, middle, last));
+		}
+	}
+}
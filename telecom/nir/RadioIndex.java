@@ -0,0 +1,204 @@
+package telecom.nir;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.asin;
+import static java.lang.Math.cos;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+import static telecom.util.Constants.DEGREE_TO_RAD;
+
+/**
+ * A k-d tree over the positions of the radio sources of a CompiledScene, used to skip the radio
+ * sources whose contribution to a probe is negligible.
+ *
+ * Each radio source r has a constant K[r] such that its TER (%) at a 2D distance d (km) is at most
+ * K[r]/d^2. Each node stores the bounding box of its radio sources and the sum of their K, so
+ * sum(K)/dmin^2 bounds the TER of the whole node, where dmin is a lower bound of the distance
+ * between the probe and the box. A node can be dropped when this bound is not greater than its
+ * budget: tolerance * (radio sources in the node) / (all radio sources). The nodes dropped for a
+ * probe are disjoint, so the TER dropped at any probe is at most the tolerance.
+ *
+ * The nodes are stored in preorder: the first child of an inner node is the next node and
+ * getSkip(node) is the first node after its subtree, so the tree is traversed without a stack.
+ * The radio sources of a node are [getFirst(node), getLast(node)) of the order given by getOrder().
+ */
+class RadioIndex {
+	private static final int LEAF_SIZE = 8;
+	private static final double EARTH_RADIUS_KM = 6371;
+	// Margin for the rounding errors between the lower bound and the distance used by the kernel
+	private static final double DISTANCE_MARGIN = 1 - 1e-9;
+	// Margin for the error of Geodesy.LOCAL_PROJECTION, which can be shorter than the great circle distance
+	private static final double PROJECTED_DISTANCE_MARGIN = 0.9;
+
+	private double distanceMargin;
+	private int[] order;
+	private int nNodes;
+	private double[] minLat;
+	private double[] maxLat;
+	private double[] minLong;
+	private double[] maxLong;
+	private double[] cosMaxAbsLat;
+	private double[] sumK;
+	private double[] budget;
+	private int[] first;
+	private int[] last;
+	private int[] skip;
+	private boolean[] leaf;
+
+	RadioIndex(double[] latitude, double[] longitude, double[] K, double tolerance, boolean projected) {
+		distanceMargin = getDistanceMargin(projected);
+		int n = latitude.length;
+		order = new int[n];
+		for (int r = 0; r < n; r++)
+			order[r] = r;
+
+		int capacity = 2*n + 1;
+		minLat = new double[capacity];
+		maxLat = new double[capacity];
+		minLong = new double[capacity];
+		maxLong = new double[capacity];
+		cosMaxAbsLat = new double[capacity];
+		sumK = new double[capacity];
+		budget = new double[capacity];
+		first = new int[capacity];
+		last = new int[capacity];
+		skip = new int[capacity];
+		leaf = new boolean[capacity];
+
+		if (n > 0)
+			build(latitude, longitude, K, tolerance/n, 0, n);
+	}
+	/**
+	 * Returns the factor applied to the great circle distance to bound the distance of the kernel
+	 * of a scene from below, with the local projection or not (see CompiledScene.isProjected)
+	 */
+	static double getDistanceMargin(boolean projected) {
+		return projected ? PROJECTED_DISTANCE_MARGIN : DISTANCE_MARGIN;
+	}
+	private void build(double[] latitude, double[] longitude, double[] K, double budgetPerRadio, int firstRadio, int lastRadio) {
+		int node = nNodes++;
+		double latMin = Double.POSITIVE_INFINITY, latMax = Double.NEGATIVE_INFINITY;
+		double longMin = Double.POSITIVE_INFINITY, longMax = Double.NEGATIVE_INFINITY;
+		double k = 0;
+		for (int i = firstRadio; i < lastRadio; i++) {
+			int r = order[i];
+			latMin = min(latMin, latitude[r]);
+			latMax = max(latMax, latitude[r]);
+			longMin = min(longMin, longitude[r]);
+			longMax = max(longMax, longitude[r]);
+			k += K[r];
+		}
+		minLat[node] = latMin;
+		maxLat[node] = latMax;
+		minLong[node] = longMin;
+		maxLong[node] = longMax;
+		cosMaxAbsLat[node] = cos(max(abs(latMin), abs(latMax))*DEGREE_TO_RAD);
+		sumK[node] = k;
+		budget[node] = budgetPerRadio*(lastRadio - firstRadio);
+		first[node] = firstRadio;
+		last[node] = lastRadio;
+
+		boolean sameLocation = latMin == latMax && longMin == longMax;
+		if (lastRadio - firstRadio <= LEAF_SIZE || sameLocation) {
+			leaf[node] = true;
+		} else {
+			double latSpan = latMax - latMin;
+			double longSpan = (longMax - longMin)*cos(0.5*(latMin + latMax)*DEGREE_TO_RAD);
+			double[] key = latSpan >= longSpan ? latitude : longitude;
+			int middle = (firstRadio + lastRadio) >>> 1;
+			select(key, firstRadio, lastRadio - 1, middle);
+			build(latitude, longitude, K, budgetPerRadio, firstRadio, middle);
+			build(latitude, longitude, K, budgetPerRadio, middle, lastRadio);
+		}
+		skip[node] = nNodes;
+	}
+	/**
+	 * Reorders order[left..right] so that order[k] holds the radio with the k-th smallest key,
+	 * with smaller or equal keys before it and greater or equal keys after it
+	 */
+	private void select(double[] key, int left, int right, int k) {
+		while (left < right) {
+			double pivot = key[order[(left + right) >>> 1]];
+			int i = left, j = right;
+			while (i <= j) {
+				while (key[order[i]] < pivot) i++;
+				while (key[order[j]] > pivot) j--;
+				if (i <= j) {
+					int aux = order[i];
+					order[i] = order[j];
+					order[j] = aux;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Returns the radio sources in tree order: position i of the compiled arrays holds the radio order[i]
+	 */
+	int[] getOrder() {
+		return order;
+	}
+	int getNNodes() {
+		return nNodes;
+	}
+	boolean isLeaf(int node) {
+		return leaf[node];
+	}
+	int getFirst(int node) {
+		return first[node];
+	}
+	int getLast(int node) {
+		return last[node];
+	}
+	int getSkip(int node) {
+		return skip[node];
+	}
+	double getBudget(int node) {
+		return budget[node];
+	}
+	/**
+	 * Returns an upper bound of the TER (%) of all radio sources of the node at the probe
+	 */
+	double getTERBound(int node, double latProbe, double longProbe, double cosLatProbe) {
+		double d = getMinDistanceKM(node, latProbe, longProbe, cosLatProbe);
+		if (d <= 0)
+			return Double.POSITIVE_INFINITY;
+		return sumK[node]/(d*d);
+	}
+	/**
+	 * Returns a lower bound of the great circle distance between the probe and the box of the node.
+	 * With haversine, sin^2(d/2) = sin^2(dLat/2) + cos(lat1)cos(lat2)sin^2(dLong/2), and every term
+	 * is replaced by a lower bound over the box.
+	 */
+	private double getMinDistanceKM(int node, double latProbe, double longProbe, double cosLatProbe) {
+		double dLat = 0;
+		if (latProbe < minLat[node])
+			dLat = minLat[node] - latProbe;
+		else if (latProbe > maxLat[node])
+			dLat = latProbe - maxLat[node];
+
+		double dLong = 0;
+		if (longProbe < minLong[node] || longProbe > maxLong[node])
+			dLong = min(longitudeDifference(longProbe, minLong[node]), longitudeDifference(longProbe, maxLong[node]));
+
+		double c = min(cosLatProbe, cosMaxAbsLat[node]);
+		double sinHalfLat = sin(0.5*dLat*DEGREE_TO_RAD);
+		double sinHalfLong = sin(0.5*dLong*DEGREE_TO_RAD);
+		double h = sinHalfLat*sinHalfLat + c*c*sinHalfLong*sinHalfLong;
+		return 2*EARTH_RADIUS_KM*asin(sqrt(min(1, h)))*distanceMargin;
+	}
+	private static double longitudeDifference(double long1, double long2) {
+		double d = abs(long1 - long2) % 360;
+		return min(d, 360 - d);
+	}
+}
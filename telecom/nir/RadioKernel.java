@@ -0,0 +1,21 @@
+package telecom.nir;
+
+/**
+ * A loop over the compiled radio sources of CompiledScene that replaces its scalar kernel
+ * (VectorKernel or FloatVectorKernel)
+ */
+interface RadioKernel {
+	/**
+	 * Adds the squared E field and the TER (not in %) of the radio sources [firstRadio, lastRadio)
+	 * at the probe to sums[0] and sums[1]
+	 */
+	void sum(double latProbe, double longProbe, double hProbe, double cosColatProbe, double sinColatProbe,
+			int firstRadio, int lastRadio, double[] sums);
+	/**
+	 * Adds the squared E field and the TER (not in %) of the radio sources [firstRadio, lastRadio)
+	 * at the probe at each of the heights to sumsE2[k] and sumsTER[k], with the horizontal geometry
+	 * (2D distances) computed once for all the heights (see CompiledScene.evalEandTERAtColumn)
+	 */
+	void sumColumn(double latProbe, double longProbe, double[] heights, double cosColatProbe, double sinColatProbe,
+			int firstRadio, int lastRadio, double[] sumsE2, double[] sumsTER);
+}
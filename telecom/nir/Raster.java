@@ -0,0 +1,161 @@
+package telecom.nir;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import telecom.util.Pair;
+
+/**
+ * A plane of E or TER saved in the binary raster format (see NIR.saveEandTerAtRasterFile), read
+ * through memory mapped buffers: the elements are read from the file when they are accessed, and
+ * are never copied to the heap.
+ *
+ * The file is little endian: a HEADER_SIZE bytes header followed by the rows of the plane, from
+ * north to south, each one with the columns from west to east, as float32 or float64. The header is:
+ * 
+ * 	offset	type		content
+ * 	0		8 bytes		"NIRRAST" and a 0 byte
+ * 	8		int			format version (1)
+ * 	12		int			size of an element in bytes: 4 (float32) or 8 (float64)
+ * 	16		int			number of rows (latitude steps)
+ * 	20		int			number of columns (longitude steps)
+ * 	24		double		latitude of the north edge of the plane (degree)
+ * 	32		double		longitude of the west edge of the plane (degree)
+ * 	40		double		latitude of the south edge of the plane (degree)
+ * 	48		double		longitude of the east edge of the plane (degree)
+ * 	56		double		latitude step (degree)
+ * 	64		double		longitude step (degree)
+ * 	72		double		height of the plane (m)
+ * 	80		16 bytes	units of the elements, ASCII padded with 0 bytes ("V/m" or "%")
+ * 	96		32 bytes	reserved (0)
+ * 
+ * The element (i, j) is the value at the center of the cell: latitude north - (i + 0.5)*latitude step,
+ * longitude west + (j + 0.5)*longitude step.
+ */
+public class Raster {
+	public static final int HEADER_SIZE = 128;
+	static final byte[] MAGIC = "NIRRAST\0".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int UNITS_SIZE = 16;
+	// Largest mapping, in bytes: a single MappedByteBuffer cannot exceed 2 GB
+	private static final long MAX_MAPPING_SIZE = 1L << 30;
+
+	private int elementSize;
+	private int nRows;
+	private int nColumns;
+	private double latitudeNorth;
+	private double longitudeWest;
+	private double latitudeSouth;
+	private double longitudeEast;
+	private double stepLatitude;
+	private double stepLongitude;
+	private double height;
+	private String units;
+
+	private int rowsPerMapping;
+	private MappedByteBuffer[] mappings;
+
+	public Raster(String fileName) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining())
+				if (channel.read(header, header.position()) < 0)
+					throw new IOException(fileName + " is not a NIR raster: header too short");
+			readHeader(header, fileName);
+
+			long rowSize = (long) nColumns*elementSize;
+			if (channel.size() < HEADER_SIZE + rowSize*nRows)
+				throw new IOException(fileName + " is truncated");
+
+			rowsPerMapping = (int) max(1, min(nRows, MAX_MAPPING_SIZE/max(1, rowSize)));
+			int nMappings = nRows == 0 ? 0 : (nRows + rowsPerMapping - 1)/rowsPerMapping;
+			mappings = new MappedByteBuffer[nMappings];
+			for (int k = 0; k < nMappings; k++) {
+				int rows = min(rowsPerMapping, nRows - k*rowsPerMapping);
+				mappings[k] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + k*rowsPerMapping*rowSize, rows*rowSize);
+				mappings[k].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		} finally {
+			file.close();
+		}
+	}
+	private void readHeader(ByteBuffer header, String fileName) throws IOException {
+		for (int k = 0; k < MAGIC.length; k++)
+			if (header.get(k) != MAGIC[k])
+				throw new IOException(fileName + " is not a NIR raster");
+		if (header.getInt(8) != VERSION)
+			throw new IOException(fileName + ": unsupported raster version " + header.getInt(8));
+		elementSize = header.getInt(12);
+		if (elementSize != 4 && elementSize != 8)
+			throw new IOException(fileName + ": invalid element size " + elementSize);
+		nRows = header.getInt(16);
+		nColumns = header.getInt(20);
+		latitudeNorth = header.getDouble(24);
+		longitudeWest = header.getDouble(32);
+		latitudeSouth = header.getDouble(40);
+		longitudeEast = header.getDouble(48);
+		stepLatitude = header.getDouble(56);
+		stepLongitude = header.getDouble(64);
+		height = header.getDouble(72);
+		byte[] unitsBytes = new byte[UNITS_SIZE];
+		header.position(80);
+		header.get(unitsBytes);
+		int length = 0;
+		while (length < UNITS_SIZE && unitsBytes[length] != 0)
+			length++;
+		units = new String(unitsBytes, 0, length, StandardCharsets.US_ASCII);
+	}
+
+	public Pair<Integer, Integer> getSize() {
+		return new Pair<Integer, Integer>(nRows, nColumns);
+	}
+	public double getElement(int i, int j) {
+		if (j < 0 || j >= nColumns)
+			throw new IndexOutOfBoundsException("column " + j);
+		MappedByteBuffer mapping = mappings[i/rowsPerMapping];
+		int index = ((i % rowsPerMapping)*nColumns + j)*elementSize;
+		if (elementSize == 4)
+			return mapping.getFloat(index);
+		return mapping.getDouble(index);
+	}
+	/**
+	 * Returns 4 for float32 elements and 8 for float64 elements
+	 */
+	public int getElementSize() {
+		return elementSize;
+	}
+	public double getLatitudeNorth() {
+		return latitudeNorth;
+	}
+	public double getLongitudeWest() {
+		return longitudeWest;
+	}
+	public double getLatitudeSouth() {
+		return latitudeSouth;
+	}
+	public double getLongitudeEast() {
+		return longitudeEast;
+	}
+	public double getStepLatitude() {
+		return stepLatitude;
+	}
+	public double getStepLongitude() {
+		return stepLongitude;
+	}
+	public double getHeight() {
+		return height;
+	}
+	public String getUnits() {
+		return units;
+	}
+}
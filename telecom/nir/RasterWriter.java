@@ -0,0 +1,72 @@
+package telecom.nir;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the rows of a plane in the binary raster format described in Raster, through a large
+ * direct buffer
+ */
+class RasterWriter implements PlaneRowWriter {
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private FileOutputStream stream;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private boolean float32;
+
+	RasterWriter(String fileName, PlaneGrid grid, double height, String units, boolean float32) throws IOException {
+		this.float32 = float32;
+		stream = new FileOutputStream(fileName);
+		channel = stream.getChannel();
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		buffer.put(Raster.MAGIC);
+		buffer.putInt(Raster.VERSION);
+		buffer.putInt(float32 ? 4 : 8);
+		buffer.putInt(grid.getNStepsLatitude());
+		buffer.putInt(grid.getNStepsLongitude());
+		buffer.putDouble(grid.getLatitudeMax());
+		buffer.putDouble(grid.getLongitudeMin());
+		buffer.putDouble(grid.getLatitudeMin());
+		buffer.putDouble(grid.getLongitudeMax());
+		buffer.putDouble(grid.getStepLatitude());
+		buffer.putDouble(grid.getStepLongitude());
+		buffer.putDouble(height);
+		byte[] unitsBytes = units.getBytes(StandardCharsets.US_ASCII);
+		if (unitsBytes.length > Raster.UNITS_SIZE)
+			throw new IllegalArgumentException("units too long: " + units);
+		buffer.put(unitsBytes);
+		while (buffer.position() < Raster.HEADER_SIZE)
+			buffer.put((byte) 0);
+	}
+
+	public void writeRow(double[] row, int length) throws IOException {
+		int elementSize = float32 ? 4 : 8;
+		for (int j = 0; j < length; j++) {
+			if (buffer.remaining() < elementSize)
+				flush();
+			if (float32)
+				buffer.putFloat((float) row[j]);
+			else
+				buffer.putDouble(row[j]);
+		}
+	}
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			stream.close();
+		}
+	}
+}
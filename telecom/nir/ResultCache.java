@@ -0,0 +1,352 @@
+package telecom.nir;
+
+import static java.lang.Math.floorDiv;
+import static java.lang.Math.floorMod;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.round;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import telecom.util.Pair;
+import telecom.util.Point3D;
+import telecom.util.SimpleMatrix;
+
+/**
+ * Results of planes and probes kept between evaluations (see NIR.setResultCache), under a budget
+ * of bytes: when an entry does not fit, the least recently used entries are evicted. The entries
+ * are keyed by the content hash of the scenario (see NIR.getScenarioHash), so a cache can be shared
+ * by several NIR objects, and the entries of a scenario are removed when its NIR is changed. The key
+ * also has the global settings of the evaluation (the kernel selected in CompiledScene, the geodesy
+ * and the resolution of the pattern tables), so entries evaluated with other settings are not used.
+ *
+ * A probe is kept with its exact coordinates, so its cached results are those of the evaluation.
+ *
+ * Planes are kept only by a cache created with planes = true. They are kept in tiles of TILE_SIZE x TILE_SIZE
+ * cells of a lattice that does not depend on the region: the lattice of a plane is given by its
+ * steps and by the position of its cells modulo the steps, all rounded to QUANTUM degrees. Two
+ * planes with the same height and resolution whose cells are aligned, such as overlapping regions
+ * of a town, share the tiles of their common cells. The probes of a tile are at the points of the
+ * lattice, which differ from the probes of evalEandTERAtPlane by that rounding: less than QUANTUM
+ * degrees per cell from the corner of the plane (0.1 mm after 1000 cells). So the cached planes are
+ * not identical to the planes evaluated without cache: the relative differences are of the order of
+ * the rounding of the distances (the law of cosines of the exact geodesy rounds the distance of a
+ * probe at 100 m to about 1e-6), a few 1e-6 for planes of hundreds of meters. The tiles of a plane
+ * are evaluated whole, so a small plane can evaluate more cells than it has.
+ */
+public class ResultCache {
+	public static final int TILE_SIZE = 32;
+	public static final double QUANTUM = 1e-12;
+	// Estimated bytes of an entry besides its values: key, map entry and arrays
+	private static final long ENTRY_OVERHEAD = 160;
+
+	private long maxBytes;
+	private long bytes = 0;
+	private LinkedHashMap<Key, double[][]> entries = new LinkedHashMap<Key, double[][]>(16, 0.75f, true);
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private boolean planes;
+
+	/**
+	 * Creates a cache of the probes (the planes are evaluated without cache)
+	 */
+	public ResultCache(long maxBytes) {
+		this(maxBytes, false);
+	}
+	/**
+	 * Creates a cache of the probes, and of the planes if planes is true (in tiles of the lattice, see
+	 * above)
+	 */
+	public ResultCache(long maxBytes, boolean planes) {
+		if (maxBytes < 0)
+			throw new IllegalArgumentException("maxBytes must not be negative: " + maxBytes);
+		this.maxBytes = maxBytes;
+		this.planes = planes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	/**
+	 * Returns true if the planes are kept in the cache
+	 */
+	public boolean isCachingPlanes() {
+		return planes;
+	}
+	/**
+	 * Returns the estimated bytes of the entries
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	public synchronized int getNEntries() {
+		return entries.size();
+	}
+	/**
+	 * Returns the number of tiles and probes found in the cache
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	/**
+	 * Returns the number of tiles and probes evaluated because they were not in the cache
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+	/**
+	 * Removes the entries of the scenario
+	 */
+	public synchronized void invalidate(String scenarioHash) {
+		Iterator<Map.Entry<Key, double[][]>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, double[][]> entry = it.next();
+			if (entry.getKey().scenarioHash.equals(scenarioHash)) {
+				bytes -= getBytes(entry.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Stores E and TER at the probe in resultE[offset] and resultTER[offset], evaluated by nir if
+	 * they are not in the cache
+	 */
+	void evalEandTERAtProbe(NIR nir, Point3D probe, double[] resultE, double[] resultTER, int offset) {
+		Key key = new Key(nir.getScenarioHash(), CompiledScene.getEvaluationSettings(), new long[]{Double.doubleToLongBits(probe.getLatitude()),
+				Double.doubleToLongBits(probe.getLongitude()), Double.doubleToLongBits(probe.getHeight())});
+		double[][] values = get(key);
+		if (values == null) {
+			values = new double[][]{new double[1], new double[1]};
+			nir.evalEandTERAtProbeUncached(probe, values[0], values[1], 0);
+			put(key, values);
+		}
+		resultE[offset] = values[0][0];
+		resultTER[offset] = values[1][0];
+	}
+	/**
+	 * Returns E and TER at the plane of the grid, from the tiles in the cache and the tiles
+	 * evaluated now by the scene of nir (by the threads of pool if it is not null)
+	 */
+	Pair<SimpleMatrix, SimpleMatrix> evalEandTERAtPlane(NIR nir, PlaneGrid grid, double height, ForkJoinPool pool) {
+		int nStepsLatitude = grid.getNStepsLatitude();
+		int nStepsLongitude = grid.getNStepsLongitude();
+		String scenarioHash = nir.getScenarioHash();
+		String settings = CompiledScene.getEvaluationSettings();
+		Lattice lattice = new Lattice(grid, height);
+		SimpleMatrix resultE = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
+		SimpleMatrix resultTER = new SimpleMatrix(nStepsLatitude, nStepsLongitude);
+
+		// The tiles of the rows and columns of the plane, kept here so that they are not evicted before they are used
+		long firstTileRow = floorDiv(lattice.getRow(nStepsLatitude - 1), TILE_SIZE);
+		long lastTileRow = floorDiv(lattice.getRow(0), TILE_SIZE);
+		long firstTileColumn = floorDiv(lattice.getColumn(0), TILE_SIZE);
+		long lastTileColumn = floorDiv(lattice.getColumn(nStepsLongitude - 1), TILE_SIZE);
+		HashMap<Key, double[][]> tiles = new HashMap<Key, double[][]>();
+		List<Key> missing = new ArrayList<Key>();
+		for (long tileRow = firstTileRow; tileRow <= lastTileRow; tileRow++) {
+			for (long tileColumn = firstTileColumn; tileColumn <= lastTileColumn; tileColumn++) {
+				Key key = lattice.getTileKey(scenarioHash, settings, tileRow, tileColumn);
+				double[][] tile = get(key);
+				if (tile == null)
+					missing.add(key);
+				else
+					tiles.put(key, tile);
+			}
+		}
+		if (!missing.isEmpty()) {
+			double[][][] evaluated = new double[missing.size()][][];
+			TilesTask task = new TilesTask(nir.compile(), lattice, missing, evaluated, 0, missing.size());
+			if (pool != null)
+				pool.invoke(task);
+			else
+				task.compute();
+			for (int t = 0; t < missing.size(); t++) {
+				tiles.put(missing.get(t), evaluated[t]);
+				put(missing.get(t), evaluated[t]);
+			}
+		}
+
+		for (int i = 0; i < nStepsLatitude; i++) {
+			long row = lattice.getRow(i);
+			long tileRow = floorDiv(row, TILE_SIZE);
+			int offsetRow = floorMod(row, TILE_SIZE)*TILE_SIZE;
+			double[] rowE = resultE.getRow(i);
+			double[] rowTER = resultTER.getRow(i);
+			for (int j = 0; j < nStepsLongitude; ) {
+				long column = lattice.getColumn(j);
+				double[][] tile = tiles.get(lattice.getTileKey(scenarioHash, settings, tileRow, floorDiv(column, TILE_SIZE)));
+				int first = floorMod(column, TILE_SIZE);
+				int n = min(TILE_SIZE - first, nStepsLongitude - j);
+				System.arraycopy(tile[0], offsetRow + first, rowE, j, n);
+				System.arraycopy(tile[1], offsetRow + first, rowTER, j, n);
+				j += n;
+			}
+		}
+		return new Pair<SimpleMatrix, SimpleMatrix>(resultE, resultTER);
+	}
+
+	private synchronized double[][] get(Key key) {
+		double[][] values = entries.get(key);
+		if (values == null)
+			misses++;
+		else
+			hits++;
+		return values;
+	}
+	private synchronized void put(Key key, double[][] values) {
+		long size = getBytes(values);
+		if (size > maxBytes)
+			return;
+		double[][] old = entries.put(key, values);
+		bytes += size - (old == null ? 0 : getBytes(old));
+		Iterator<double[][]> it = entries.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			bytes -= getBytes(it.next());
+			it.remove();
+			evictions++;
+		}
+	}
+	private static long getBytes(double[][] values) {
+		return ENTRY_OVERHEAD + 8L*values.length*values[0].length;
+	}
+
+	/**
+	 * A probe (latitude, longitude and height bits) or a tile (see Lattice.getTileKey) of a scenario,
+	 * evaluated with the settings of CompiledScene.getEvaluationSettings
+	 */
+	private static class Key {
+		private String scenarioHash;
+		private String settings;
+		private long[] values;
+
+		Key(String scenarioHash, String settings, long[] values) {
+			this.scenarioHash = scenarioHash;
+			this.settings = settings;
+			this.values = values;
+		}
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key key = (Key) o;
+			return scenarioHash.equals(key.scenarioHash) && settings.equals(key.settings) && Arrays.equals(values, key.values);
+		}
+		@Override
+		public int hashCode() {
+			return (scenarioHash.hashCode()*31 + settings.hashCode())*31 + Arrays.hashCode(values);
+		}
+	}
+
+	/**
+	 * The lattice of the cells of a plane, in multiples of QUANTUM degrees: the row r is at latitude
+	 * r*stepLatitude + phaseLatitude (rows grow to the north) and the column c at longitude
+	 * c*stepLongitude + phaseLongitude. The tile (tileRow, tileColumn) has the rows and columns
+	 * [tileRow*TILE_SIZE, (tileRow + 1)*TILE_SIZE) and [tileColumn*TILE_SIZE, (tileColumn + 1)*TILE_SIZE).
+	 */
+	private static class Lattice {
+		private long heightBits;
+		private long stepLatitude;
+		private long stepLongitude;
+		private long phaseLatitude;
+		private long phaseLongitude;
+		// Lattice row of the row 0 of the grid and lattice column of its column 0
+		private long row0;
+		private long column0;
+
+		Lattice(PlaneGrid grid, double height) {
+			heightBits = Double.doubleToLongBits(height);
+			stepLatitude = max(1, round(grid.getStepLatitude()/QUANTUM));
+			stepLongitude = max(1, round(grid.getStepLongitude()/QUANTUM));
+			long latitude = round(grid.getLatitude(0)/QUANTUM);
+			long longitude = round(grid.getLongitude(0)/QUANTUM);
+			phaseLatitude = floorMod(latitude, stepLatitude);
+			phaseLongitude = floorMod(longitude, stepLongitude);
+			row0 = floorDiv(latitude, stepLatitude);
+			column0 = floorDiv(longitude, stepLongitude);
+		}
+		/**
+		 * Returns the lattice row of the row i of the grid (row 0 is the north row)
+		 */
+		long getRow(int i) {
+			return row0 - i;
+		}
+		long getColumn(int j) {
+			return column0 + j;
+		}
+		double getLatitude(long row) {
+			return (row*stepLatitude + phaseLatitude)*QUANTUM;
+		}
+		double getLongitude(long column) {
+			return (column*stepLongitude + phaseLongitude)*QUANTUM;
+		}
+		double getHeight() {
+			return Double.longBitsToDouble(heightBits);
+		}
+		Key getTileKey(String scenarioHash, String settings, long tileRow, long tileColumn) {
+			return new Key(scenarioHash, settings, new long[]{heightBits, stepLatitude, stepLongitude, phaseLatitude, phaseLongitude, tileRow, tileColumn});
+		}
+	}
+
+	/**
+	 * Evaluates the tiles [first, last) of keys into tiles, {E, TER} with the cells of the tile row
+	 * by row, splitting the range in halves until each task has a single tile
+	 */
+	private static class TilesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private CompiledScene scene;
+		private Lattice lattice;
+		private List<Key> keys;
+		private double[][][] tiles;
+		private int first;
+		private int last;
+
+		TilesTask(CompiledScene scene, Lattice lattice, List<Key> keys, double[][][] tiles, int first, int last) {
+			this.scene = scene;
+			this.lattice = lattice;
+			this.keys = keys;
+			this.tiles = tiles;
+			this.first = first;
+			this.last = last;
+		}
+		@Override
+		protected void compute() {
+			if (last - first <= 1) {
+				for (int t = first; t < last; t++)
+					tiles[t] = evalTile(keys.get(t));
+				return;
+			}
+			int middle = (first + last) >>> 1;
+			invokeAll(new TilesTask(scene, lattice, keys, tiles, first, middle), new TilesTask(scene, lattice, keys, tiles, middle, last));
+		}
+		private double[][] evalTile(Key key) {
+			long tileRow = key.values[5];
+			long tileColumn = key.values[6];
+			double height = lattice.getHeight();
+			double[] E = new double[TILE_SIZE*TILE_SIZE];
+			double[] TER = new double[TILE_SIZE*TILE_SIZE];
+			for (int r = 0; r < TILE_SIZE; r++) {
+				double latProbe = lattice.getLatitude(tileRow*TILE_SIZE + r);
+				for (int c = 0; c < TILE_SIZE; c++)
+					scene.evalEandTERAtProbe(latProbe, lattice.getLongitude(tileColumn*TILE_SIZE + c), height, E, TER, r*TILE_SIZE + c);
+			}
+			return new double[][]{E, TER};
+		}
+	}
+}
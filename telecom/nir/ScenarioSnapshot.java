@@ -0,0 +1,455 @@
+package telecom.nir;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import telecom.basestation.BaseStation;
+import telecom.basestation.BaseStationRegistry;
+import telecom.basestation.SnapshotFields;
+import telecom.propagation.PropagationModel;
+import telecom.util.Pair;
+import telecom.util.Point2D;
+
+/**
+ * Saves and loads the base stations of a NIR scenario in a binary snapshot file. The snapshot keeps
+ * the same information as the text format (BaseStation.toString), with the doubles stored as their
+ * bits, so a station loaded from a snapshot has the same toString as the saved one.
+ *
+ * The file is little endian and columnar: each field of all stations is stored in a section, and
+ * the per radio arrays of all stations are concatenated in a single section with a section of counts.
+ * Loading maps the file and copies each section with bulk reads, without any parsing. The fields
+ * of the subclasses of BaseStation are given by BaseStation.doToSnapshot: double arrays are stored
+ * as the other arrays and strings as UTF-8. Propagation models are stored by class name and are
+ * created by their constructor without arguments, one instance per class.
+ *
+ * The file has a HEADER_SIZE bytes header:
+ *
+ * 	offset	type		content
+ * 	0		8 bytes		"NIRSNAP" and a 0 byte
+ * 	8		int			format version (1)
+ * 	12		int			number of stations (n)
+ * 	16		int			number of station classes
+ * 	20		int			number of propagation model classes
+ * 	24		int			number of heights, all stations (nHeights)
+ * 	28		int			number of frequencies, all stations (nFrequencies)
+ * 	32		int			number of double arrays of the subclasses, all stations (nArrays)
+ * 	36		int			number of elements of these arrays (nValues)
+ * 	40		int			number of strings of the subclasses, all stations (nStrings)
+ * 	44		int			bytes of the class names
+ * 	48		int			bytes of the station names
+ * 	52		int			bytes of the strings of the subclasses
+ * 	56		8 bytes		reserved (0)
+ *
+ * followed by the sections, each one starting at a multiple of 8 bytes:
+ *
+ * 	int[classes + models + 1]	offsets of the class names (station classes, then model classes)
+ * 	bytes						class names (UTF-8)
+ * 	int[n]						station class of each station
+ * 	int[n]						propagation model class of each station (-1: none)
+ * 	double[n]					latitudes
+ * 	double[n]					longitudes
+ * 	int[n + 1]					offsets of the station names
+ * 	bytes						station names (UTF-8)
+ * 	int[n], double[nHeights]	number of heights of each station, heights
+ * 	int[n], double[nFrequencies]	number of frequencies of each station, frequencies
+ * 	int[n], int[nArrays], double[nValues]	number of arrays of each station, array lengths, elements
+ * 	int[n], int[nStrings + 1], bytes	number of strings of each station, string offsets, strings (UTF-8)
+ *
+ * Snapshots are loaded through a single mapping, so they must be smaller than 2 GB.
+ */
+public class ScenarioSnapshot {
+	public static final int HEADER_SIZE = 64;
+	static final byte[] MAGIC = "NIRSNAP\0".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * Saves the base stations of nir and their propagation models
+	 */
+	public static void save(NIR nir, String fileName) throws IOException {
+		List<Pair<BaseStation, PropagationModel>> stations = nir.getBaseStations();
+		int n = stations.size();
+
+		List<String> classNames = new ArrayList<String>();
+		HashMap<String, Integer> stationClasses = new HashMap<String, Integer>();
+		HashMap<String, Integer> modelClasses = new HashMap<String, Integer>();
+		int[] stationClass = new int[n];
+		int[] modelClass = new int[n];
+		List<String> modelNames = new ArrayList<String>();
+		byte[][] names = new byte[n][];
+		SnapshotFields[] fields = new SnapshotFields[n];
+		int nHeights = 0, nFrequencies = 0, nArrays = 0, nValues = 0, nStrings = 0;
+		int nameBytes = 0;
+
+		for (int i = 0; i < n; i++) {
+			BaseStation bs = stations.get(i).getFirst();
+			PropagationModel pm = stations.get(i).getSecond();
+			stationClass[i] = getIndex(stationClasses, classNames, bs.getClass().getCanonicalName());
+			modelClass[i] = pm == null ? -1 : getIndex(modelClasses, modelNames, pm.getClass().getName());
+			names[i] = bs.getName().getBytes(StandardCharsets.UTF_8);
+			nameBytes += names[i].length;
+			nHeights += bs.getHeight().length;
+			nFrequencies += bs.getFrequencyMHz().length;
+
+			fields[i] = new SnapshotFields();
+			bs.doToSnapshot(fields[i]);
+			nArrays += fields[i].getNDoubleArrays();
+			for (int a = 0; a < fields[i].getNDoubleArrays(); a++)
+				nValues += fields[i].getDoubleArray(a).length;
+			nStrings += fields[i].getNStrings();
+		}
+		int nStationClasses = classNames.size();
+		classNames.addAll(modelNames);
+		for (int i = 0; i < n; i++)
+			if (modelClass[i] >= 0)
+				modelClass[i] += nStationClasses;
+
+		byte[][] classNameBytes = toUTF8(classNames);
+		byte[][] strings = new byte[nStrings][];
+		int classBytes = 0, stringBytes = 0;
+		for (byte[] b : classNameBytes)
+			classBytes += b.length;
+		for (int i = 0, s = 0; i < n; i++) {
+			for (int k = 0; k < fields[i].getNStrings(); k++, s++) {
+				strings[s] = fields[i].getString(k).getBytes(StandardCharsets.UTF_8);
+				stringBytes += strings[s].length;
+			}
+		}
+
+		Output out = new Output(fileName);
+		try {
+			out.putBytes(MAGIC);
+			out.putInt(VERSION);
+			out.putInt(n);
+			out.putInt(nStationClasses);
+			out.putInt(classNames.size() - nStationClasses);
+			out.putInt(nHeights);
+			out.putInt(nFrequencies);
+			out.putInt(nArrays);
+			out.putInt(nValues);
+			out.putInt(nStrings);
+			out.putInt(classBytes);
+			out.putInt(nameBytes);
+			out.putInt(stringBytes);
+			out.putLong(0);
+
+			out.putOffsets(classNameBytes);
+			for (byte[] b : classNameBytes)
+				out.putBytes(b);
+			out.align();
+			for (int i = 0; i < n; i++)
+				out.putInt(stationClass[i]);
+			out.align();
+			for (int i = 0; i < n; i++)
+				out.putInt(modelClass[i]);
+			out.align();
+			for (int i = 0; i < n; i++)
+				out.putDouble(stations.get(i).getFirst().getLatitude());
+			for (int i = 0; i < n; i++)
+				out.putDouble(stations.get(i).getFirst().getLongitude());
+
+			out.putOffsets(names);
+			for (byte[] b : names)
+				out.putBytes(b);
+			out.align();
+
+			for (int i = 0; i < n; i++)
+				out.putInt(stations.get(i).getFirst().getHeight().length);
+			out.align();
+			for (int i = 0; i < n; i++)
+				out.putDoubles(stations.get(i).getFirst().getHeight());
+			for (int i = 0; i < n; i++)
+				out.putInt(stations.get(i).getFirst().getFrequencyMHz().length);
+			out.align();
+			for (int i = 0; i < n; i++)
+				out.putDoubles(stations.get(i).getFirst().getFrequencyMHz());
+
+			for (int i = 0; i < n; i++)
+				out.putInt(fields[i].getNDoubleArrays());
+			out.align();
+			for (int i = 0; i < n; i++)
+				for (int a = 0; a < fields[i].getNDoubleArrays(); a++)
+					out.putInt(fields[i].getDoubleArray(a).length);
+			out.align();
+			for (int i = 0; i < n; i++)
+				for (int a = 0; a < fields[i].getNDoubleArrays(); a++)
+					out.putDoubles(fields[i].getDoubleArray(a));
+
+			for (int i = 0; i < n; i++)
+				out.putInt(fields[i].getNStrings());
+			out.align();
+			out.putOffsets(strings);
+			for (byte[] b : strings)
+				out.putBytes(b);
+			out.align();
+		} finally {
+			out.close();
+		}
+	}
+	private static int getIndex(HashMap<String, Integer> indexes, List<String> names, String name) {
+		Integer index = indexes.get(name);
+		if (index == null) {
+			index = names.size();
+			indexes.put(name, index);
+			names.add(name);
+		}
+		return index;
+	}
+	private static byte[][] toUTF8(List<String> strings) {
+		byte[][] bytes = new byte[strings.size()][];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = strings.get(i).getBytes(StandardCharsets.UTF_8);
+		return bytes;
+	}
+
+	/**
+	 * Returns a new NIR with the base stations and propagation models of the snapshot
+	 */
+	public static NIR load(String fileName) throws IOException {
+		NIR nir = new NIR();
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException(fileName + " is too large for a snapshot");
+			if (channel.size() < HEADER_SIZE)
+				throw new IOException(fileName + " is not a NIR snapshot: header too short");
+			MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			Input in = new Input(mapping, fileName);
+			load(in, nir);
+		} finally {
+			file.close();
+		}
+		return nir;
+	}
+	private static void load(Input in, NIR nir) throws IOException {
+		byte[] magic = in.getBytes(MAGIC.length);
+		for (int i = 0; i < MAGIC.length; i++)
+			if (magic[i] != MAGIC[i])
+				throw new IOException(in.fileName + " is not a NIR snapshot");
+		int version = in.getInt();
+		if (version != VERSION)
+			throw new IOException(in.fileName + ": unsupported snapshot version " + version);
+		int n = in.getInt();
+		int nStationClasses = in.getInt();
+		int nModelClasses = in.getInt();
+		int nHeights = in.getInt();
+		int nFrequencies = in.getInt();
+		int nArrays = in.getInt();
+		int nValues = in.getInt();
+		int nStrings = in.getInt();
+		int classBytes = in.getInt();
+		int nameBytes = in.getInt();
+		int stringBytes = in.getInt();
+		in.getLong();
+
+		int[] classOffset = in.getInts(nStationClasses + nModelClasses + 1);
+		byte[] classNames = in.getBytes(classBytes);
+		in.align();
+		int[] stationClass = in.getInts(n);
+		int[] modelClass = in.getInts(n);
+		double[] latitude = in.getDoubles(n);
+		double[] longitude = in.getDoubles(n);
+		int[] nameOffset = in.getInts(n + 1);
+		byte[] names = in.getBytes(nameBytes);
+		in.align();
+		int[] heightCount = in.getInts(n);
+		double[] heights = in.getDoubles(nHeights);
+		int[] frequencyCount = in.getInts(n);
+		double[] frequencies = in.getDoubles(nFrequencies);
+		int[] arrayCount = in.getInts(n);
+		int[] arrayLength = in.getInts(nArrays);
+		double[] values = in.getDoubles(nValues);
+		int[] stringCount = in.getInts(n);
+		int[] stringOffset = in.getInts(nStrings + 1);
+		byte[] strings = in.getBytes(stringBytes);
+
+		String[] classes = new String[classOffset.length - 1];
+		for (int c = 0; c < classes.length; c++)
+			classes[c] = getString(classNames, classOffset, c);
+		PropagationModel[] models = new PropagationModel[classes.length];
+		for (int c = nStationClasses; c < classes.length; c++) {
+			try {
+				models[c] = Class.forName(classes[c]).asSubclass(PropagationModel.class).getConstructor().newInstance();
+			} catch (Exception e) {
+				throw new IOException(in.fileName + ": cannot create " + classes[c], e);
+			}
+		}
+
+		SnapshotFields fields = new SnapshotFields();
+		int height = 0, frequency = 0, array = 0, value = 0, string = 0;
+		for (int i = 0; i < n; i++) {
+			BaseStation bs;
+			try {
+				bs = BaseStationRegistry.create(classes[stationClass[i]]);
+			} catch (Exception e) {
+				throw new IOException(in.fileName + ": cannot create " + classes[stationClass[i]], e);
+			}
+			bs.setName(getString(names, nameOffset, i));
+			bs.setPosition(new Point2D(latitude[i], longitude[i]));
+			bs.setHeight(copy(heights, height, heightCount[i]));
+			height += heightCount[i];
+			bs.setFrequencyMHz(copy(frequencies, frequency, frequencyCount[i]));
+			frequency += frequencyCount[i];
+
+			fields.clear();
+			for (int a = 0; a < arrayCount[i]; a++, array++) {
+				fields.putDoubleArray(copy(values, value, arrayLength[array]));
+				value += arrayLength[array];
+			}
+			for (int s = 0; s < stringCount[i]; s++, string++)
+				fields.putString(getString(strings, stringOffset, string));
+			bs.doFromSnapshot(fields);
+
+			nir.addBaseStation(bs, modelClass[i] < 0 ? null : models[modelClass[i]]);
+		}
+	}
+	private static String getString(byte[] bytes, int[] offset, int i) {
+		return new String(bytes, offset[i], offset[i+1] - offset[i], StandardCharsets.UTF_8);
+	}
+	private static double[] copy(double[] values, int first, int length) {
+		double[] array = new double[length];
+		System.arraycopy(values, first, array, 0, length);
+		return array;
+	}
+
+	/**
+	 * Writes the sections through a large direct buffer
+	 */
+	private static class Output {
+		private FileOutputStream stream;
+		private FileChannel channel;
+		private ByteBuffer buffer;
+		private long position;
+
+		Output(String fileName) throws IOException {
+			stream = new FileOutputStream(fileName);
+			channel = stream.getChannel();
+			buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		void putInt(int value) throws IOException {
+			if (buffer.remaining() < 4)
+				flush();
+			buffer.putInt(value);
+			position += 4;
+		}
+		void putLong(long value) throws IOException {
+			if (buffer.remaining() < 8)
+				flush();
+			buffer.putLong(value);
+			position += 8;
+		}
+		void putDouble(double value) throws IOException {
+			if (buffer.remaining() < 8)
+				flush();
+			buffer.putDouble(value);
+			position += 8;
+		}
+		void putDoubles(double[] values) throws IOException {
+			for (int i = 0; i < values.length; i++)
+				putDouble(values[i]);
+		}
+		void putBytes(byte[] bytes) throws IOException {
+			int written = 0;
+			while (written < bytes.length) {
+				if (!buffer.hasRemaining())
+					flush();
+				int length = Math.min(buffer.remaining(), bytes.length - written);
+				buffer.put(bytes, written, length);
+				written += length;
+			}
+			position += bytes.length;
+		}
+		/**
+		 * Writes the offsets of the concatenation of the arrays, with the total length at the end
+		 */
+		void putOffsets(byte[][] arrays) throws IOException {
+			int offset = 0;
+			putInt(offset);
+			for (byte[] b : arrays) {
+				offset += b.length;
+				putInt(offset);
+			}
+			align();
+		}
+		void align() throws IOException {
+			while (position % 8 != 0) {
+				if (!buffer.hasRemaining())
+					flush();
+				buffer.put((byte) 0);
+				position++;
+			}
+		}
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+		void close() throws IOException {
+			try {
+				flush();
+			} finally {
+				stream.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the sections from the mapped file with bulk copies
+	 */
+	private static class Input {
+		private ByteBuffer buffer;
+		private String fileName;
+
+		Input(MappedByteBuffer mapping, String fileName) {
+			buffer = mapping.order(ByteOrder.LITTLE_ENDIAN);
+			this.fileName = fileName;
+		}
+		int getInt() throws IOException {
+			check(4);
+			return buffer.getInt();
+		}
+		long getLong() throws IOException {
+			check(8);
+			return buffer.getLong();
+		}
+		int[] getInts(int length) throws IOException {
+			check(4L*length);
+			int[] values = new int[length];
+			buffer.asIntBuffer().get(values);
+			buffer.position(buffer.position() + 4*length);
+			align();
+			return values;
+		}
+		double[] getDoubles(int length) throws IOException {
+			check(8L*length);
+			double[] values = new double[length];
+			buffer.asDoubleBuffer().get(values);
+			buffer.position(buffer.position() + 8*length);
+			return values;
+		}
+		byte[] getBytes(int length) throws IOException {
+			check(length);
+			byte[] values = new byte[length];
+			buffer.get(values);
+			return values;
+		}
+		void align() {
+			buffer.position(Math.min(buffer.limit(), (buffer.position() + 7) & ~7));
+		}
+		private void check(long length) throws IOException {
+			if (length < 0 || length > buffer.remaining())
+				throw new IOException(fileName + " is truncated");
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package telecom.nir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The tiles of a TilePyramid saved in a single container file (see TilePyramid.createContainerWriter),
+ * read on demand: only the index is kept in memory.
+ *
+ * The file is little endian: a HEADER_SIZE bytes header, the tiles in the order they were written,
+ * each one with the TILE_SIZE*TILE_SIZE pixels as float32 (see TileWriter), and the index. The
+ * header is:
+ *
+ * 	offset	type		content
+ * 	0		8 bytes		"NIRTILE" and a 0 byte
+ * 	8		int			format version (1)
+ * 	12		int			pixels per side of a tile (tileSize)
+ * 	16		long		offset of the index
+ * 	24		int			number of tiles (n)
+ * 	28		36 bytes	reserved (0)
+ *
+ * The index has an INDEX_ENTRY_SIZE bytes entry per tile: int zoom, int x, int y, int reserved (0)
+ * and long offset of the tile. The index is written when the container is closed.
+ */
+public class TileContainer {
+	public static final int HEADER_SIZE = 64;
+	static final byte[] MAGIC = "NIRTILE\0".getBytes(StandardCharsets.US_ASCII);
+	static final int VERSION = 1;
+	static final int INDEX_ENTRY_SIZE = 24;
+
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private int tileSize;
+	private HashMap<Long, Long> offsets = new HashMap<Long, Long>();
+
+	public TileContainer(String fileName) throws IOException {
+		file = new RandomAccessFile(fileName, "r");
+		try {
+			channel = file.getChannel();
+			ByteBuffer header = read(0, HEADER_SIZE);
+			byte[] magic = new byte[MAGIC.length];
+			header.get(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException("Not a tile container: " + fileName);
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported tile container version " + version + ": " + fileName);
+			tileSize = header.getInt();
+			long indexOffset = header.getLong();
+			int n = header.getInt();
+			ByteBuffer index = read(indexOffset, n*INDEX_ENTRY_SIZE);
+			for (int t = 0; t < n; t++) {
+				int zoom = index.getInt();
+				int x = index.getInt();
+				int y = index.getInt();
+				index.getInt();
+				offsets.put(getKey(zoom, x, y), index.getLong());
+			}
+		} catch (IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	public int getTileSize() {
+		return tileSize;
+	}
+	public int getNTiles() {
+		return offsets.size();
+	}
+	public boolean hasTile(int zoom, int x, int y) {
+		return offsets.containsKey(getKey(zoom, x, y));
+	}
+	/**
+	 * Returns the pixels of the tile, or null if the container does not have it
+	 */
+	public float[] getTile(int zoom, int x, int y) throws IOException {
+		Long offset = offsets.get(getKey(zoom, x, y));
+		if (offset == null)
+			return null;
+		float[] values = new float[tileSize*tileSize];
+		read(offset, 4*values.length).asFloatBuffer().get(values);
+		return values;
+	}
+	public void close() throws IOException {
+		file.close();
+	}
+
+	static long getKey(int zoom, int x, int y) {
+		return ((long) zoom << 58) | ((long) x << 29) | y;
+	}
+	private ByteBuffer read(long position, int size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Truncated tile container");
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,60 @@
+package telecom.nir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends the tiles to a container file in the format described in TileContainer, and writes the
+ * index and the header when it is closed
+ */
+class TileContainerWriter implements TileWriter {
+	private RandomAccessFile file;
+	private FileChannel channel;
+	private int tileSize;
+	private long position = TileContainer.HEADER_SIZE;
+	private ByteBuffer index = ByteBuffer.allocate(1024*TileContainer.INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private int nTiles = 0;
+
+	TileContainerWriter(String fileName, int tileSize) throws IOException {
+		this.tileSize = tileSize;
+		file = new RandomAccessFile(fileName, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+	}
+
+	public synchronized void writeTile(int zoom, int x, int y, float[] values) throws IOException {
+		if (values.length != tileSize*tileSize)
+			throw new IllegalArgumentException("A tile has " + tileSize*tileSize + " pixels: " + values.length);
+		ByteBuffer buffer = ByteBuffer.allocate(4*values.length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.asFloatBuffer().put(values);
+		write(buffer, position);
+
+		if (index.remaining() < TileContainer.INDEX_ENTRY_SIZE) {
+			ByteBuffer larger = ByteBuffer.allocate(2*index.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+			index.flip();
+			index = larger.put(index);
+		}
+		index.putInt(zoom).putInt(x).putInt(y).putInt(0).putLong(position);
+		position += buffer.capacity();
+		nTiles++;
+	}
+	public synchronized void close() throws IOException {
+		try {
+			index.flip();
+			write(index, position);
+			ByteBuffer header = ByteBuffer.allocate(TileContainer.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(TileContainer.MAGIC).putInt(TileContainer.VERSION).putInt(tileSize).putLong(position).putInt(nTiles);
+			header.position(0);
+			write(header, 0);
+		} finally {
+			file.close();
+		}
+	}
+	private void write(ByteBuffer buffer, long offset) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer, offset + buffer.position());
+	}
+}
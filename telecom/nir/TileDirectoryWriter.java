@@ -0,0 +1,39 @@
+package telecom.nir;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes each tile in the file directory/zoom/x/y.bin: the pixels as little endian float32, without
+ * header (see TileWriter)
+ */
+class TileDirectoryWriter implements TileWriter {
+	private File directory;
+
+	TileDirectoryWriter(String directory) throws IOException {
+		this.directory = new File(directory);
+		if (!this.directory.isDirectory() && !this.directory.mkdirs())
+			throw new IOException("Cannot create the directory " + directory);
+	}
+
+	public void writeTile(int zoom, int x, int y, float[] values) throws IOException {
+		File column = new File(new File(directory, Integer.toString(zoom)), Integer.toString(x));
+		synchronized (this) {
+			if (!column.isDirectory() && !column.mkdirs())
+				throw new IOException("Cannot create the directory " + column);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(4*values.length).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.asFloatBuffer().put(values);
+		FileOutputStream stream = new FileOutputStream(new File(column, y + ".bin"));
+		try {
+			stream.write(buffer.array());
+		} finally {
+			stream.close();
+		}
+	}
+	public void close() {
+	}
+}
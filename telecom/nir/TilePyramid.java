@@ -0,0 +1,323 @@
+package telecom.nir;
+
+import static java.lang.Math.PI;
+import static java.lang.Math.atan;
+import static java.lang.Math.cos;
+import static java.lang.Math.floor;
+import static java.lang.Math.log;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.lang.Math.sinh;
+import static java.lang.Math.tan;
+import static java.lang.Math.toDegrees;
+import static java.lang.Math.toRadians;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import telecom.util.Point2D;
+
+/**
+ * Generates the XYZ tiles (Web Mercator, the tile (0, 0) of each zoom level at the north west
+ * corner) of E or TER over a region, for map viewers. Only the finest level is evaluated: each tile
+ * of a coarser level is aggregated from its four children, by the maximum or the mean of each 2x2
+ * block of pixels, so a coarse level costs no evaluation.
+ *
+ * The pyramid is generated depth first, one quadtree per tile of the coarsest level, and every tile
+ * is given to the TileWriter as soon as it is complete, so only a few tiles per thread are kept in
+ * memory. The pixels outside the region are NaN and are ignored by the aggregation. Tiles without
+ * a pixel of at least the threshold (or without any pixel in the region) are not written. With a
+ * pool, the children of each tile are evaluated by its threads.
+ */
+public class TilePyramid {
+	public enum Aggregation {MAX, MEAN}
+
+	public static final int TILE_SIZE = 256;
+	public static final int MAX_ZOOM = 24;
+	// Latitude limit of the Web Mercator projection
+	public static final double MAX_LATITUDE = 85.05112877980659;
+
+	private CompiledScene scene;
+	private double height;
+	private boolean fieldE;
+	private Aggregation aggregation;
+	private double threshold;
+
+	/**
+	 * @param fieldE		E (V/m) if true, else TER (%)
+	 * @param threshold		Tiles whose pixels are all below threshold are not written
+	 */
+	public TilePyramid(CompiledScene scene, double height, boolean fieldE, Aggregation aggregation, double threshold) {
+		this.scene = scene;
+		this.height = height;
+		this.fieldE = fieldE;
+		this.aggregation = aggregation;
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Returns a writer of each tile to the file directory/zoom/x/y.bin, the pixels as little endian
+	 * float32 (see TileWriter)
+	 */
+	public static TileWriter createDirectoryWriter(String directory) throws IOException {
+		return new TileDirectoryWriter(directory);
+	}
+	/**
+	 * Returns a writer of all the tiles to a single file with an index, read by TileContainer
+	 */
+	public static TileWriter createContainerWriter(String fileName) throws IOException {
+		return new TileContainerWriter(fileName, TILE_SIZE);
+	}
+
+	/**
+	 * Writes the tiles of the zoom levels [minZoom, maxZoom] that cover the region between coord1 and
+	 * coord2 to writer, which is not closed. If pool is not null the tiles are evaluated by its
+	 * threads. Returns the number of tiles written.
+	 */
+	public long generate(Point2D coord1, Point2D coord2, int minZoom, int maxZoom, TileWriter writer, ForkJoinPool pool) throws IOException {
+		if (minZoom < 0 || maxZoom > MAX_ZOOM || minZoom > maxZoom)
+			throw new IllegalArgumentException("The zoom levels must be in [0, " + MAX_ZOOM + "] and minZoom <= maxZoom: " + minZoom + ", " + maxZoom);
+		Generation generation = new Generation(coord1, coord2, minZoom, maxZoom, writer, pool);
+		List<TileTask> roots = new ArrayList<TileTask>();
+		int n = 1 << minZoom;
+		int xMin = getTileX(generation.longitudeMin, n);
+		int xMax = getTileX(generation.longitudeMax, n);
+		int yMin = getTileY(generation.latitudeMax, n);
+		int yMax = getTileY(generation.latitudeMin, n);
+		for (int y = yMin; y <= yMax; y++)
+			for (int x = xMin; x <= xMax; x++)
+				roots.add(new TileTask(generation, minZoom, x, y));
+		if (pool != null) {
+			pool.invoke(new RootsTask(roots));
+		} else {
+			for (TileTask root : roots)
+				root.compute();
+		}
+		if (generation.error != null)
+			throw generation.error;
+		return generation.written.sum();
+	}
+
+	/**
+	 * Returns the column of the tile of the longitude, among the n columns of a zoom level
+	 */
+	static int getTileX(double longitude, int n) {
+		return (int) min(n - 1, max(0, floor((longitude + 180)/360*n)));
+	}
+	/**
+	 * Returns the row of the tile of the latitude, among the n rows of a zoom level
+	 */
+	static int getTileY(double latitude, int n) {
+		double phi = toRadians(max(-MAX_LATITUDE, min(MAX_LATITUDE, latitude)));
+		return (int) min(n - 1, max(0, floor((1 - log(tan(phi) + 1/cos(phi))/PI)/2*n)));
+	}
+	/**
+	 * Returns the latitude of the pixel row y (may be fractional) of the nPixels rows of a zoom level
+	 */
+	static double getLatitude(double y, double nPixels) {
+		return toDegrees(atan(sinh(PI*(1 - 2*y/nPixels))));
+	}
+	static double getLongitude(double x, double nPixels) {
+		return x/nPixels*360 - 180;
+	}
+
+	/**
+	 * The region, levels, writer and errors of a call to generate
+	 */
+	private static class Generation {
+		private double latitudeMin;
+		private double longitudeMin;
+		private double latitudeMax;
+		private double longitudeMax;
+		private int minZoom;
+		private int maxZoom;
+		private TileWriter writer;
+		private ForkJoinPool pool;
+		private LongAdder written = new LongAdder();
+		// The first error of the writer: the tasks not started yet stop
+		private volatile IOException error;
+
+		Generation(Point2D coord1, Point2D coord2, int minZoom, int maxZoom, TileWriter writer, ForkJoinPool pool) {
+			latitudeMin = min(coord1.getLatitude(), coord2.getLatitude());
+			longitudeMin = min(coord1.getLongitude(), coord2.getLongitude());
+			latitudeMax = max(coord1.getLatitude(), coord2.getLatitude());
+			longitudeMax = max(coord1.getLongitude(), coord2.getLongitude());
+			this.minZoom = minZoom;
+			this.maxZoom = maxZoom;
+			this.writer = writer;
+			this.pool = pool;
+		}
+		synchronized void setError(IOException e) {
+			if (error == null)
+				error = e;
+		}
+	}
+
+	private static class RootsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private List<TileTask> roots;
+
+		RootsTask(List<TileTask> roots) {
+			this.roots = roots;
+		}
+		@Override
+		protected void compute() {
+			invokeAll(roots);
+		}
+	}
+
+	/**
+	 * Evaluates the tile (zoom, x, y), from its children if it is not at the finest level, writes it
+	 * and returns its pixels, or null if the tile is outside the region
+	 */
+	private class TileTask extends RecursiveTask<float[]> {
+		private static final long serialVersionUID = 1L;
+		private Generation generation;
+		private int zoom;
+		private int x;
+		private int y;
+
+		TileTask(Generation generation, int zoom, int x, int y) {
+			this.generation = generation;
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
+		}
+		@Override
+		protected float[] compute() {
+			if (generation.error != null || !intersectsRegion())
+				return null;
+			float[] values;
+			if (zoom == generation.maxZoom) {
+				values = evalTile();
+			} else {
+				TileTask[] children = new TileTask[4];
+				for (int c = 0; c < 4; c++)
+					children[c] = new TileTask(generation, zoom + 1, 2*x + (c & 1), 2*y + (c >> 1));
+				if (generation.pool != null) {
+					invokeAll(children);
+					values = aggregate(children[0].getRawResult(), children[1].getRawResult(),
+							children[2].getRawResult(), children[3].getRawResult());
+				} else {
+					values = aggregate(children[0].compute(), children[1].compute(),
+							children[2].compute(), children[3].compute());
+				}
+			}
+			if (zoom >= generation.minZoom && isAboveThreshold(values))
+				write(values);
+			return values;
+		}
+		private boolean intersectsRegion() {
+			double n = 1 << zoom;
+			return getLongitude(x, n) <= generation.longitudeMax && getLongitude(x + 1, n) >= generation.longitudeMin
+					&& getLatitude(y + 1, n) <= generation.latitudeMax && getLatitude(y, n) >= generation.latitudeMin;
+		}
+		/**
+		 * Evaluates the pixels of the tile inside the region, at their centers
+		 */
+		private float[] evalTile() {
+			double nPixels = (double) TILE_SIZE*(1L << zoom);
+			float[] values = new float[TILE_SIZE*TILE_SIZE];
+			double[] E = new double[TILE_SIZE];
+			double[] TER = new double[TILE_SIZE];
+			for (int py = 0; py < TILE_SIZE; py++) {
+				double latProbe = getLatitude((double) y*TILE_SIZE + py + 0.5, nPixels);
+				boolean rowInside = latProbe >= generation.latitudeMin && latProbe <= generation.latitudeMax;
+				for (int px = 0; px < TILE_SIZE; px++) {
+					double longProbe = getLongitude((double) x*TILE_SIZE + px + 0.5, nPixels);
+					if (!rowInside || longProbe < generation.longitudeMin || longProbe > generation.longitudeMax) {
+						values[py*TILE_SIZE + px] = Float.NaN;
+						continue;
+					}
+					scene.evalEandTERAtProbe(latProbe, longProbe, height, E, TER, px);
+					values[py*TILE_SIZE + px] = (float) (fieldE ? E[px] : TER[px]);
+				}
+			}
+			return values;
+		}
+		/**
+		 * Returns the tile whose quadrants are the children (north west, north east, south west and
+		 * south east), each 2x2 block of pixels reduced to one; null if every child is null
+		 */
+		private float[] aggregate(float[]... children) {
+			if (children[0] == null && children[1] == null && children[2] == null && children[3] == null)
+				return null;
+			int half = TILE_SIZE/2;
+			float[] values = new float[TILE_SIZE*TILE_SIZE];
+			for (int c = 0; c < 4; c++) {
+				float[] child = children[c];
+				int offsetX = (c & 1)*half;
+				int offsetY = (c >> 1)*half;
+				for (int py = 0; py < half; py++) {
+					for (int px = 0; px < half; px++) {
+						int target = (offsetY + py)*TILE_SIZE + offsetX + px;
+						if (child == null) {
+							values[target] = Float.NaN;
+							continue;
+						}
+						int source = 2*py*TILE_SIZE + 2*px;
+						values[target] = reduce(child[source], child[source + 1], child[source + TILE_SIZE], child[source + TILE_SIZE + 1]);
+					}
+				}
+			}
+			return values;
+		}
+		/**
+		 * Returns the maximum or the mean of the values that are not NaN, or NaN if all are
+		 */
+		private float reduce(float a, float b, float c, float d) {
+			int n = 0;
+			double sum = 0;
+			float maximum = Float.NEGATIVE_INFINITY;
+			if (!Float.isNaN(a)) {
+				n++;
+				sum += a;
+				maximum = max(maximum, a);
+			}
+			if (!Float.isNaN(b)) {
+				n++;
+				sum += b;
+				maximum = max(maximum, b);
+			}
+			if (!Float.isNaN(c)) {
+				n++;
+				sum += c;
+				maximum = max(maximum, c);
+			}
+			if (!Float.isNaN(d)) {
+				n++;
+				sum += d;
+				maximum = max(maximum, d);
+			}
+			if (n == 0)
+				return Float.NaN;
+			return aggregation == Aggregation.MAX ? maximum : (float) (sum/n);
+		}
+		private boolean isAboveThreshold(float[] values) {
+			if (values == null)
+				return false;
+			for (float value : values)
+				if (value >= threshold)
+					return true;
+			return false;
+		}
+		private void write(float[] values) {
+			if (generation.error != null)
+				return;
+			long start = Metrics.enabled ? System.nanoTime() : 0;
+			try {
+				generation.writer.writeTile(zoom, x, y, values);
+				generation.written.increment();
+			} catch (IOException e) {
+				generation.setError(e);
+			}
+			if (Metrics.enabled)
+				Metrics.addPhase(Metrics.Phase.WRITE, System.nanoTime() - start);
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package telecom.nir;
+
+import java.io.IOException;
+
+/**
+ * Receives the tiles of a TilePyramid, from the threads that evaluate them: implementations are
+ * thread safe. values has TilePyramid.TILE_SIZE rows of TilePyramid.TILE_SIZE pixels, from north
+ * to south and from west to east, NaN outside the region of the pyramid.
+ */
+public interface TileWriter {
+	void writeTile(int zoom, int x, int y, float[] values) throws IOException;
+	void close() throws IOException;
+}
@@ -0,0 +1,359 @@
+package telecom.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import telecom.nir.CompiledScene;
+import telecom.nir.NIR;
+import telecom.nir.PlaneGrid;
+import telecom.util.Point2D;
+
+/**
+ * An HTTP/JSON endpoint that evaluates the base stations of a NIR, compiled when the server is
+ * created, on the loopback interface only:
+ *
+ * 	GET /probe?lat=..&lon=..&h=..		{"E": V/m, "TER": %}
+ * 	GET /area?lat1=..&lon1=..&lat2=..&lon2=..&h=..&n=..
+ * 		the plane of evalEandTERAtPlane with n columns: {"nStepsLatitude", "nStepsLongitude",
+ * 		"latitudeMax", "longitudeMin", "stepLatitude", "stepLongitude", "E": [[row 0], ...], "TER": [...]}
+ * 	GET /stats				requests, rejections, p50 and p99 latency (microseconds), batches
+ *
+ * The probes of concurrent /probe requests are merged into batches (see ProbeCoalescer), so a
+ * burst of point queries costs one kernel call. At most maxConcurrentRequests requests are
+ * evaluated at once: the others are rejected at once with 503 and Retry-After, instead of queueing
+ * without bound. An area is limited to maxAreaCells cells (413 above it). Invalid parameters get
+ * 400. Every error has the body {"error": message}. /stats is not subject to the admission, so it
+ * answers while the server is overloaded, and the latencies are those of the /probe and /area
+ * requests answered with 200.
+ *
+ * The requests are handled on virtual threads when the JVM has them (Java 21 or later), else on a
+ * pool of 2*maxConcurrentRequests threads, so the rejections are answered while the admitted
+ * requests are evaluated.
+ */
+public class ExposureServer {
+	private static final long RESULT_TIMEOUT_SECONDS = 30;
+
+	private CompiledScene scene;
+	private int maxConcurrentRequests;
+	private int maxAreaCells;
+	private HttpServer server;
+	private ExecutorService executor;
+	private ProbeCoalescer coalescer;
+	private Semaphore admission;
+
+	private LongAdder requests = new LongAdder();
+	private LongAdder rejected = new LongAdder();
+	private LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * Creates a server with at most 64 concurrent requests, a batch window of 200 microseconds and
+	 * areas up to 250000 cells
+	 */
+	public ExposureServer(NIR nir, int port) throws IOException {
+		this(nir, port, 64, 200, 4096, 250000);
+	}
+	/**
+	 * @param port					Port on the loopback interface, 0 for any free port (see getPort)
+	 * @param batchWindowMicros		Time that a batch of probes waits for more probes
+	 * @param maxBatch				Largest number of probes of a batch
+	 */
+	public ExposureServer(NIR nir, int port, int maxConcurrentRequests, long batchWindowMicros, int maxBatch, int maxAreaCells) throws IOException {
+		if (maxConcurrentRequests < 1 || maxBatch < 1 || maxAreaCells < 1)
+			throw new IllegalArgumentException("maxConcurrentRequests, maxBatch and maxAreaCells must be positive");
+		this.scene = nir.compile();
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.maxAreaCells = maxAreaCells;
+		admission = new Semaphore(maxConcurrentRequests);
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/probe", new Handler(true) {
+			String handle(HashMap<String, String> query) throws Exception {
+				return getProbe(query);
+			}
+		});
+		server.createContext("/area", new Handler(true) {
+			String handle(HashMap<String, String> query) throws Exception {
+				return getArea(query);
+			}
+		});
+		server.createContext("/stats", new Handler(false) {
+			String handle(HashMap<String, String> query) {
+				return getStats();
+			}
+		});
+		coalescer = new ProbeCoalescer(scene, batchWindowMicros*1000, maxBatch, ForkJoinPool.commonPool());
+	}
+
+	public void start() {
+		executor = createExecutor(2*maxConcurrentRequests);
+		server.setExecutor(executor);
+		server.start();
+	}
+	/**
+	 * Stops accepting requests, waits up to delaySeconds for the requests being handled and stops
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		coalescer.stop();
+		if (executor != null)
+			executor.shutdown();
+	}
+	/**
+	 * Returns the port the server listens to
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+	public long getNRequests() {
+		return requests.sum();
+	}
+	public long getNRejected() {
+		return rejected.sum();
+	}
+	/**
+	 * Returns the number of latencies recorded: the /probe and /area requests answered with 200
+	 */
+	public long getNLatencies() {
+		return latency.getCount();
+	}
+	/**
+	 * Returns an upper bound of the fraction q of the latencies of the /probe and /area requests
+	 * answered with 200, in microseconds
+	 */
+	public double getLatencyQuantileMicros(double q) {
+		return latency.getQuantileMicros(q);
+	}
+	/**
+	 * Returns the number of kernel calls of the /probe requests and the number of probes they evaluated
+	 */
+	public long getNBatches() {
+		return coalescer.getNBatches();
+	}
+	public long getNBatchedProbes() {
+		return coalescer.getNProbes();
+	}
+
+	/**
+	 * Returns an executor of virtual threads if the JVM has them, else a pool of nThreads threads
+	 */
+	private static ExecutorService createExecutor(int nThreads) {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(nThreads);
+		}
+	}
+
+	private String getProbe(HashMap<String, String> query) throws Exception {
+		double latitude = getParameter(query, "lat");
+		double longitude = getParameter(query, "lon");
+		double height = getParameter(query, "h");
+		double[] result;
+		try {
+			result = coalescer.submit(latitude, longitude, height).get(RESULT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause().getMessage(), e.getCause());
+		}
+		StringBuilder str = new StringBuilder();
+		str.append("{\"E\": ");
+		appendNumber(str, result[0]);
+		str.append(", \"TER\": ");
+		appendNumber(str, result[1]);
+		return str.append('}').toString();
+	}
+	private String getArea(HashMap<String, String> query) {
+		Point2D coord1 = new Point2D(getParameter(query, "lat1"), getParameter(query, "lon1"));
+		Point2D coord2 = new Point2D(getParameter(query, "lat2"), getParameter(query, "lon2"));
+		double height = getParameter(query, "h");
+		double n = getParameter(query, "n");
+		if (n < 1 || n != (int) n || coord1.getLatitude() == coord2.getLatitude() || coord1.getLongitude() == coord2.getLongitude())
+			throw new IllegalArgumentException("The area must have a positive size and n must be a positive integer");
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, (int) n);
+		if ((long) grid.getNStepsLatitude()*grid.getNStepsLongitude() > maxAreaCells)
+			throw new AreaTooLargeException(grid.getNStepsLatitude()*(long) grid.getNStepsLongitude());
+
+		int nStepsLatitude = grid.getNStepsLatitude();
+		int nStepsLongitude = grid.getNStepsLongitude();
+		double[] E = new double[nStepsLongitude];
+		double[] TER = new double[nStepsLongitude];
+		StringBuilder strE = new StringBuilder();
+		StringBuilder strTER = new StringBuilder();
+		for (int i = 0; i < nStepsLatitude; i++) {
+			double latProbe = grid.getLatitude(i);
+			for (int j = 0; j < nStepsLongitude; j++)
+				scene.evalEandTERAtProbe(latProbe, grid.getLongitude(j), height, E, TER, j);
+			appendRow(strE.append(i == 0 ? "[" : ", "), E);
+			appendRow(strTER.append(i == 0 ? "[" : ", "), TER);
+		}
+		StringBuilder str = new StringBuilder();
+		str.append("{\"nStepsLatitude\": ").append(nStepsLatitude)
+				.append(", \"nStepsLongitude\": ").append(nStepsLongitude)
+				.append(", \"latitudeMax\": ").append(grid.getLatitudeMax())
+				.append(", \"longitudeMin\": ").append(grid.getLongitudeMin())
+				.append(", \"stepLatitude\": ").append(grid.getStepLatitude())
+				.append(", \"stepLongitude\": ").append(grid.getStepLongitude())
+				.append(", \"E\": ").append(strE).append("]")
+				.append(", \"TER\": ").append(strTER).append("]}");
+		return str.toString();
+	}
+	private String getStats() {
+		StringBuilder str = new StringBuilder();
+		str.append("{\"requests\": ").append(getNRequests())
+				.append(", \"rejected\": ").append(getNRejected())
+				.append(", \"p50Micros\": ").append(getLatencyQuantileMicros(0.5))
+				.append(", \"p99Micros\": ").append(getLatencyQuantileMicros(0.99))
+				.append(", \"batches\": ").append(getNBatches())
+				.append(", \"batchedProbes\": ").append(getNBatchedProbes())
+				.append('}');
+		return str.toString();
+	}
+
+	private static double getParameter(HashMap<String, String> query, String name) {
+		String value = query.get(name);
+		if (value == null)
+			throw new IllegalArgumentException("Missing parameter " + name);
+		try {
+			double result = Double.parseDouble(value);
+			if (Double.isNaN(result) || Double.isInfinite(result))
+				throw new NumberFormatException();
+			return result;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid parameter " + name + ": " + value);
+		}
+	}
+	private static HashMap<String, String> parseQuery(String query) {
+		HashMap<String, String> result = new HashMap<String, String>();
+		if (query == null)
+			return result;
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0)
+				result.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+						URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+		}
+		return result;
+	}
+	private static void appendRow(StringBuilder str, double[] row) {
+		str.append('[');
+		for (int j = 0; j < row.length; j++) {
+			if (j > 0)
+				str.append(", ");
+			appendNumber(str, row[j]);
+		}
+		str.append(']');
+	}
+	/**
+	 * Appends the number, or null if it is not finite (JSON has no NaN or infinity)
+	 */
+	private static void appendNumber(StringBuilder str, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			str.append("null");
+		else
+			str.append(value);
+	}
+	private static String getError(String message) {
+		StringBuilder str = new StringBuilder("{\"error\": \"");
+		for (char c : String.valueOf(message).toCharArray()) {
+			if (c == '"' || c == '\\')
+				str.append('\\').append(c);
+			else if (c < ' ')
+				str.append(String.format("\\u%04x", (int) c));
+			else
+				str.append(c);
+		}
+		return str.append("\"}").toString();
+	}
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static class AreaTooLargeException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		AreaTooLargeException(long nCells) {
+			super("The area has " + nCells + " cells");
+		}
+	}
+
+	/**
+	 * Admission, errors and latency of an endpoint, which returns the JSON body of the response
+	 */
+	private abstract class Handler implements HttpHandler {
+		// False for the endpoints answered without admission and without latency (/stats)
+		private boolean evaluates;
+
+		Handler(boolean evaluates) {
+			this.evaluates = evaluates;
+		}
+		abstract String handle(HashMap<String, String> query) throws Exception;
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				requests.increment();
+				if (!exchange.getRequestMethod().equals("GET")) {
+					send(exchange, 405, getError("Only GET is supported"));
+					return;
+				}
+				if (evaluates && !admission.tryAcquire()) {
+					rejected.increment();
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					send(exchange, 503, getError("Too many concurrent requests"));
+					return;
+				}
+				long start = System.nanoTime();
+				try {
+					String body;
+					try {
+						body = handle(parseQuery(exchange.getRequestURI().getRawQuery()));
+					} catch (AreaTooLargeException e) {
+						send(exchange, 413, getError(e.getMessage()));
+						return;
+					} catch (IllegalArgumentException e) {
+						send(exchange, 400, getError(e.getMessage()));
+						return;
+					} catch (TimeoutException e) {
+						send(exchange, 503, getError("Timeout"));
+						return;
+					} catch (Exception e) {
+						send(exchange, 500, getError(e.getMessage()));
+						return;
+					}
+					send(exchange, 200, body);
+					if (evaluates)
+						latency.record(System.nanoTime() - start);
+				} finally {
+					if (evaluates)
+						admission.release();
+				}
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+}
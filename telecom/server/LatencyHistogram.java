@@ -0,0 +1,79 @@
+package telecom.server;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in microseconds, with SUB_BUCKETS buckets per power of two, so a
+ * quantile is reported with an error below 1/SUB_BUCKETS of its value. Threads record without
+ * contention (LongAdder).
+ */
+class LatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	// Up to 2^40 microseconds
+	private static final int SIZE = 40*SUB_BUCKETS;
+
+	private LongAdder[] counts = new LongAdder[SIZE];
+
+	LatencyHistogram() {
+		for (int b = 0; b < SIZE; b++)
+			counts[b] = new LongAdder();
+	}
+
+	void record(long nanos) {
+		counts[getBucket(nanos/1000)].increment();
+	}
+	/**
+	 * Returns the bucket of the latency: values below SUB_BUCKETS have their own bucket, larger ones
+	 * are split by their power of two and their next SUB_BITS bits
+	 */
+	private static int getBucket(long micros) {
+		if (micros < SUB_BUCKETS)
+			return (int) max(0, micros);
+		int log2 = 63 - Long.numberOfLeadingZeros(micros);
+		int mantissa = (int) (micros >>> (log2 - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return min(SIZE - 1, (log2 - SUB_BITS + 1)*SUB_BUCKETS + mantissa);
+	}
+	/**
+	 * Returns the largest latency (microseconds) of the bucket b
+	 */
+	private static double getUpperBound(int b) {
+		if (b < SUB_BUCKETS)
+			return b + 1;
+		int log2 = b/SUB_BUCKETS + SUB_BITS - 1;
+		int mantissa = b % SUB_BUCKETS;
+		return (double) ((SUB_BUCKETS + mantissa + 1L) << (log2 - SUB_BITS));
+	}
+
+	long getCount() {
+		long total = 0;
+		for (LongAdder count : counts)
+			total += count.sum();
+		return total;
+	}
+	/**
+	 * Returns an upper bound (microseconds) of the fraction q of the latencies, or 0 if none was recorded
+	 */
+	double getQuantileMicros(double q) {
+		long[] values = new long[SIZE];
+		long total = 0;
+		for (int b = 0; b < SIZE; b++) {
+			values[b] = counts[b].sum();
+			total += values[b];
+		}
+		if (total == 0)
+			return 0;
+		long target = (long) ceil(q*total);
+		long accumulated = 0;
+		for (int b = 0; b < SIZE; b++) {
+			accumulated += values[b];
+			if (accumulated >= target)
+				return getUpperBound(b);
+		}
+		return getUpperBound(SIZE - 1);
+	}
+}
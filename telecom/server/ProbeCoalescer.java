@@ -0,0 +1,138 @@
+package telecom.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import telecom.nir.CompiledScene;
+
+/**
+ * Merges the probes submitted by concurrent requests into batches evaluated by a single call to
+ * CompiledScene.evalEandTERAtProbes. A batch starts with the first waiting probe and takes the
+ * probes submitted in the next windowNanos, up to maxBatch probes; it is evaluated in the thread of
+ * the coalescer while the next probes queue up. The results are the same as evaluating each probe
+ * alone.
+ */
+class ProbeCoalescer {
+	private CompiledScene scene;
+	private long windowNanos;
+	private int maxBatch;
+	private ForkJoinPool pool;
+	private LinkedBlockingQueue<Probe> queue = new LinkedBlockingQueue<Probe>();
+	private Thread thread;
+	private volatile boolean stopped;
+
+	private LongAdder batches = new LongAdder();
+	private LongAdder probes = new LongAdder();
+
+	/**
+	 * @param pool	Threads of the large batches (see CompiledScene.evalEandTERAtProbes), or null
+	 */
+	ProbeCoalescer(CompiledScene scene, long windowNanos, int maxBatch, ForkJoinPool pool) {
+		this.scene = scene;
+		this.windowNanos = windowNanos;
+		this.maxBatch = maxBatch;
+		this.pool = pool;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				coalesce();
+			}
+		}, "ProbeCoalescer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the future {E, TER} of the probe
+	 */
+	CompletableFuture<double[]> submit(double latitude, double longitude, double height) {
+		Probe probe = new Probe(latitude, longitude, height);
+		queue.add(probe);
+		// A probe added after stop() drained the queue
+		if (stopped)
+			failPending();
+		return probe.result;
+	}
+	void stop() {
+		stopped = true;
+		thread.interrupt();
+		failPending();
+	}
+	private void failPending() {
+		List<Probe> pending = new ArrayList<Probe>();
+		queue.drainTo(pending);
+		fail(pending, new IllegalStateException("The coalescer is stopped"));
+	}
+	private static void fail(List<Probe> probes, Exception e) {
+		for (Probe probe : probes)
+			probe.result.completeExceptionally(e);
+	}
+	long getNBatches() {
+		return batches.sum();
+	}
+	long getNProbes() {
+		return probes.sum();
+	}
+
+	private void coalesce() {
+		List<Probe> batch = new ArrayList<Probe>();
+		while (!stopped) {
+			try {
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + windowNanos;
+				while (batch.size() < maxBatch) {
+					queue.drainTo(batch, maxBatch - batch.size());
+					long remaining = deadline - System.nanoTime();
+					if (batch.size() >= maxBatch || remaining <= 0)
+						break;
+					Probe probe = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (probe == null)
+						break;
+					batch.add(probe);
+				}
+				evaluate(batch);
+			} catch (InterruptedException e) {
+				// stop() interrupts the thread
+				fail(batch, new IllegalStateException("The coalescer is stopped"));
+			} catch (RuntimeException e) {
+				fail(batch, e);
+			}
+			batch.clear();
+		}
+	}
+	private void evaluate(List<Probe> batch) {
+		int n = batch.size();
+		double[] latitude = new double[n];
+		double[] longitude = new double[n];
+		double[] height = new double[n];
+		for (int p = 0; p < n; p++) {
+			latitude[p] = batch.get(p).latitude;
+			longitude[p] = batch.get(p).longitude;
+			height[p] = batch.get(p).height;
+		}
+		double[] E = new double[n];
+		double[] TER = new double[n];
+		scene.evalEandTERAtProbes(latitude, longitude, height, E, TER, pool);
+		batches.increment();
+		probes.add(n);
+		for (int p = 0; p < n; p++)
+			batch.get(p).result.complete(new double[]{E[p], TER[p]});
+	}
+
+	private static class Probe {
+		private double latitude;
+		private double longitude;
+		private double height;
+		private CompletableFuture<double[]> result = new CompletableFuture<double[]>();
+
+		Probe(double latitude, double longitude, double height) {
+			this.latitude = latitude;
+			this.longitude = longitude;
+			this.height = height;
+		}
+	}
+}
@@ -3,18 +3,59 @@ package telecom.tests;
 import static java.lang.Math.log10;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 import static telecom.util.Functions.get2DDistanceKM;
 import static telecom.util.Functions.get3DDistanceKM;
+import static telecom.util.Functions.getExact2DDistanceKM;
+import static telecom.util.Functions.getProjected2DDistanceKM;
 import static telecom.util.Functions.getPhiDegree;
+import static telecom.util.Functions.setGeodesy;
 import static telecom.util.Functions.toDecimalDegree;
 
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 import org.junit.Test;
 
 import telecom.basestation.BaseStation;
+import telecom.basestation.BaseStationLoader;
 import telecom.basestation.DirectivityCat2BS;
+import telecom.basestation.PatternTable;
+import telecom.nir.AdaptivePlane;
+import telecom.nir.CompiledScene;
+import telecom.nir.Contours;
+import telecom.nir.Float32Accuracy;
+import telecom.nir.IncrementalPlane;
+import telecom.nir.MaxExposure;
+import telecom.nir.Metrics;
 import telecom.nir.NIR;
+import telecom.nir.PlaneGrid;
+import telecom.nir.ProgressivePlane;
+import telecom.nir.Raster;
+import telecom.nir.ResultCache;
+import telecom.nir.ScenarioSnapshot;
+import telecom.nir.TileContainer;
+import telecom.nir.TilePyramid;
+import telecom.nir.TileWriter;
 import telecom.propagation.FreeSpace;
+import telecom.propagation.PropagationModel;
+import telecom.server.ExposureServer;
+import telecom.util.FloatMatrix;
+import telecom.util.Geodesy;
 import telecom.util.Pair;
+import telecom.util.Parser;
 import telecom.util.Point2D;
 import telecom.util.Point3D;
 import telecom.util.SimpleMatrix;
@@ -368,4 +409,1131 @@ public class Tests {
 		assertEquals("testSimpleMatrix - Changed element, test 9", 281.9, matrix.getElement(8, 5), 0);
 		assertEquals("testSimpleMatrix - Default element, test 10", 0, matrix.getElement(9, 19), 0);
 	}
+	@Test
+	public void testParallelPlane() {
+		double[] htx = new double[]{30, 40};
+		double[] freq = new double[]{1800, 900};
+		double[] tilt_deg = new double[]{3, 4};
+		double[] teta_bw_vert_deg = new double[]{8, 8.5};
+		double[] eirp = new double[]{60, 61};
+		double[] max_ssl = new double[]{-20, -19};
+
+		BaseStation BS1 = new DirectivityCat2BS("BS1", new Point2D(-15.7951642, -47.9278497), htx, freq, tilt_deg, teta_bw_vert_deg, eirp, max_ssl);
+		BaseStation BS2 = new DirectivityCat2BS("BS2", new Point2D(-15.7967418, -47.9532191), htx, freq, tilt_deg, teta_bw_vert_deg, eirp, max_ssl);
+		FreeSpace fs = new FreeSpace();
+
+		NIR nir = new NIR();
+		nir.addBaseStation(BS1, fs);
+		nir.addBaseStation(BS2, fs);
+
+		Point2D coord1 = new Point2D(-15.78, -47.96);
+		Point2D coord2 = new Point2D(-15.81, -47.92);
+		Pair<SimpleMatrix, SimpleMatrix> serial = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 40);
+		int N_lat = serial.getFirst().getSize().getFirst();
+		int N_long = serial.getFirst().getSize().getSecond();
+		for (int nThreads = 1; nThreads <= 8; nThreads *= 2) {
+			Pair<SimpleMatrix, SimpleMatrix> parallel = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 40, nThreads);
+			assertEquals("testParallelPlane size", N_lat, parallel.getFirst().getSize().getFirst(), 0);
+			for (int i = 0; i < N_lat; i++) {
+				for (int j = 0; j < N_long; j++) {
+					assertEquals("testParallelPlane E", serial.getFirst().getElement(i, j), parallel.getFirst().getElement(i, j), 0);
+					assertEquals("testParallelPlane TER", serial.getSecond().getElement(i, j), parallel.getSecond().getElement(i, j), 0);
+				}
+			}
+		}
+	}
+	@Test
+	public void testCompiledScene() {
+		double[] htx = new double[]{30, 40, 50, 60};
+		double[] freq = new double[]{1800, 900, 2100, 3000};
+		double[] tilt_deg = new double[]{3, 4, 5, 6};
+		double[] teta_bw_vert_deg = new double[]{8, 8.5, 9, 10};
+		double[] eirp = new double[]{60, 61, 62, 63};
+		double[] max_ssl = new double[]{-20, -19, -21, -18};
+
+		BaseStation BS1 = new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), htx, freq, tilt_deg, teta_bw_vert_deg, eirp, max_ssl);
+		BaseStation BS2 = new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{0}, new double[]{9}, new double[]{58.12}, new double[]{-15});
+		FreeSpace fs = new FreeSpace();
+
+		NIR nir = new NIR();
+		nir.addBaseStation(BS1, fs);
+		nir.addBaseStation(BS2, fs);
+
+		CompiledScene scene = nir.compile();
+		assertEquals("testCompiledScene compiled radios", 5, scene.getNCompiledRadios());
+		assertEquals("testCompiledScene generic stations", 0, scene.getNGenericStations());
+		for (int i = 0; i < 20; i++) {
+			Point3D probe = new Point3D(-15.818 + i*0.0003, -47.920 + i*0.0004, 1.5 + i);
+			Pair<Double, Double> generic = nir.evalEandTERAtProbe(probe);
+			Pair<Double, Double> compiled = scene.evalEandTERAtProbe(probe);
+			assertEquals("testCompiledScene E", generic.getFirst(), compiled.getFirst(), 0);
+			assertEquals("testCompiledScene TER", generic.getSecond(), compiled.getSecond(), 0);
+		}
+	}
+	@Test
+	public void testProbeIntoBuffers() {
+		BaseStation BS1 = new DirectivityCat2BS("BS", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19});
+		FreeSpace fs = new FreeSpace();
+
+		NIR nir = new NIR();
+		nir.addBaseStation(BS1, fs);
+		CompiledScene scene = nir.compile();
+
+		double[] E = new double[6];
+		double[] TER = new double[6];
+		for (int i = 0; i < 3; i++) {
+			Point3D probe = new Point3D(-15.8134122 + i*0.001, -47.9159914, 18);
+			nir.evalEandTERAtProbe(probe, E, TER, 2*i);
+			scene.evalEandTERAtProbe(probe.getLatitude(), probe.getLongitude(), probe.getHeight(), E, TER, 2*i + 1);
+
+			Pair<Double, Double> result = nir.evalEandTERAtProbe(probe);
+			assertEquals("testProbeIntoBuffers E", result.getFirst(), E[2*i], 0);
+			assertEquals("testProbeIntoBuffers TER", result.getSecond(), TER[2*i], 0);
+			assertEquals("testProbeIntoBuffers compiled E", result.getFirst(), E[2*i + 1], 0);
+			assertEquals("testProbeIntoBuffers compiled TER", result.getSecond(), TER[2*i + 1], 0);
+		}
+	}
+	@Test
+	public void testTERTolerance() {
+		double[] htx = new double[]{30};
+		double[] freq = new double[]{1800};
+		double[] tilt_deg = new double[]{3};
+		double[] teta_bw_vert_deg = new double[]{8};
+		double[] eirp = new double[]{60};
+		double[] max_ssl = new double[]{-20};
+		FreeSpace fs = new FreeSpace();
+
+		NIR nir = new NIR();
+		// 20 stations near the probes and 200 stations 1 to 3 degrees away
+		for (int i = 0; i < 220; i++) {
+			double offset = i < 20 ? 0.001*i : 1 + 0.01*i;
+			nir.addBaseStation(new DirectivityCat2BS("BS" + i, new Point2D(-15.8 + offset, -47.9 - offset), htx, freq, tilt_deg, teta_bw_vert_deg, eirp, max_ssl), fs);
+		}
+		CompiledScene exact = nir.compile();
+		double tolerance = 0.001;
+		nir.setTERTolerance(tolerance);
+		CompiledScene indexed = nir.compile();
+
+		double[] E = new double[2];
+		double[] TER = new double[2];
+		double[] dropped = new double[2];
+		for (int i = 0; i < 10; i++) {
+			double lat = -15.8 + 0.002*i;
+			double lon = -47.9 - 0.002*i;
+			exact.evalEandTERAtProbe(lat, lon, 1.5, E, TER, dropped, 0);
+			indexed.evalEandTERAtProbe(lat, lon, 1.5, E, TER, dropped, 1);
+			assertEquals("testTERTolerance no drop without tolerance", 0, dropped[0], 0);
+			assertTrue("testTERTolerance dropped bounded by tolerance", dropped[1] <= tolerance);
+			assertEquals("testTERTolerance error bounded by dropped TER", TER[0] - dropped[1]/2, TER[1], dropped[1]/2);
+		}
+	}
+	@Test
+	public void testLocalProjectionGeodesy() {
+		Point3D p1 = new Point3D(toDecimalDegree(-18, 9, 27.36), toDecimalDegree(-47, 58, 0.768), 1.7);
+		Point3D p2 = new Point3D(toDecimalDegree(-18, 9, 52.416), toDecimalDegree(-47, 58, 17.004), 18);
+		assertEquals("testLocalProjectionGeodesy 1 km", getExact2DDistanceKM(p1, p2), getProjected2DDistanceKM(p1, p2), 1e-6);
+
+		p1 = new Point3D(-15.8162942, -47.9173204, 0);
+		p2 = new Point3D(-15.2, -47.3, 0);
+		double exact = getExact2DDistanceKM(p1, p2);
+		assertEquals("testLocalProjectionGeodesy 100 km", exact, getProjected2DDistanceKM(p1, p2), 1e-4*exact);
+
+		BaseStation BS1 = new DirectivityCat2BS("BS", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19});
+		NIR nir = new NIR();
+		nir.addBaseStation(BS1, new FreeSpace());
+		Point3D probe = new Point3D(-15.8134122, -47.9159914, 18);
+		Pair<Double, Double> resultExact = nir.evalEandTERAtProbe(probe);
+
+		setGeodesy(Geodesy.LOCAL_PROJECTION);
+		try {
+			assertEquals("testLocalProjectionGeodesy selected", getProjected2DDistanceKM(p1, p2), get2DDistanceKM(p1, p2), 0);
+			Pair<Double, Double> result = nir.evalEandTERAtProbe(probe);
+			Pair<Double, Double> compiled = nir.compile().evalEandTERAtProbe(probe);
+			assertEquals("testLocalProjectionGeodesy E", resultExact.getFirst(), result.getFirst(), 1e-4);
+			assertEquals("testLocalProjectionGeodesy compiled E", result.getFirst(), compiled.getFirst(), 0);
+			assertEquals("testLocalProjectionGeodesy compiled TER", result.getSecond(), compiled.getSecond(), 0);
+		} finally {
+			setGeodesy(Geodesy.EXACT);
+		}
+	}
+	@Test
+	public void testPatternTable() {
+		double[] tilt_deg = new double[]{3, 6};
+		double[] teta_bw_vert_deg = new double[]{8, 10};
+		double[] max_ssl = new double[]{-20, -18};
+		DirectivityCat2BS bs = new DirectivityCat2BS("BS", new Point2D(-15.8162942, -47.9173204), new double[]{30, 60}, new double[]{1800, 3000}, tilt_deg, teta_bw_vert_deg, new double[]{60, 63}, max_ssl);
+
+		PatternTable[] tables = bs.getPatternTables();
+		double[] error = bs.getPatternTableMaxErrordB();
+		assertEquals("testPatternTable number of tables", 2, tables.length);
+		for (int i = 0; i < 2; i++) {
+			assertTrue("testPatternTable reported error", error[i] < 0.01);
+			for (double theta_deg = -90; theta_deg <= 90; theta_deg += 0.037) {
+				double analytic = DirectivityCat2BS.getFdB(theta_deg*Math.PI/180, tilt_deg[i]*Math.PI/180, teta_bw_vert_deg[i]*Math.PI/180, max_ssl[i]);
+				assertEquals("testPatternTable lookup", analytic, tables[i].getFdB(theta_deg*Math.PI/180, tilt_deg[i]*Math.PI/180), error[i] + 1e-12);
+				assertEquals("testPatternTable linear lookup", analytic, 10*log10(tables[i].getGainLinear(theta_deg*Math.PI/180, tilt_deg[i]*Math.PI/180)), error[i] + 1e-12);
+			}
+		}
+
+		// The shared tables are bounded
+		for (int k = 0; k <= PatternTable.MAX_TABLES; k++)
+			PatternTable.getTable(0.02, -30 + k*1e-3);
+		assertEquals("testPatternTable cache", PatternTable.MAX_TABLES, PatternTable.getNCachedTables());
+
+		PatternTable.setResolutionDegree(0);
+		try {
+			bs.setTiltDegree(tilt_deg);
+			assertEquals("testPatternTable disabled", null, bs.getPatternTables());
+		} finally {
+			PatternTable.setResolutionDegree(0.01);
+		}
+	}
+	@Test
+	public void testSaveEandTerAtFileInBlocks() throws Exception {
+		BaseStation BS1 = new DirectivityCat2BS("BS1", new Point2D(-15.7951642, -47.9278497), new double[]{30}, new double[]{1800}, new double[]{3}, new double[]{8}, new double[]{60}, new double[]{-20});
+		NIR nir = new NIR();
+		nir.addBaseStation(BS1, new FreeSpace());
+
+		Point2D coord1 = new Point2D(-15.78, -47.96);
+		Point2D coord2 = new Point2D(-15.81, -47.92);
+		Pair<SimpleMatrix, SimpleMatrix> plane = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 20);
+		int N_lat = plane.getFirst().getSize().getFirst();
+		String expectedE = "";
+		for (int i = 0; i < N_lat; i++) {
+			for (int j = 0; j < 20; j++)
+				expectedE += plane.getFirst().getElement(i, j) + "\t";
+			expectedE += "\n";
+		}
+
+		File eFile = File.createTempFile("nir_E", ".txt");
+		File terFile = File.createTempFile("nir_TER", ".txt");
+		try {
+			// A budget of 3 rows per block
+			nir.saveEandTerAtFile(coord1, coord2, 1.5, 20, eFile.getPath(), terFile.getPath(), 3*20*16, null);
+			assertEquals("testSaveEandTerAtFileInBlocks E", expectedE, new String(Files.readAllBytes(eFile.toPath())));
+		} finally {
+			eFile.delete();
+			terFile.delete();
+		}
+	}
+	@Test
+	public void testRasterFile() throws Exception {
+		BaseStation BS1 = new DirectivityCat2BS("BS1", new Point2D(-15.7951642, -47.9278497), new double[]{30}, new double[]{1800}, new double[]{3}, new double[]{8}, new double[]{60}, new double[]{-20});
+		NIR nir = new NIR();
+		nir.addBaseStation(BS1, new FreeSpace());
+
+		Point2D coord1 = new Point2D(-15.78, -47.96);
+		Point2D coord2 = new Point2D(-15.81, -47.92);
+		Pair<SimpleMatrix, SimpleMatrix> plane = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 20);
+		int N_lat = plane.getFirst().getSize().getFirst();
+
+		File eFile = File.createTempFile("nir_E", ".raster");
+		File terFile = File.createTempFile("nir_TER", ".raster");
+		try {
+			for (int k = 0; k < 2; k++) {
+				boolean float32 = k == 1;
+				nir.saveEandTerAtRasterFile(coord1, coord2, 1.5, 20, eFile.getPath(), terFile.getPath(), float32, 3*20*16, null);
+				Raster E = new Raster(eFile.getPath());
+				Raster TER = new Raster(terFile.getPath());
+				assertEquals("testRasterFile rows", N_lat, E.getSize().getFirst(), 0);
+				assertEquals("testRasterFile columns", 20, E.getSize().getSecond(), 0);
+				assertEquals("testRasterFile north", -15.78, E.getLatitudeNorth(), 0);
+				assertEquals("testRasterFile west", -47.96, E.getLongitudeWest(), 0);
+				assertEquals("testRasterFile height", 1.5, E.getHeight(), 0);
+				assertEquals("testRasterFile units E", "V/m", E.getUnits());
+				assertEquals("testRasterFile units TER", "%", TER.getUnits());
+				for (int i = 0; i < N_lat; i++) {
+					for (int j = 0; j < 20; j++) {
+						double expectedE = plane.getFirst().getElement(i, j);
+						double expectedTER = plane.getSecond().getElement(i, j);
+						if (float32) {
+							expectedE = (float) expectedE;
+							expectedTER = (float) expectedTER;
+						}
+						assertEquals("testRasterFile E", expectedE, E.getElement(i, j), 0);
+						assertEquals("testRasterFile TER", expectedTER, TER.getElement(i, j), 0);
+					}
+				}
+			}
+		} finally {
+			eFile.delete();
+			terFile.delete();
+		}
+	}
+	@Test
+	public void testBaseStationLoader() throws Exception {
+		BaseStation bs1 = new DirectivityCat2BS("BS 1 <&>", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19});
+		BaseStation bs2 = new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{0}, new double[]{9}, new double[]{58.12}, new double[]{-15});
+
+		File file = File.createTempFile("nir_scenario", ".txt");
+		try {
+			PrintWriter writer = new PrintWriter(file);
+			writer.println(bs1.toString());
+			writer.println("telecom.basestation.DirectivityCat2BS\tBad\t-15.8\tnot a number\t1#30\t1#1800\t1#3\t1#8\t1#60\t1#-20");
+			writer.println();
+			writer.println(bs2.toString());
+			writer.close();
+
+			Pair<List<BaseStation>, List<String>> loaded = BaseStationLoader.load(file.getPath());
+			assertEquals("testBaseStationLoader stations", 2, loaded.getFirst().size());
+			assertEquals("testBaseStationLoader first station", bs1.toString(), loaded.getFirst().get(0).toString());
+			assertEquals("testBaseStationLoader second station", bs2.toString(), loaded.getFirst().get(1).toString());
+			assertEquals("testBaseStationLoader errors", 1, loaded.getSecond().size());
+			assertTrue("testBaseStationLoader error line", loaded.getSecond().get(0).startsWith("line 2:"));
+		} finally {
+			file.delete();
+		}
+	}
+	@Test
+	public void testParseDouble() {
+		String[] numbers = new String[]{"-15.8162942", "1800.0", "1.0E-5", "-0.0", "123456789012345678", "6.02e23", "NaN"};
+		for (String number : numbers) {
+			String line = "#" + number + "#";
+			assertEquals("testParseDouble " + number, Double.parseDouble(number), Parser.parseDouble(line, 1, line.length() - 1), 0);
+		}
+	}
+	@Test
+	public void testScenarioSnapshot() throws Exception {
+		NIR nir = new NIR();
+		FreeSpace fs = new FreeSpace();
+		nir.addBaseStation(new DirectivityCat2BS("BS 1 <&> \u00e7\u00e3o", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19}), fs);
+		nir.addBaseStation(new DirectivityCat2BS("", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{0}, new double[]{9}, new double[]{58.12}, new double[]{-15}), fs);
+		nir.addBaseStation(new DirectivityCat2BS("BS3", new Point2D(0.1 + 0.2, -47.91), new double[0], new double[0], new double[0], new double[0], new double[0], new double[0]), fs);
+
+		File file = File.createTempFile("nir_snapshot", ".bin");
+		try {
+			ScenarioSnapshot.save(nir, file.getPath());
+			ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals("testScenarioSnapshot reserved", 0, bytes.getLong(ScenarioSnapshot.HEADER_SIZE - 8));
+			// 2 classes (DirectivityCat2BS and FreeSpace): 3 offsets from HEADER_SIZE, names from HEADER_SIZE + 16
+			String className = DirectivityCat2BS.class.getCanonicalName();
+			assertEquals("testScenarioSnapshot first section", 0, bytes.getInt(ScenarioSnapshot.HEADER_SIZE));
+			assertEquals("testScenarioSnapshot first offset", className.length(), bytes.getInt(ScenarioSnapshot.HEADER_SIZE + 4));
+			assertEquals("testScenarioSnapshot class name", className, new String(bytes.array(), ScenarioSnapshot.HEADER_SIZE + 16, className.length(), StandardCharsets.UTF_8));
+			NIR loaded = ScenarioSnapshot.load(file.getPath());
+			List<Pair<BaseStation, PropagationModel>> expected = nir.getBaseStations();
+			List<Pair<BaseStation, PropagationModel>> actual = loaded.getBaseStations();
+			assertEquals("testScenarioSnapshot stations", expected.size(), actual.size());
+			for (int i = 0; i < expected.size(); i++) {
+				String text = expected.get(i).getFirst().toString();
+				assertEquals("testScenarioSnapshot station " + i, text, actual.get(i).getFirst().toString());
+				assertEquals("testScenarioSnapshot text " + i, BaseStation.fromString(text).toString(), actual.get(i).getFirst().toString());
+				assertTrue("testScenarioSnapshot model " + i, actual.get(i).getSecond() instanceof FreeSpace);
+			}
+			Point3D probe = new Point3D(-15.8150, -47.9150, 1.5);
+			assertEquals("testScenarioSnapshot TER", nir.evalEandTERAtProbe(probe).getSecond(), loaded.evalEandTERAtProbe(probe).getSecond(), 0);
+		} finally {
+			file.delete();
+		}
+	}
+	@Test
+	public void testIncrementalPlane() {
+		DirectivityCat2BS bs1 = new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19});
+		DirectivityCat2BS bs2 = new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{0}, new double[]{9}, new double[]{58.12}, new double[]{-15});
+		Point2D coord1 = new Point2D(-15.82, -47.92);
+		Point2D coord2 = new Point2D(-15.81, -47.91);
+		FreeSpace fs = new FreeSpace();
+
+		IncrementalPlane plane = new IncrementalPlane(coord1, coord2, 1.5, 40);
+		plane.addBaseStation(bs1, fs);
+		plane.addBaseStation(bs2, fs);
+		bs1.setTiltDegree(new double[]{6, 2});
+		bs1.setEirpMaxdBm(new double[]{63, 58});
+		plane.updateBaseStation(bs1);
+		plane.removeBaseStation(bs2);
+
+		NIR nir = new NIR();
+		nir.addBaseStation(bs1, fs);
+		Pair<SimpleMatrix, SimpleMatrix> expected = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 40);
+		Pair<SimpleMatrix, SimpleMatrix> actual = plane.getEandTER();
+		for (int i = 0; i < plane.getGrid().getNStepsLatitude(); i++) {
+			for (int j = 0; j < 40; j++) {
+				double E = expected.getFirst().getElement(i, j);
+				double TER = expected.getSecond().getElement(i, j);
+				assertEquals("testIncrementalPlane E " + i + " " + j, E, actual.getFirst().getElement(i, j), E*1e-9);
+				assertEquals("testIncrementalPlane TER " + i + " " + j, TER, actual.getSecond().getElement(i, j), TER*1e-9);
+			}
+		}
+
+		// With a tolerance, a station changes only the cells inside its influence radius
+		double tolerance = 0.001;
+		IncrementalPlane bounded = new IncrementalPlane(new Point2D(-16.0, -48.2), new Point2D(-15.6, -47.6), 1.5, 100, tolerance);
+		bounded.addBaseStation(bs1, fs);
+		int[] cells = bounded.getInfluenceCells(bs1);
+		assertTrue("testIncrementalPlane influence", cells[1] - cells[0] < bounded.getGrid().getNStepsLatitude() && cells[3] - cells[2] < 100);
+		Pair<SimpleMatrix, SimpleMatrix> exact = nir.evalEandTERAtPlane(new Point2D(-16.0, -48.2), new Point2D(-15.6, -47.6), 1.5, 100);
+		Pair<SimpleMatrix, SimpleMatrix> approx = bounded.getEandTER();
+		for (int i = 0; i < bounded.getGrid().getNStepsLatitude(); i++)
+			for (int j = 0; j < 100; j++)
+				assertEquals("testIncrementalPlane tolerance " + i + " " + j, exact.getSecond().getElement(i, j), approx.getSecond().getElement(i, j), tolerance);
+	}
+	@Test
+	public void testAdaptivePlane() {
+		NIR nir = new NIR();
+		nir.addBaseStation(new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19}), new FreeSpace());
+		nir.addBaseStation(new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{0}, new double[]{9}, new double[]{58.12}, new double[]{-15}), new FreeSpace());
+		Point2D coord1 = new Point2D(-15.83, -47.93);
+		Point2D coord2 = new Point2D(-15.80, -47.90);
+
+		AdaptivePlane coarse = nir.evalAdaptivePlane(coord1, coord2, 1.5, 16, 0, 1.5, new double[]{0.05}, 1000000);
+		int nStepsLatitude = coarse.getNStepsLatitude();
+		assertEquals("testAdaptivePlane coarse probes", (nStepsLatitude + 1)*17, coarse.getNProbes());
+		assertEquals("testAdaptivePlane coarse leaves", nStepsLatitude*16, coarse.getLeaves().size());
+
+		AdaptivePlane budget = nir.evalAdaptivePlane(coord1, coord2, 1.5, 16, 5, 1.5, new double[]{0.05}, 2000);
+		assertTrue("testAdaptivePlane budget", budget.getNProbes() <= 2000);
+
+		AdaptivePlane plane = nir.evalAdaptivePlane(coord1, coord2, 1.5, 16, 5, 1.5, new double[]{0.05}, 1000000);
+		CompiledScene scene = nir.compile();
+		int maxDepth = 0;
+		for (AdaptivePlane.Cell cell : plane.getLeaves()) {
+			maxDepth = Math.max(maxDepth, cell.getDepth());
+			double TER = scene.evalEandTERAtProbe(cell.getLatitudeMax(), cell.getLongitudeMin(), 1.5).getSecond();
+			assertEquals("testAdaptivePlane corner", TER, cell.getCornerTER()[0], 0);
+		}
+		assertEquals("testAdaptivePlane depth", 5, maxDepth);
+
+		// The hotspot under BS2 is refined: the peak of the resampled plane is close to the peak of the uniform plane
+		SimpleMatrix uniform = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 512).getSecond();
+		SimpleMatrix resampled = plane.resample(512).getSecond();
+		double maxUniform = 0, maxResampled = 0;
+		for (int i = 0; i < uniform.getSize().getFirst(); i++) {
+			for (int j = 0; j < 512; j++) {
+				maxUniform = Math.max(maxUniform, uniform.getElement(i, j));
+				maxResampled = Math.max(maxResampled, resampled.getElement(i, j));
+			}
+		}
+		assertEquals("testAdaptivePlane peak", maxUniform, maxResampled, 0.1*maxUniform);
+		assertTrue("testAdaptivePlane probes", plane.getNProbes() < 512*512/10);
+
+		// 5000 columns split 20 times do not fit the keys of the lattice points
+		boolean rejected = false;
+		try {
+			nir.evalAdaptivePlane(coord1, coord2, 1.5, 5000, 20, 1.5, new double[]{0.05}, 1000);
+		} catch (IllegalArgumentException e) {
+			rejected = true;
+		}
+		assertTrue("testAdaptivePlane lattice size", rejected);
+	}
+	@Test
+	public void testFindMaxTER() {
+		NIR nir = new NIR();
+		nir.addBaseStation(new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19}), new FreeSpace());
+		nir.addBaseStation(new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{5}, new double[]{9}, new double[]{58.12}, new double[]{-15}), new FreeSpace());
+		Point2D coord1 = new Point2D(-15.83, -47.93);
+		Point2D coord2 = new Point2D(-15.80, -47.90);
+
+		MaxExposure max = nir.findMaxTER(coord1, coord2, 1.5, 1.5, 1, 1e-3, 1000000);
+		SimpleMatrix TER = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 200).getSecond();
+		double maxGrid = 0;
+		for (int i = 0; i < TER.getSize().getFirst(); i++)
+			for (int j = 0; j < 200; j++)
+				maxGrid = Math.max(maxGrid, TER.getElement(i, j));
+
+		assertTrue("testFindMaxTER upper bound", max.getUpperBound() >= maxGrid);
+		assertTrue("testFindMaxTER value", max.getTER() >= maxGrid*0.99);
+		assertEquals("testFindMaxTER location", nir.evalEandTERAtProbe(max.getLocation()).getSecond(), max.getTER(), 0);
+		assertTrue("testFindMaxTER probes", max.getNProbes() < 200*200);
+	}
+	@Test
+	public void testTERContours() {
+		NIR nir = new NIR();
+		nir.addBaseStation(new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19}), new FreeSpace());
+		nir.addBaseStation(new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{5}, new double[]{9}, new double[]{58.12}, new double[]{-15}), new FreeSpace());
+		Point2D coord1 = new Point2D(-15.83, -47.93);
+		Point2D coord2 = new Point2D(-15.80, -47.90);
+		double[] levels = new double[]{0.005, 0.02, 0.05};
+
+		Contours contours = nir.evalTERContours(coord1, coord2, 1.5, 150, levels, 8*150*16, null);
+		SimpleMatrix TER = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 150).getSecond();
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, 150);
+		for (int k = 0; k < levels.length; k++) {
+			List<List<Point2D>> polygons = contours.getPolygons(k);
+			assertTrue("testTERContours polygons " + k, polygons.size() > 0);
+			for (List<Point2D> polygon : polygons) {
+				Point2D first = polygon.get(0);
+				Point2D last = polygon.get(polygon.size() - 1);
+				assertTrue("testTERContours closed " + k, first.getLatitude() == last.getLatitude() && first.getLongitude() == last.getLongitude());
+			}
+			// A probe is inside an odd number of polygons if and only if its TER reaches the level
+			for (int i = 0; i < grid.getNStepsLatitude(); i++) {
+				for (int j = 0; j < 150; j++) {
+					boolean inside = false;
+					for (List<Point2D> polygon : polygons)
+						inside ^= isInside(polygon, grid.getLatitude(i), grid.getLongitude(j));
+					assertEquals("testTERContours inside " + k + " " + i + " " + j, TER.getElement(i, j) >= levels[k], inside);
+				}
+			}
+			// Every crossing of the level on an edge of the grid (with the border) is a vertex of one polygon, once
+			HashMap<String, Integer> vertices = new HashMap<String, Integer>();
+			for (List<Point2D> polygon : polygons) {
+				for (int a = 0; a < polygon.size() - 1; a++) {
+					String key = polygon.get(a).getLatitude() + " " + polygon.get(a).getLongitude();
+					vertices.put(key, vertices.containsKey(key) ? vertices.get(key) + 1 : 1);
+				}
+			}
+			int nCrossings = 0;
+			for (int r = 0; r < grid.getNStepsLatitude() + 2; r++) {
+				for (int c = 0; c < 152; c++) {
+					for (int[] next : new int[][]{{r, c + 1}, {r + 1, c}}) {
+						if (next[0] > grid.getNStepsLatitude() + 1 || next[1] > 151)
+							continue;
+						double v0 = getBorderedElement(TER, r, c), v1 = getBorderedElement(TER, next[0], next[1]);
+						if ((v0 >= levels[k]) == (v1 >= levels[k]))
+							continue;
+						double t = v0 == Double.NEGATIVE_INFINITY ? 0 : v1 == Double.NEGATIVE_INFINITY ? 1 : (levels[k] - v0)/(v1 - v0);
+						double lat0 = getBorderedLatitude(grid, r), lat1 = getBorderedLatitude(grid, next[0]);
+						double long0 = getBorderedLongitude(grid, c), long1 = getBorderedLongitude(grid, next[1]);
+						String key = (lat0 + t*(lat1 - lat0)) + " " + (long0 + t*(long1 - long0));
+						assertEquals("testTERContours crossing " + k + " " + r + " " + c, Integer.valueOf(1), vertices.remove(key));
+						nCrossings++;
+					}
+				}
+			}
+			assertTrue("testTERContours vertices " + k + " " + nCrossings, nCrossings > 0 && vertices.isEmpty());
+		}
+	}
+	/**
+	 * Returns the element of the matrix surrounded by a border of -infinity, as Contours sees the plane
+	 */
+	private static double getBorderedElement(SimpleMatrix matrix, int r, int c) {
+		if (r == 0 || c == 0 || r > matrix.getSize().getFirst() || c > matrix.getSize().getSecond())
+			return Double.NEGATIVE_INFINITY;
+		return matrix.getElement(r - 1, c - 1);
+	}
+	private static double getBorderedLatitude(PlaneGrid grid, int r) {
+		if (r == 0)
+			return grid.getLatitudeMax();
+		if (r > grid.getNStepsLatitude())
+			return grid.getLatitudeMin();
+		return grid.getLatitude(r - 1);
+	}
+	private static double getBorderedLongitude(PlaneGrid grid, int c) {
+		if (c == 0)
+			return grid.getLongitudeMin();
+		if (c > grid.getNStepsLongitude())
+			return grid.getLongitudeMax();
+		return grid.getLongitude(c - 1);
+	}
+	private static boolean isInside(List<Point2D> polygon, double lat, double lon) {
+		boolean inside = false;
+		for (int a = 0, b = polygon.size() - 1; a < polygon.size(); b = a++) {
+			double latA = polygon.get(a).getLatitude(), longA = polygon.get(a).getLongitude();
+			double latB = polygon.get(b).getLatitude(), longB = polygon.get(b).getLongitude();
+			if ((latA > lat) != (latB > lat) && lon < longA + (lat - latA)*(longB - longA)/(latB - latA))
+				inside = !inside;
+		}
+		return inside;
+	}
+	@Test
+	public void testVolume() throws Exception {
+		NIR nir = new NIR();
+		nir.addBaseStation(new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19}), new FreeSpace());
+		nir.addBaseStation(new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{5}, new double[]{9}, new double[]{58.12}, new double[]{-15}), new FreeSpace());
+		Point2D coord1 = new Point2D(-15.83, -47.93);
+		Point2D coord2 = new Point2D(-15.80, -47.90);
+		double[] heights = new double[]{1.5, 4.5, 7.5, 25};
+
+		Pair<SimpleMatrix[], SimpleMatrix[]> volume;
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			volume = nir.evalEandTERAtVolume(coord1, coord2, heights, 30, pool);
+		} finally {
+			pool.shutdown();
+		}
+		File[] eFiles = new File[heights.length];
+		File[] terFiles = new File[heights.length];
+		String[] eNames = new String[heights.length];
+		String[] terNames = new String[heights.length];
+		for (int k = 0; k < heights.length; k++) {
+			eFiles[k] = File.createTempFile("nir_E", ".raster");
+			terFiles[k] = File.createTempFile("nir_TER", ".raster");
+			eNames[k] = eFiles[k].getPath();
+			terNames[k] = terFiles[k].getPath();
+		}
+		try {
+			nir.saveEandTerAtVolumeRasterFiles(coord1, coord2, heights, 30, eNames, terNames, false, 4*30*16*heights.length, null);
+			for (int k = 0; k < heights.length; k++) {
+				Pair<SimpleMatrix, SimpleMatrix> plane = nir.evalEandTERAtPlane(coord1, coord2, heights[k], 30);
+				Raster eRaster = new Raster(eNames[k]);
+				Raster terRaster = new Raster(terNames[k]);
+				int nStepsLatitude = plane.getFirst().getSize().getFirst();
+				for (int i = 0; i < nStepsLatitude; i++) {
+					for (int j = 0; j < 30; j++) {
+						assertEquals("testVolume E " + k, plane.getFirst().getElement(i, j), volume.getFirst()[k].getElement(i, j), 0);
+						assertEquals("testVolume TER " + k, plane.getSecond().getElement(i, j), volume.getSecond()[k].getElement(i, j), 0);
+						assertEquals("testVolume E file " + k, plane.getFirst().getElement(i, j), eRaster.getElement(i, j), 0);
+						assertEquals("testVolume TER file " + k, plane.getSecond().getElement(i, j), terRaster.getElement(i, j), 0);
+					}
+				}
+			}
+		} finally {
+			for (int k = 0; k < heights.length; k++) {
+				eFiles[k].delete();
+				terFiles[k].delete();
+			}
+		}
+	}
+	@Test
+	public void testProbeBatch() {
+		NIR nir = new NIR();
+		nir.addBaseStation(new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19}), new FreeSpace());
+		nir.addBaseStation(new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{5}, new double[]{9}, new double[]{58.12}, new double[]{-15}), new FreeSpace());
+
+		int n = 5000;
+		double[] latitude = new double[n];
+		double[] longitude = new double[n];
+		double[] height = new double[n];
+		for (int p = 0; p < n; p++) {
+			latitude[p] = -15.83 + 0.03*((p*7919) % n)/n;
+			longitude[p] = -47.93 + 0.03*((p*104729) % n)/n;
+			height[p] = 1.5 + p % 20;
+		}
+		double[] E = new double[n];
+		double[] TER = new double[n];
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			nir.evalEandTERAtProbes(latitude, longitude, height, E, TER, pool);
+		} finally {
+			pool.shutdown();
+		}
+		for (int p = 0; p < n; p++) {
+			Pair<Double, Double> expected = nir.evalEandTERAtProbe(new Point3D(latitude[p], longitude[p], height[p]));
+			assertEquals("testProbeBatch E " + p, expected.getFirst(), E[p], 0);
+			assertEquals("testProbeBatch TER " + p, expected.getSecond(), TER[p], 0);
+		}
+	}
+	@Test
+	public void testVectorKernel() {
+		NIR nir = new NIR();
+		FreeSpace fs = new FreeSpace();
+		// 37 radio sources, so the last ones do not fill a vector
+		for (int i = 0; i < 12; i++)
+			nir.addBaseStation(new DirectivityCat2BS("BS" + i, new Point2D(-15.81 + 0.002*i, -47.92 + 0.003*(i % 5)), new double[]{30, 40, 25}, new double[]{1800, 900, 3500}, new double[]{3, 4, 8}, new double[]{8, 8.5, 12}, new double[]{60, 61, 55}, new double[]{-20, -19, -25}), fs);
+		nir.addBaseStation(new DirectivityCat2BS("BS12", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{0}, new double[]{9}, new double[]{58.12}, new double[]{-15}), fs);
+
+		try {
+			for (Geodesy geodesy : new Geodesy[]{Geodesy.EXACT, Geodesy.LOCAL_PROJECTION}) {
+				setGeodesy(geodesy);
+				CompiledScene.setVectorKernel(false);
+				CompiledScene scalar = nir.compile();
+				CompiledScene.setVectorKernel(true);
+				CompiledScene vector = nir.compile();
+				assertEquals("testVectorKernel falls back without the module", CompiledScene.isVectorKernelAvailable(), vector.isVectorKernel());
+
+				double[] heights = new double[]{1.5, 10, 30};
+				double[] E = new double[6];
+				double[] TER = new double[6];
+				for (int i = 0; i < 50; i++) {
+					double lat = -15.82 + 0.0007*i;
+					double lon = -47.925 + 0.0005*i;
+					scalar.evalEandTERAtColumn(lat, lon, heights, E, TER, 0, 2);
+					vector.evalEandTERAtColumn(lat, lon, heights, E, TER, 1, 2);
+					for (int k = 0; k < heights.length; k++) {
+						Pair<Double, Double> expected = scalar.evalEandTERAtProbe(lat, lon, heights[k]);
+						Pair<Double, Double> result = vector.evalEandTERAtProbe(lat, lon, heights[k]);
+						assertEquals("testVectorKernel E " + geodesy, expected.getFirst(), result.getFirst(), 1e-12*expected.getFirst());
+						assertEquals("testVectorKernel TER " + geodesy, expected.getSecond(), result.getSecond(), 1e-12*expected.getSecond());
+						assertEquals("testVectorKernel column E " + geodesy, E[2*k], E[2*k + 1], 1e-12*E[2*k]);
+						assertEquals("testVectorKernel column TER " + geodesy, TER[2*k], TER[2*k + 1], 1e-12*TER[2*k]);
+					}
+				}
+			}
+		} finally {
+			CompiledScene.setVectorKernel(false);
+			setGeodesy(Geodesy.EXACT);
+		}
+	}
+	@Test
+	public void testMetrics() {
+		NIR nir = new NIR();
+		nir.addBaseStation(new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19}), new FreeSpace());
+		nir.addBaseStation(new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{5}, new double[]{9}, new double[]{58.12}, new double[]{-15}), new FreeSpace());
+		Point2D coord1 = new Point2D(-15.82, -47.92);
+		Point2D coord2 = new Point2D(-15.81, -47.91);
+		PlaneGrid grid = new PlaneGrid(coord1, coord2, 20);
+		int nProbes = grid.getNStepsLatitude()*grid.getNStepsLongitude();
+
+		Metrics metrics = Metrics.getInstance();
+		try {
+			metrics.setEnabled(true);
+			metrics.reset();
+			nir.evalEandTERAtPlane(coord1, coord2, 1.5, 20);
+			assertEquals("testMetrics probes", nProbes, metrics.getProbes());
+			assertEquals("testMetrics radio sources per probe", 3, metrics.getRadioSourcesPerProbe(), 0);
+			assertEquals("testMetrics tiles", grid.getNStepsLatitude(), metrics.getTiles());
+			long histogram = 0;
+			for (long count : metrics.getTileLatencyHistogram())
+				histogram += count;
+			assertEquals("testMetrics histogram", metrics.getTiles(), histogram);
+			assertEquals("testMetrics compile", 1, metrics.getPhaseCount(Metrics.Phase.COMPILE));
+
+			nir.evalEandTERAtProbe(new Point3D(-15.815, -47.915, 1.5));
+			assertEquals("testMetrics generic probe", nProbes + 1, metrics.getProbes());
+			assertEquals("testMetrics generic radio sources", 3*(nProbes + 1), metrics.getRadioSourcesVisited());
+			assertEquals("testMetrics pattern timed", 2, metrics.getPhaseCount(Metrics.Phase.PATTERN));
+
+			nir.findMaxTER(coord1, coord2, 1.5, 1.5, 10, 1e-2, 1000);
+			assertEquals("testMetrics search compile", 2, metrics.getPhaseCount(Metrics.Phase.COMPILE));
+
+			long probes = metrics.getProbes();
+			metrics.setEnabled(false);
+			nir.evalEandTERAtPlane(coord1, coord2, 1.5, 20);
+			assertEquals("testMetrics disabled", probes, metrics.getProbes());
+		} finally {
+			metrics.setEnabled(false);
+			metrics.reset();
+		}
+	}
+	@Test
+	public void testProgressivePlane() {
+		NIR nir = new NIR();
+		nir.addBaseStation(new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19}), new FreeSpace());
+		nir.addBaseStation(new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{5}, new double[]{9}, new double[]{58.12}, new double[]{-15}), new FreeSpace());
+		Point2D coord1 = new Point2D(-15.825, -47.925);
+		Point2D coord2 = new Point2D(-15.805, -47.905);
+		Pair<SimpleMatrix, SimpleMatrix> expected = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 37);
+
+		// Complete, serial and parallel: the passes have strides 8, 4, 2 and 1
+		ForkJoinPool parallel = new ForkJoinPool(2);
+		try {
+			for (ForkJoinPool pool : new ForkJoinPool[]{null, parallel}) {
+				final List<Integer> strides = new ArrayList<Integer>();
+				ProgressivePlane plane = nir.createProgressivePlane(coord1, coord2, 1.5, 37, 4);
+				boolean complete = plane.evaluate(0, new ProgressivePlane.Listener() {
+					public void passCompleted(ProgressivePlane plane, int stride) {
+						strides.add(stride);
+					}
+				}, pool);
+				assertTrue("testProgressivePlane complete", complete && plane.isComplete());
+				assertEquals("testProgressivePlane strides", "[8, 4, 2, 1]", strides.toString());
+				Pair<SimpleMatrix, SimpleMatrix> result = plane.getEandTER();
+				for (int i = 0; i < plane.getGrid().getNStepsLatitude(); i++) {
+					for (int j = 0; j < plane.getGrid().getNStepsLongitude(); j++) {
+						assertEquals("testProgressivePlane E", expected.getFirst().getElement(i, j), result.getFirst().getElement(i, j), 0);
+						assertEquals("testProgressivePlane TER", expected.getSecond().getElement(i, j), result.getSecond().getElement(i, j), 0);
+					}
+				}
+			}
+		} finally {
+			parallel.shutdown();
+		}
+
+		// Cancelled after the first pass: the coarse map fills the whole plane
+		ProgressivePlane plane = nir.createProgressivePlane(coord1, coord2, 1.5, 37, 4);
+		boolean complete = plane.evaluate(0, new ProgressivePlane.Listener() {
+			public void passCompleted(ProgressivePlane plane, int stride) {
+				plane.cancel();
+			}
+		}, null);
+		assertTrue("testProgressivePlane cancelled", !complete && plane.isCancelled());
+		assertEquals("testProgressivePlane coarse stride", 8, plane.getStride());
+		int nRows = plane.getGrid().getNStepsLatitude();
+		int nColumns = plane.getGrid().getNStepsLongitude();
+		assertEquals("testProgressivePlane coarse probes", ((nRows + 7)/8)*((nColumns + 7)/8), plane.getNProbes());
+		Pair<SimpleMatrix, SimpleMatrix> coarse = plane.getEandTER();
+		for (int i = 0; i < nRows; i++)
+			for (int j = 0; j < nColumns; j++)
+				assertEquals("testProgressivePlane coarse TER", expected.getSecond().getElement(i/8*8, j/8*8), coarse.getSecond().getElement(i, j), 0);
+		assertTrue("testProgressivePlane not resumed", !plane.evaluate(0, null, null) && plane.getStride() == 8);
+	}
+	@Test
+	public void testExposureServer() throws Exception {
+		final NIR nir = new NIR();
+		nir.addBaseStation(new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19}), new FreeSpace());
+		nir.addBaseStation(new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{5}, new double[]{9}, new double[]{58.12}, new double[]{-15}), new FreeSpace());
+		ExposureServer server = new ExposureServer(nir, 0, 64, 2000, 4096, 1000);
+		server.start();
+		try {
+			final String base = "http://127.0.0.1:" + server.getPort();
+
+			// Concurrent probes are coalesced and give the values of the compiled scene
+			final int nThreads = 8;
+			final String[] errors = new String[nThreads];
+			Thread[] threads = new Thread[nThreads];
+			for (int t = 0; t < nThreads; t++) {
+				final int thread = t;
+				threads[t] = new Thread(new Runnable() {
+					public void run() {
+						try {
+							for (int k = 0; k < 5; k++) {
+								double lat = -15.82 + 0.001*thread;
+								double lon = -47.92 + 0.002*k;
+								Pair<Double, Double> expected = nir.compile().evalEandTERAtProbe(lat, lon, 1.5);
+								String body = getHttp(base + "/probe?lat=" + lat + "&lon=" + lon + "&h=1.5", 200);
+								if (!body.equals("{\"E\": " + expected.getFirst() + ", \"TER\": " + expected.getSecond() + "}"))
+									errors[thread] = body;
+							}
+						} catch (Exception e) {
+							errors[thread] = e.toString();
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+			for (String error : errors)
+				assertEquals("testExposureServer probe", null, error);
+			assertEquals("testExposureServer batched probes", 40, server.getNBatchedProbes());
+			assertTrue("testExposureServer batches", server.getNBatches() <= 40);
+
+			// The area is the plane of evalEandTERAtPlane
+			Point2D coord1 = new Point2D(-15.825, -47.925);
+			Point2D coord2 = new Point2D(-15.805, -47.905);
+			Pair<SimpleMatrix, SimpleMatrix> expected = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 20);
+			String body = getHttp(base + "/area?lat1=-15.825&lon1=-47.925&lat2=-15.805&lon2=-47.905&h=1.5&n=20", 200);
+			assertTrue("testExposureServer area size", body.startsWith("{\"nStepsLatitude\": " + expected.getFirst().getSize().getFirst() + ", \"nStepsLongitude\": 20,"));
+			String rowTER = Arrays.toString(expected.getSecond().getRow(3));
+			assertTrue("testExposureServer area TER", body.contains(rowTER));
+
+			// Rejected requests
+			assertTrue("testExposureServer too large", getHttp(base + "/area?lat1=-15.825&lon1=-47.925&lat2=-15.805&lon2=-47.905&h=1.5&n=200", 413).contains("\"error\""));
+			assertTrue("testExposureServer bad parameter", getHttp(base + "/probe?lat=-15.82&lon=x&h=1.5", 400).contains("Invalid parameter lon"));
+			assertTrue("testExposureServer missing parameter", getHttp(base + "/probe?lat=-15.82&h=1.5", 400).contains("Missing parameter lon"));
+
+			String stats = getHttp(base + "/stats", 200);
+			assertTrue("testExposureServer stats", stats.startsWith("{\"requests\": 45, \"rejected\": 0, \"p50Micros\": "));
+			assertTrue("testExposureServer latency", server.getLatencyQuantileMicros(0.5) > 0 && server.getLatencyQuantileMicros(0.99) >= server.getLatencyQuantileMicros(0.5));
+			// The 40 probes and the area, not the errors and /stats
+			assertEquals("testExposureServer latencies", 41, server.getNLatencies());
+		} finally {
+			server.stop(0);
+		}
+
+		// /stats answers while the only admission is taken by a large area
+		final ExposureServer busy = new ExposureServer(nir, 0, 1, 200, 4096, 1000000);
+		busy.start();
+		try {
+			final String base = "http://127.0.0.1:" + busy.getPort();
+			Thread area = new Thread(new Runnable() {
+				public void run() {
+					try {
+						getHttp(base + "/area?lat1=-15.825&lon1=-47.925&lat2=-15.805&lon2=-47.905&h=1.5&n=800", 200);
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+			area.start();
+			while (busy.getNRequests() == 0)
+				Thread.sleep(1);
+			Thread.sleep(50);
+			getHttp(base + "/probe?lat=-15.82&lon=-47.92&h=1.5", 503);
+			assertTrue("testExposureServer busy stats", getHttp(base + "/stats", 200).startsWith("{\"requests\": 3, \"rejected\": 1,"));
+			area.join();
+			assertEquals("testExposureServer busy latencies", 1, busy.getNLatencies());
+		} finally {
+			busy.stop(0);
+		}
+	}
+	private static String getHttp(String url, int expectedStatus) throws Exception {
+		HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		String body = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+		in.close();
+		assertEquals("testExposureServer status " + url, expectedStatus, status);
+		return body;
+	}
+	@Test
+	public void testResultCache() {
+		NIR nir = new NIR();
+		nir.addBaseStation(new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19}), new FreeSpace());
+		nir.addBaseStation(new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{5}, new double[]{9}, new double[]{58.12}, new double[]{-15}), new FreeSpace());
+		Point2D coord1 = new Point2D(-15.825, -47.925);
+		Point2D coord2 = new Point2D(-15.805, -47.905);
+		Pair<SimpleMatrix, SimpleMatrix> expected = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 64);
+		Pair<Double, Double> expectedProbe = nir.evalEandTERAtProbe(new Point3D(-15.815, -47.915, 1.5));
+
+		// By default only the probes are cached, so the planes are those evaluated without cache
+		ResultCache probes = new ResultCache(1L << 20);
+		nir.setResultCache(probes);
+		Pair<SimpleMatrix, SimpleMatrix> uncached = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 64);
+		assertTrue("testResultCache no planes", !probes.isCachingPlanes() && probes.getNEntries() == 0);
+		assertEquals("testResultCache no planes TER", expected.getSecond().getElement(20, 30), uncached.getSecond().getElement(20, 30), 0);
+
+		ResultCache cache = new ResultCache(1L << 20, true);
+		nir.setResultCache(cache);
+		String hash = nir.getScenarioHash();
+		Pair<SimpleMatrix, SimpleMatrix> first = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 64);
+		assertEquals("testResultCache first misses", 9, cache.getMisses());
+		Pair<SimpleMatrix, SimpleMatrix> second;
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			second = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 64, pool);
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals("testResultCache second hits", 9, cache.getHits());
+		for (int i = 0; i < 64; i++) {
+			for (int j = 0; j < 64; j++) {
+				double ter = expected.getSecond().getElement(i, j);
+				assertEquals("testResultCache TER", ter, first.getSecond().getElement(i, j), ter*1e-5);
+				assertEquals("testResultCache E", expected.getFirst().getElement(i, j), first.getFirst().getElement(i, j), expected.getFirst().getElement(i, j)*1e-5);
+				assertEquals("testResultCache hit", first.getSecond().getElement(i, j), second.getSecond().getElement(i, j), 0);
+			}
+		}
+
+		// A region shifted by 32 cells to the east reuses the tiles of the common columns
+		long misses = cache.getMisses();
+		Pair<SimpleMatrix, SimpleMatrix> shifted = nir.evalEandTERAtPlane(new Point2D(-15.825, -47.915), new Point2D(-15.805, -47.895), 1.5, 64);
+		assertEquals("testResultCache shifted misses", 3, cache.getMisses() - misses);
+		assertEquals("testResultCache shifted", first.getSecond().getElement(10, 40), shifted.getSecond().getElement(10, 8), 0);
+
+		// Probes are exact
+		Pair<Double, Double> probe = nir.evalEandTERAtProbe(new Point3D(-15.815, -47.915, 1.5));
+		assertEquals("testResultCache probe", expectedProbe.getSecond(), probe.getSecond(), 0);
+		assertEquals("testResultCache probe hit", expectedProbe.getSecond(), nir.evalEandTERAtProbe(new Point3D(-15.815, -47.915, 1.5)).getSecond(), 0);
+		assertTrue("testResultCache budget", cache.getBytes() <= cache.getMaxBytes() && cache.getNEntries() == 13);
+
+		// Entries evaluated with other settings are not used
+		try {
+			setGeodesy(Geodesy.LOCAL_PROJECTION);
+			Pair<Double, Double> projected = nir.evalEandTERAtProbe(new Point3D(-15.815, -47.915, 1.5));
+			assertNotEquals("testResultCache settings probe", probe.getSecond(), projected.getSecond());
+			misses = cache.getMisses();
+			Pair<SimpleMatrix, SimpleMatrix> projectedPlane = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 64);
+			assertEquals("testResultCache settings misses", 9, cache.getMisses() - misses);
+			assertNotEquals("testResultCache settings plane", first.getSecond().getElement(10, 40), projectedPlane.getSecond().getElement(10, 40));
+		} finally {
+			setGeodesy(Geodesy.EXACT);
+		}
+		assertEquals("testResultCache settings restored", probe.getSecond(), nir.evalEandTERAtProbe(new Point3D(-15.815, -47.915, 1.5)).getSecond(), 0);
+		assertTrue("testResultCache settings entries", cache.getBytes() <= cache.getMaxBytes() && cache.getNEntries() == 23);
+
+		// Stations created with another resolution of the pattern tables are another scenario
+		NIR analytic = new NIR();
+		try {
+			PatternTable.setResolutionDegree(0);
+			for (Pair<BaseStation, PropagationModel> pairBsPm : nir.getBaseStations()) {
+				DirectivityCat2BS bs = (DirectivityCat2BS) pairBsPm.getFirst();
+				analytic.addBaseStation(new DirectivityCat2BS(bs.getName(), new Point2D(bs.getLatitude(), bs.getLongitude()), bs.getHeight(), bs.getFrequencyMHz(), bs.getTiltDegree(), bs.getThetaBwVerticalDegree(), bs.getEirpMaxdBm(), bs.getMaxSideLobeEnvelopedB()), new FreeSpace());
+			}
+		} finally {
+			PatternTable.setResolutionDegree(0.01);
+		}
+		assertNotEquals("testResultCache tables hash", nir.getScenarioHash(), analytic.getScenarioHash());
+
+		// Changing the scenario removes its entries
+		nir.addBaseStation(new DirectivityCat2BS("BS3", new Point2D(-15.81, -47.91), new double[]{23.5}, new double[]{876.2}, new double[]{5}, new double[]{9}, new double[]{58.12}, new double[]{-15}), new FreeSpace());
+		assertNotEquals("testResultCache hash", hash, nir.getScenarioHash());
+		assertEquals("testResultCache invalidated", 0, cache.getNEntries());
+		assertEquals("testResultCache invalidated bytes", 0, cache.getBytes());
+		assertTrue("testResultCache new scenario", nir.evalEandTERAtProbe(new Point3D(-15.815, -47.915, 1.5)).getSecond() > probe.getSecond());
+
+		// The least recently used tiles are evicted
+		ResultCache small = new ResultCache(4*(2*8*ResultCache.TILE_SIZE*ResultCache.TILE_SIZE + 200), true);
+		nir.setResultCache(small);
+		nir.evalEandTERAtPlane(coord1, coord2, 1.5, 64);
+		assertEquals("testResultCache evictions", 5, small.getEvictions());
+		assertTrue("testResultCache small budget", small.getNEntries() == 4 && small.getBytes() <= small.getMaxBytes());
+	}
+	@Test
+	public void testTilePyramid() throws Exception {
+		NIR nir = new NIR();
+		nir.addBaseStation(new DirectivityCat2BS("BS1", new Point2D(-15.8162942, -47.9173204), new double[]{30, 40}, new double[]{1800, 900}, new double[]{3, 4}, new double[]{8, 8.5}, new double[]{60, 61}, new double[]{-20, -19}), new FreeSpace());
+		nir.addBaseStation(new DirectivityCat2BS("BS2", new Point2D(-15.8145742, -47.9132320), new double[]{23.5}, new double[]{876.2}, new double[]{5}, new double[]{9}, new double[]{58.12}, new double[]{-15}), new FreeSpace());
+		Point2D coord1 = new Point2D(-15.818, -47.918);
+		Point2D coord2 = new Point2D(-15.812, -47.912);
+		File dir = Files.createTempDirectory("pyramid").toFile();
+		String serialFile = new File(dir, "serial.tiles").getPath();
+		String parallelFile = new File(dir, "parallel.tiles").getPath();
+
+		TilePyramid pyramid = nir.createTilePyramid(1.5, false, TilePyramid.Aggregation.MAX, 0);
+		TileWriter writer = TilePyramid.createContainerWriter(serialFile);
+		long nTiles = pyramid.generate(coord1, coord2, 14, 16, writer, null);
+		writer.close();
+		writer = TilePyramid.createContainerWriter(parallelFile);
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			assertEquals("testTilePyramid parallel tiles", nTiles, pyramid.generate(coord1, coord2, 14, 16, writer, pool));
+		} finally {
+			pool.shutdown();
+		}
+		writer.close();
+
+		TileContainer serial = new TileContainer(serialFile);
+		TileContainer parallel = new TileContainer(parallelFile);
+		assertEquals("testTilePyramid tiles", nTiles, serial.getNTiles());
+		int n = 1 << 16;
+		int x = (int) Math.floor((-47.915 + 180)/360*n);
+		double phi = Math.toRadians(-15.815);
+		int y = (int) Math.floor((1 - Math.log(Math.tan(phi) + 1/Math.cos(phi))/Math.PI)/2*n);
+		float[] tile = serial.getTile(16, x, y);
+		assertTrue("testTilePyramid finest tile", tile != null && serial.hasTile(15, x/2, y/2) && serial.hasTile(14, x/4, y/4));
+
+		// The finest level is evaluated at the centers of the pixels, NaN outside the region
+		CompiledScene scene = nir.compile();
+		int size = TilePyramid.TILE_SIZE;
+		int nValues = 0;
+		for (int py = 0; py < size; py += 17) {
+			for (int px = 0; px < size; px += 17) {
+				double lat = Math.toDegrees(Math.atan(Math.sinh(Math.PI*(1 - 2*((double) y*size + py + 0.5)/((double) size*n)))));
+				double lon = ((double) x*size + px + 0.5)/((double) size*n)*360 - 180;
+				float value = tile[py*size + px];
+				if (lat < -15.818 || lat > -15.812 || lon < -47.918 || lon > -47.912) {
+					assertTrue("testTilePyramid outside", Float.isNaN(value));
+				} else {
+					assertEquals("testTilePyramid pixel", (float) scene.evalEandTERAtProbe(lat, lon, 1.5).getSecond().doubleValue(), value, 0);
+					nValues++;
+				}
+			}
+		}
+		assertTrue("testTilePyramid pixels inside", nValues > 0);
+
+		// The coarser levels are the maximum of the children, and the threads do not change the tiles
+		float[] parent = serial.getTile(15, x/2, y/2);
+		int offsetX = (x & 1)*size/2;
+		int offsetY = (y & 1)*size/2;
+		for (int py = 0; py < size/2; py++) {
+			for (int px = 0; px < size/2; px++) {
+				float expected = Float.NaN;
+				for (int k = 0; k < 4; k++) {
+					float child = tile[(2*py + (k >> 1))*size + 2*px + (k & 1)];
+					if (!Float.isNaN(child))
+						expected = Float.isNaN(expected) ? child : Math.max(expected, child);
+				}
+				assertEquals("testTilePyramid max", expected, parent[(offsetY + py)*size + offsetX + px], 0);
+			}
+		}
+		for (int zoom = 14; zoom <= 16; zoom++)
+			for (int tx = (x >> (16 - zoom)) - 1; tx <= (x >> (16 - zoom)) + 1; tx++)
+				for (int ty = (y >> (16 - zoom)) - 1; ty <= (y >> (16 - zoom)) + 1; ty++)
+					assertTrue("testTilePyramid parallel", Arrays.equals(serial.getTile(zoom, tx, ty), parallel.getTile(zoom, tx, ty)));
+		serial.close();
+		parallel.close();
+
+		// Tiles below the threshold are skipped, the directory has a file per tile
+		assertEquals("testTilePyramid threshold", 0, nir.createTilePyramid(1.5, false, TilePyramid.Aggregation.MEAN, 1e9).generate(coord1, coord2, 14, 16, TilePyramid.createDirectoryWriter(dir.getPath()), null));
+		File tilesDir = new File(dir, "tiles");
+		assertEquals("testTilePyramid directory", nTiles, pyramid.generate(coord1, coord2, 14, 16, TilePyramid.createDirectoryWriter(tilesDir.getPath()), null));
+		assertEquals("testTilePyramid file", 4L*size*size, new File(tilesDir, "16/" + x + "/" + y + ".bin").length());
+	}
+	@Test
+	public void testLinearKernel() {
+		// The linear pattern is the dB pattern without the logarithm
+		for (int k = -300; k <= 300; k++) {
+			double theta = k*0.001;
+			double expected = Math.pow(10, DirectivityCat2BS.getFdB(theta, 0.05, 0.14, -20)/10);
+			assertEquals("testLinearKernel gain", expected, DirectivityCat2BS.getGainLinear(theta, 0.05, 0.14, 0.01), 1e-14*expected);
+		}
+
+		try {
+			// Stations with pattern tables (the default) and with the analytic pattern
+			for (double resolution : new double[]{0.01, 0}) {
+				PatternTable.setResolutionDegree(resolution);
+				NIR nir = new NIR();
+				for (int i = 0; i < 12; i++)
+					nir.addBaseStation(new DirectivityCat2BS("BS" + i, new Point2D(-15.81 + 0.002*i, -47.92 + 0.003*(i % 5)), new double[]{30, 40, 25}, new double[]{1800, 900, 3500}, new double[]{3, 4, 8}, new double[]{8, 8.5, 12}, new double[]{60, 61, 55}, new double[]{-20, -19, -25}), new FreeSpace());
+				// The linear and dB lookups of a table are each within its error of the analytic pattern
+				double relative = 1e-12;
+				if (resolution > 0) {
+					double error = 0;
+					for (Pair<BaseStation, PropagationModel> pair : nir.getBaseStations())
+						for (double e : ((DirectivityCat2BS) pair.getFirst()).getPatternTableMaxErrordB())
+							error = Math.max(error, e);
+					relative = Math.pow(10, 2*error/10) - 1;
+				}
+				for (double tolerance : new double[]{0, 0.001}) {
+					nir.setTERTolerance(tolerance);
+					CompiledScene.setLinearKernel(false);
+					CompiledScene dB = nir.compile();
+					CompiledScene.setLinearKernel(true);
+					CompiledScene linear = nir.compile();
+					assertTrue("testLinearKernel selected", linear.isLinearKernel() && !dB.isLinearKernel());
+
+					double[] heights = new double[]{1.5, 10, 30};
+					double[] E = new double[6];
+					double[] TER = new double[6];
+					for (int i = 0; i < 50; i++) {
+						double lat = -15.82 + 0.0007*i;
+						double lon = -47.925 + 0.0005*i;
+						dB.evalEandTERAtColumn(lat, lon, heights, E, TER, 0, 2);
+						linear.evalEandTERAtColumn(lat, lon, heights, E, TER, 1, 2);
+						for (int k = 0; k < heights.length; k++) {
+							Pair<Double, Double> expected = dB.evalEandTERAtProbe(lat, lon, heights[k]);
+							Pair<Double, Double> result = linear.evalEandTERAtProbe(lat, lon, heights[k]);
+							assertEquals("testLinearKernel E " + resolution, expected.getFirst(), result.getFirst(), relative*expected.getFirst());
+							assertEquals("testLinearKernel TER " + resolution, expected.getSecond(), result.getSecond(), relative*expected.getSecond());
+							assertEquals("testLinearKernel column E " + resolution, E[2*k], E[2*k + 1], relative*E[2*k]);
+							assertEquals("testLinearKernel column TER " + resolution, TER[2*k], TER[2*k + 1], relative*TER[2*k]);
+						}
+					}
+				}
+			}
+		} finally {
+			CompiledScene.setLinearKernel(false);
+			PatternTable.setResolutionDegree(0.01);
+		}
+	}
+	@Test
+	public void testFloat32Kernel() {
+		NIR nir = new NIR();
+		for (int i = 0; i < 12; i++)
+			nir.addBaseStation(new DirectivityCat2BS("BS" + i, new Point2D(-15.81 + 0.002*i, -47.92 + 0.003*(i % 5)), new double[]{30, 40, 25}, new double[]{1800, 900, 3500}, new double[]{3, 4, 8}, new double[]{8, 8.5, 12}, new double[]{60, 61, 55}, new double[]{-20, -19, -25}), new FreeSpace());
+		boolean available = CompiledScene.isVectorKernelAvailable();
+		try {
+			for (double tolerance : new double[]{0, 0.001}) {
+				nir.setTERTolerance(tolerance);
+				CompiledScene.setFloat32Kernel(false);
+				CompiledScene scene = nir.compile();
+				CompiledScene.setFloat32Kernel(true);
+				CompiledScene scene32 = nir.compile();
+				assertEquals("testFloat32Kernel selected", available, scene32.isFloat32Kernel());
+				assertTrue("testFloat32Kernel double", !scene.isFloat32Kernel() && !scene32.isVectorKernel());
+
+				double[] heights = new double[]{1.5, 10, 30};
+				double[] E = new double[6];
+				double[] TER = new double[6];
+				for (int i = 0; i < 50; i++) {
+					double lat = -15.82 + 0.0007*i;
+					double lon = -47.925 + 0.0005*i;
+					scene.evalEandTERAtColumn(lat, lon, heights, E, TER, 0, 2);
+					scene32.evalEandTERAtColumn(lat, lon, heights, E, TER, 1, 2);
+					for (int k = 0; k < heights.length; k++) {
+						Pair<Double, Double> expected = scene.evalEandTERAtProbe(lat, lon, heights[k]);
+						Pair<Double, Double> result = scene32.evalEandTERAtProbe(lat, lon, heights[k]);
+						assertEquals("testFloat32Kernel E", expected.getFirst(), result.getFirst(), 1e-4*expected.getFirst());
+						assertEquals("testFloat32Kernel TER", expected.getSecond(), result.getSecond(), 1e-4*expected.getSecond());
+						assertEquals("testFloat32Kernel column E", E[2*k], E[2*k + 1], 1e-4*E[2*k]);
+						assertEquals("testFloat32Kernel column TER", TER[2*k], TER[2*k + 1], 1e-4*TER[2*k]);
+					}
+				}
+			}
+		} finally {
+			CompiledScene.setFloat32Kernel(false);
+		}
+
+		// The float plane is the double plane rounded to float, up to the error of the kernel
+		nir.setTERTolerance(0);
+		Point2D coord1 = new Point2D(-15.80, -47.93);
+		Point2D coord2 = new Point2D(-15.84, -47.89);
+		Pair<SimpleMatrix, SimpleMatrix> plane = nir.evalEandTERAtPlane(coord1, coord2, 1.5, 40);
+		Pair<FloatMatrix, FloatMatrix> plane32 = nir.evalEandTERAtPlaneFloat32(coord1, coord2, 1.5, 40, null);
+		ForkJoinPool pool = new ForkJoinPool(2);
+		Pair<FloatMatrix, FloatMatrix> plane32Parallel = nir.evalEandTERAtPlaneFloat32(coord1, coord2, 1.5, 40, pool);
+		pool.shutdown();
+		int nRows = plane.getFirst().getSize().getFirst();
+		assertEquals("testFloat32Kernel rows", nRows, (int) plane32.getSecond().getSize().getFirst());
+		assertEquals("testFloat32Kernel columns", 40, (int) plane32.getSecond().getSize().getSecond());
+		for (int i = 0; i < nRows; i++) {
+			for (int j = 0; j < 40; j++) {
+				double expectedE = plane.getFirst().getElement(i, j);
+				double expectedTER = plane.getSecond().getElement(i, j);
+				assertEquals("testFloat32Kernel plane E", expectedE, plane32.getFirst().getElement(i, j), 1e-4*expectedE);
+				assertEquals("testFloat32Kernel plane TER", expectedTER, plane32.getSecond().getElement(i, j), 1e-4*expectedTER);
+				assertEquals("testFloat32Kernel parallel", plane32.getFirst().getElement(i, j), plane32Parallel.getFirst().getElement(i, j), 0);
+			}
+		}
+
+		Float32Accuracy accuracy = nir.getFloat32Accuracy(coord1, coord2, 1.5, 40);
+		assertEquals("testFloat32Kernel report kernel", available, accuracy.isFloat32Kernel());
+		assertEquals("testFloat32Kernel report probes", nRows*40, accuracy.getNProbes());
+		assertTrue("testFloat32Kernel report E", accuracy.getMaxRelativeErrorE() < 1e-4 && accuracy.getMeanRelativeErrorE() <= accuracy.getMaxRelativeErrorE());
+		assertTrue("testFloat32Kernel report TER", accuracy.getMaxRelativeErrorTER() < 1e-4 && accuracy.getMeanRelativeErrorTER() <= accuracy.getMaxRelativeErrorTER());
+		assertTrue("testFloat32Kernel report dB", accuracy.getMaxErrorEdB() < 1e-3);
+		if (!available)
+			assertEquals("testFloat32Kernel report double", 0, accuracy.getMaxRelativeErrorTER(), 0);
+	}
 }
\ No newline at end of file
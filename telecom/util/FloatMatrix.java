@@ -0,0 +1,32 @@
+package telecom.util;
+
+/**
+ * A SimpleMatrix of float elements, half the memory of a double matrix (see NIR.evalEandTERAtPlaneFloat32)
+ */
+public class FloatMatrix {
+	private float[][] matrix;
+
+	public FloatMatrix(int n, int m) {
+		matrix = new float[n][];
+		for (int i = 0; i < n; i++) {
+			matrix[i] = new float[m];
+		}
+	}
+	public Pair<Integer, Integer> getSize() {
+		if (matrix.length == 0)
+			return new Pair<Integer, Integer>(0, 0);
+		return new Pair<Integer, Integer>(matrix.length, matrix[0].length);
+	}
+	public void setElement(int i, int j, float val) {
+		matrix[i][j] = val;
+	}
+	public float getElement(int i, int j) {
+		return matrix[i][j];
+	}
+	/**
+	 * Returns the row i of the matrix. The array is not a copy: changing it changes the matrix.
+	 */
+	public float[] getRow(int i) {
+		return matrix[i];
+	}
+}
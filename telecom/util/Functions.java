@@ -13,6 +13,18 @@ import static telecom.util.Constants.DEGREE_TO_RAD;
 import static telecom.util.Constants.RAD_TO_DEGREE;
 
 public class Functions {
+	private static Geodesy geodesy = Geodesy.EXACT;
+
+	/**
+	 * Selects the formulas used by get2DDistanceKM (and so by every distance and angle function).
+	 * The default is Geodesy.EXACT.
+	 */
+	public static void setGeodesy(Geodesy g) {
+		geodesy = g;
+	}
+	public static Geodesy getGeodesy() {
+		return geodesy;
+	}
 	public static boolean between(double min, double val, double max) {
 		return val >= min && val <= max;
 	}
@@ -67,6 +79,14 @@ public class Functions {
 	}
 
 	public static double get2DDistanceKM(Point3D p1, Point3D p2) {
+		if (geodesy == Geodesy.LOCAL_PROJECTION)
+			return getProjected2DDistanceKM(p1, p2);
+		return getExact2DDistanceKM(p1, p2);
+	}
+	/**
+	 * Returns the distance between p1 and p2 with Geodesy.EXACT, whatever geodesy is selected
+	 */
+	public static double getExact2DDistanceKM(Point3D p1, Point3D p2) {
 		double lat1 = p1.getLatitude();
 		double long1 = p1.getLongitude();
 
@@ -75,6 +95,29 @@ public class Functions {
 		return 6371*acos(cos((90-lat2)*DEGREE_TO_RAD)*cos((90-lat1)*DEGREE_TO_RAD)+sin((90-lat2)*DEGREE_TO_RAD)*sin((90-lat1)*DEGREE_TO_RAD)*cos((long1-long2)*DEGREE_TO_RAD));
 	}
 
+	/**
+	 * Returns the distance between p1 and p2 with Geodesy.LOCAL_PROJECTION, whatever geodesy is selected.
+	 * The tangent plane is taken at p1.
+	 */
+	public static double getProjected2DDistanceKM(Point3D p1, Point3D p2) {
+		double lat1 = p1.getLatitude()*DEGREE_TO_RAD;
+		return getProjected2DDistanceKM(cos(lat1), sin(lat1), 
+				p2.getLatitude() - p1.getLatitude(), p2.getLongitude() - p1.getLongitude());
+	}
+	/**
+	 * Returns the distance of Geodesy.LOCAL_PROJECTION from the precomputed cos and sin of the latitude
+	 * of the first point and the differences of latitude and longitude (degrees) to the second point
+	 */
+	public static double getProjected2DDistanceKM(double cosLat1, double sinLat1, double deltaLatDegree, double deltaLongDegree) {
+		if (deltaLongDegree > 180)
+			deltaLongDegree -= 360;
+		else if (deltaLongDegree < -180)
+			deltaLongDegree += 360;
+		double dLat = deltaLatDegree*DEGREE_TO_RAD;
+		double x = deltaLongDegree*DEGREE_TO_RAD*(cosLat1 - sinLat1*dLat/2);
+		return 6371*sqrt(dLat*dLat + x*x);
+	}
+
 	public static double get3DDistanceKM(Point3D p1, Point3D p2) {
 		double d_2d = get2DDistanceKM(p1, p2);
 		double height = abs(p1.getHeight() - p2.getHeight());
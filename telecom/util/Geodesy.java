@@ -0,0 +1,20 @@
+package telecom.util;
+
+/**
+ * The formulas used by Functions to compute distances between geographic points (see
+ * Functions.setGeodesy).
+ *
+ * EXACT: spherical law of cosines (acos and five trigonometric functions per distance).
+ *
+ * LOCAL_PROJECTION: the second point is projected on the plane tangent to the sphere at the first
+ * point (the base station), with the east-west scale taken at the mean latitude, cos(lat1 + dLat/2),
+ * approximated by cos(lat1) - sin(lat1)*dLat/2. Only cos(lat1) and sin(lat1) are needed, and they
+ * can be precomputed per base station. Compared to the haversine distance, for |latitude| <= 70
+ * degrees, the relative error is below 1e-6 up to 10 km, 1e-4 up to 100 km and 1e-3 up to 300 km
+ * (0.01 dB of free space loss). Up to a few km it is more accurate than EXACT, whose acos loses
+ * about 0.1 m to cancellation.
+ */
+public enum Geodesy {
+	EXACT,
+	LOCAL_PROJECTION
+}
@@ -0,0 +1,86 @@
+package telecom.util;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+/**
+ * Splits a line into the tokens delimited by a separator character, like StringTokenizer (empty
+ * tokens are skipped), and parses the tokens in place, without creating a string per token.
+ */
+public class LineTokenizer {
+	private String line;
+	private char separator;
+	private int position;
+	private int tokenStart;
+	private int tokenEnd;
+
+	public LineTokenizer(String line, char separator) {
+		this.line = line;
+		this.separator = separator;
+		position = 0;
+	}
+
+	public boolean hasMoreTokens() {
+		skipSeparators();
+		return position < line.length();
+	}
+	/**
+	 * Delimits the next token in [tokenStart, tokenEnd)
+	 */
+	private void next() {
+		skipSeparators();
+		if (position >= line.length())
+			throw new NoSuchElementException("Missing field " + (countTokens(0, position) + 1));
+		tokenStart = position;
+		int end = line.indexOf(separator, position);
+		tokenEnd = end < 0 ? line.length() : end;
+		position = tokenEnd;
+	}
+	private void skipSeparators() {
+		while (position < line.length() && line.charAt(position) == separator)
+			position++;
+	}
+	private int countTokens(int from, int to) {
+		int count = 0;
+		boolean inToken = false;
+		for (int i = from; i < to; i++) {
+			boolean isSeparator = line.charAt(i) == separator;
+			if (!isSeparator && !inToken)
+				count++;
+			inToken = !isSeparator;
+		}
+		return count;
+	}
+
+	public String nextToken() {
+		next();
+		return line.substring(tokenStart, tokenEnd);
+	}
+	/**
+	 * Returns the next token decoded by Parser.uncodeWhitespaces
+	 */
+	public String nextUncodedToken() {
+		next();
+		return Parser.uncodeWhitespaces(line, tokenStart, tokenEnd);
+	}
+	public double nextDouble() {
+		next();
+		return Parser.parseDouble(line, tokenStart, tokenEnd);
+	}
+	/**
+	 * Returns the next token decoded by Parser.uncodeDoubleArray
+	 */
+	public double[] nextDoubleArray() {
+		next();
+		return Parser.uncodeDoubleArray(line, tokenStart, tokenEnd);
+	}
+	/**
+	 * Returns the tokens not read yet
+	 */
+	public ArrayList<String> remainingTokens() {
+		ArrayList<String> tokens = new ArrayList<String>();
+		while (hasMoreTokens())
+			tokens.add(nextToken());
+		return tokens;
+	}
+}
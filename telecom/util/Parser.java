@@ -4,6 +4,12 @@ import java.util.StringTokenizer;
 
 
 public class Parser {
+	// Integers up to 10^15 and these powers of ten are exact in a double
+	private static final int MAX_FAST_DIGITS = 15;
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
 	
 	public static String codeWhitespaces(String s) {
 		String result = s;
@@ -15,30 +21,190 @@ public class Parser {
 		result = result.replaceAll(" ", "<ws>");
 		return result;
 	}
+	/**
+	 * Reverts codeWhitespaces. The string is scanned once, with the same result as replacing "<ws>",
+	 * "&gt", "&lt" and "&amps", in this order.
+	 */
 	public static String uncodeWhitespaces(String s) {
-		String result = s;
-		result = result.replaceAll("<ws>", " ");
-		result = result.replaceAll("&gt", ">");
-		result = result.replaceAll("&lt", "<");
-		result = result.replaceAll("&amps", "&");
-		return result;
+		return uncodeWhitespaces(s, 0, s.length());
+	}
+	/**
+	 * Same as uncodeWhitespaces(s.substring(start, end))
+	 */
+	public static String uncodeWhitespaces(String s, int start, int end) {
+		int firstCode = start;
+		while (firstCode < end && s.charAt(firstCode) != '<' && s.charAt(firstCode) != '&')
+			firstCode++;
+		if (firstCode == end)
+			return s.substring(start, end);
+
+		StringBuilder result = new StringBuilder(end - start);
+		result.append(s, start, firstCode);
+		int i = firstCode;
+		while (i < end) {
+			if (s.startsWith("<ws>", i) && i + 4 <= end) {
+				result.append(' ');
+				i += 4;
+			} else if (s.startsWith("&gt", i) && i + 3 <= end) {
+				result.append('>');
+				i += 3;
+			} else if (s.startsWith("&lt", i) && i + 3 <= end) {
+				result.append('<');
+				i += 3;
+			} else if (s.startsWith("&amps", i) && i + 5 <= end) {
+				result.append('&');
+				i += 5;
+			} else {
+				result.append(s.charAt(i));
+				i++;
+			}
+		}
+		return result.toString();
 	}
 	
 	public static String codeDoubleArray(double[] array) {
+		StringBuilder str = new StringBuilder();
+		codeDoubleArray(array, str);
+		return str.toString();
+	}
+	/**
+	 * Appends codeDoubleArray(array) to str
+	 */
+	public static void codeDoubleArray(double[] array, StringBuilder str) {
 		int size = array.length;
-		String str = "" + size;
+		str.append(size);
 		
 		if (size == 0)
-			return str;
+			return;
 		else
-			str += "#";
+			str.append('#');
 		
 		for (int i = 0; i < size-1; i++)
-			str += array[i] + "#";
-		str += array[size-1];
-		
-		return str;
+			str.append(array[i]).append('#');
+		str.append(array[size-1]);
+	}
+	/**
+	 * Parses an array coded by codeDoubleArray in s[start, end), without creating strings
+	 */
+	public static double[] uncodeDoubleArray(String s, int start, int end) {
+		int separator = s.indexOf('#', start);
+		if (separator < 0 || separator > end)
+			separator = end;
+		int size = parseInt(s, start, separator);
+		if (size < 0)
+			throw new NumberFormatException("Negative array size: " + s.substring(start, end));
+		double[] array = new double[size];
+
+		int i = 0;
+		int tokenStart = separator + 1;
+		while (tokenStart < end) {
+			int tokenEnd = s.indexOf('#', tokenStart);
+			if (tokenEnd < 0 || tokenEnd > end)
+				tokenEnd = end;
+			if (tokenEnd > tokenStart) {
+				if (i == size)
+					throw new NumberFormatException("Array with more than " + size + " elements: " + s.substring(start, end));
+				array[i] = parseDouble(s, tokenStart, tokenEnd);
+				i++;
+			}
+			tokenStart = tokenEnd + 1;
+		}
+		if (i != size)
+			throw new NumberFormatException("Array with " + i + " of " + size + " elements: " + s.substring(start, end));
+		return array;
+	}
+	public static int parseInt(String s, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+			negative = s.charAt(i) == '-';
+			i++;
+		}
+		if (i == end || end - i > 9)
+			return Integer.parseInt(s.substring(start, end));
+		int value = 0;
+		for (; i < end; i++) {
+			int digit = s.charAt(i) - '0';
+			if (digit < 0 || digit > 9)
+				return Integer.parseInt(s.substring(start, end));
+			value = 10*value + digit;
+		}
+		return negative ? -value : value;
+	}
+	/**
+	 * Same as Double.parseDouble(s.substring(start, end)). Decimal numbers with up to 15 significant
+	 * digits and small exponents, such as the ones written by Double.toString for coordinates and
+	 * powers, are converted without creating a string: the digits are read into a long and scaled
+	 * by an exact power of ten, which is correctly rounded (Clinger's fast path). Other numbers are
+	 * given to Double.parseDouble.
+	 */
+	public static double parseDouble(String s, int start, int end) {
+		int i = start;
+		boolean negative = false;
+		if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+			negative = s.charAt(i) == '-';
+			i++;
+		}
+		long mantissa = 0;
+		int nDigits = 0;
+		int exponent = 0;
+		boolean anyDigit = false;
+		boolean point = false;
+		for (; i < end; i++) {
+			char c = s.charAt(i);
+			if (c >= '0' && c <= '9') {
+				anyDigit = true;
+				if (mantissa == 0 && c == '0') {
+					if (point)
+						exponent--;
+					continue;
+				}
+				if (nDigits == MAX_FAST_DIGITS)
+					return Double.parseDouble(s.substring(start, end));
+				mantissa = 10*mantissa + (c - '0');
+				nDigits++;
+				if (point)
+					exponent--;
+			} else if (c == '.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		if (!anyDigit)
+			return Double.parseDouble(s.substring(start, end));
+		if (i < end) {
+			char c = s.charAt(i);
+			if (c != 'e' && c != 'E')
+				return Double.parseDouble(s.substring(start, end));
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+				negativeExponent = s.charAt(i) == '-';
+				i++;
+			}
+			if (i == end || end - i > 3)
+				return Double.parseDouble(s.substring(start, end));
+			int e = 0;
+			for (; i < end; i++) {
+				int digit = s.charAt(i) - '0';
+				if (digit < 0 || digit > 9)
+					return Double.parseDouble(s.substring(start, end));
+				e = 10*e + digit;
+			}
+			exponent += negativeExponent ? -e : e;
+		}
 
+		double value;
+		if (mantissa == 0)
+			value = 0;
+		else if (exponent >= 0 && exponent < POWERS_OF_TEN.length)
+			value = mantissa*POWERS_OF_TEN[exponent];
+		else if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+			value = mantissa/POWERS_OF_TEN[-exponent];
+		else
+			return Double.parseDouble(s.substring(start, end));
+		return negative ? -value : value;
 	}
 	public static double[] uncodeDoubleArray(String str) {
 		StringTokenizer tokenizer = new StringTokenizer(str, "#");
@@ -28,4 +28,10 @@ public class SimpleMatrix {
 	public double getElement(int i, int j) {
 		return matrix[i][j];
 	}
+	/**
+	 * Returns the row i of the matrix. The array is not a copy: changing it changes the matrix.
+	 */
+	public double[] getRow(int i) {
+		return matrix[i];
+	}
 }
@@ -0,0 +1,249 @@
+package telecom.nir;
+
+import static java.lang.Math.asin;
+import static java.lang.Math.atan2;
+import static java.lang.Math.pow;
+import static java.lang.Math.sin;
+import static java.lang.Math.sqrt;
+import static telecom.util.Constants.DEGREE_TO_RAD;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import telecom.basestation.DirectivityCat2BS;
+import telecom.basestation.PatternTable;
+
+/**
+ * The radio source loop of CompiledScene in single precision (see CompiledScene.setFloat32Kernel):
+ * the radio sources are evaluated in the lanes of a FloatVector, twice as many as VectorKernel,
+ * in the linear domain (see CompiledScene.setLinearKernel). The squared E field and the TER of each
+ * radio source are float, and are added in double.
+ *
+ * The coordinates are kept relative to an origin of the scene (the first radio source), computed
+ * in double, so the differences of coordinates keep the precision of float near the probe instead
+ * of that of the absolute coordinates (4e-6 degree, about 40 cm, at 48 degrees). The great circle distance uses the haversine
+ * formula, which is well conditioned at short distances in float; the local projection uses the
+ * same formula as the double kernel. The pattern is evaluated lane by lane in double, as in
+ * VectorKernel.
+ *
+ * The results agree with the double kernels up to the precision of float: relative errors of about
+ * 1e-7 on average and 1e-5 at most (see NIR.getFloat32Accuracy), far below the uncertainty of the
+ * inputs.
+ *
+ * This class needs the incubator module and is in the source set vector/, as VectorKernel.
+ */
+class FloatVectorKernel implements RadioKernel {
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Double> DOUBLE_SPECIES = DoubleVector.SPECIES_PREFERRED;
+	private static final float DEGREE_TO_RAD_F = (float) DEGREE_TO_RAD;
+
+	private double latitude0;
+	private double longitude0;
+	private float[] latitude;
+	private float[] longitude;
+	private float[] height;
+	private float[] cosLatitude;
+	private float[] sinLatitude;
+	private float[] squaredEAt1km;
+	private float[] inverseSquaredLimit;
+	private double[] tilt_rad;
+	private double[] theta_bw_vertical_rad;
+	private double[] envelope_db;
+	private PatternTable[] pattern;
+	private boolean projected;
+	private ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	/**
+	 * The arrays of the calls of a thread, as in VectorKernel
+	 */
+	private static class Buffers {
+		float[] theta = new float[SPECIES.length()];
+		float[] F = new float[SPECIES.length()];
+		double[] height = new double[1];
+		double[] sumE2 = new double[1];
+		double[] sumTER = new double[1];
+		double[] lanesE2 = new double[DOUBLE_SPECIES.length()];
+		double[] lanesTER = new double[DOUBLE_SPECIES.length()];
+
+		void clearLanes(int length) {
+			if (lanesE2.length < length) {
+				lanesE2 = new double[length];
+				lanesTER = new double[length];
+			} else {
+				Arrays.fill(lanesE2, 0, length, 0);
+				Arrays.fill(lanesTER, 0, length, 0);
+			}
+		}
+	}
+
+	FloatVectorKernel(double[] latitude, double[] longitude, double[] height, double[] tilt_rad,
+			double[] theta_bw_vertical_rad, double[] envelope_db, PatternTable[] pattern,
+			double[] cosLatitude, double[] sinLatitude, double[] squaredEAt1km, double[] inverseSquaredLimit, boolean projected) {
+		int n = latitude.length;
+		latitude0 = n > 0 ? latitude[0] : 0;
+		longitude0 = n > 0 ? longitude[0] : 0;
+		this.latitude = new float[n];
+		this.longitude = new float[n];
+		this.height = new float[n];
+		this.cosLatitude = new float[n];
+		this.sinLatitude = new float[n];
+		this.squaredEAt1km = new float[n];
+		this.inverseSquaredLimit = new float[n];
+		for (int r = 0; r < n; r++) {
+			this.latitude[r] = (float) (latitude[r] - latitude0);
+			this.longitude[r] = (float) wrap(longitude[r] - longitude0);
+			this.height[r] = (float) height[r];
+			this.cosLatitude[r] = (float) cosLatitude[r];
+			this.sinLatitude[r] = (float) sinLatitude[r];
+			this.squaredEAt1km[r] = (float) squaredEAt1km[r];
+			this.inverseSquaredLimit[r] = (float) inverseSquaredLimit[r];
+		}
+		this.tilt_rad = tilt_rad;
+		this.theta_bw_vertical_rad = theta_bw_vertical_rad;
+		this.envelope_db = envelope_db;
+		this.pattern = pattern;
+		this.projected = projected;
+	}
+
+	/**
+	 * Returns the number of radio sources evaluated at once
+	 */
+	static int getNLanes() {
+		return SPECIES.length();
+	}
+
+	public void sum(double latProbe, double longProbe, double hProbe, double cosColatProbe, double sinColatProbe,
+			int firstRadio, int lastRadio, double[] sums) {
+		Buffers b = buffers.get();
+		b.height[0] = hProbe;
+		b.sumE2[0] = 0;
+		b.sumTER[0] = 0;
+		sumColumn(latProbe, longProbe, b.height, cosColatProbe, sinColatProbe, firstRadio, lastRadio, b.sumE2, b.sumTER, b);
+		sums[0] += b.sumE2[0];
+		sums[1] += b.sumTER[0];
+	}
+	public void sumColumn(double latProbe, double longProbe, double[] heights, double cosColatProbe, double sinColatProbe,
+			int firstRadio, int lastRadio, double[] sumsE2, double[] sumsTER) {
+		sumColumn(latProbe, longProbe, heights, cosColatProbe, sinColatProbe, firstRadio, lastRadio, sumsE2, sumsTER, buffers.get());
+	}
+	private void sumColumn(double latProbe, double longProbe, double[] heights, double cosColatProbe, double sinColatProbe,
+			int firstRadio, int lastRadio, double[] sumsE2, double[] sumsTER, Buffers b) {
+		int nLanes = SPECIES.length();
+		int nDoubleLanes = DOUBLE_SPECIES.length();
+		int nParts = nLanes/nDoubleLanes;
+		int nHeights = heights.length;
+		float latRelative = (float) (latProbe - latitude0);
+		float longRelative = (float) wrap(longProbe - longitude0);
+		// cos(latitude) of the probe
+		float cosLatProbe = (float) sinColatProbe;
+		float[] theta = b.theta;
+		float[] F = b.F;
+		// The double lanes of the sums of each height, added lane by lane as the blocks are evaluated
+		b.clearLanes(nHeights*nDoubleLanes);
+		double[] lanesE2 = b.lanesE2;
+		double[] lanesTER = b.lanesTER;
+
+		int r = firstRadio;
+		for (; r + nLanes <= lastRadio; r += nLanes) {
+			FloatVector d_2d = get2DDistanceKM(r, latRelative, longRelative, cosLatProbe);
+			FloatVector d_2d_squared = d_2d.mul(d_2d);
+			FloatVector d_2d_m = d_2d.mul(1000);
+			for (int k = 0; k < nHeights; k++) {
+				FloatVector dh = FloatVector.fromArray(SPECIES, height, r).sub((float) heights[k]);
+				dh.lanewise(VectorOperators.ATAN2, d_2d_m).intoArray(theta, 0);
+				for (int l = 0; l < nLanes; l++) {
+					int i = r + l;
+					if (pattern[i] != null)
+						F[l] = (float) pattern[i].getFdB(theta[l], tilt_rad[i]);
+					else
+						F[l] = (float) DirectivityCat2BS.getFdB(theta[l], tilt_rad[i], theta_bw_vertical_rad[i], envelope_db[i]);
+				}
+				FloatVector G = FloatVector.broadcast(SPECIES, 10).lanewise(VectorOperators.POW, FloatVector.fromArray(SPECIES, F, 0).div(10));
+				FloatVector dhKm = dh.div(1000);
+				FloatVector E2 = FloatVector.fromArray(SPECIES, squaredEAt1km, r).mul(G).div(d_2d_squared.add(dhKm.mul(dhKm)));
+				FloatVector ER = E2.mul(FloatVector.fromArray(SPECIES, inverseSquaredLimit, r));
+				DoubleVector sumE2 = DoubleVector.fromArray(DOUBLE_SPECIES, lanesE2, k*nDoubleLanes);
+				DoubleVector sumTER = DoubleVector.fromArray(DOUBLE_SPECIES, lanesTER, k*nDoubleLanes);
+				for (int part = 0; part < nParts; part++) {
+					sumE2 = sumE2.add((DoubleVector) E2.convertShape(VectorOperators.F2D, DOUBLE_SPECIES, part));
+					sumTER = sumTER.add((DoubleVector) ER.convertShape(VectorOperators.F2D, DOUBLE_SPECIES, part));
+				}
+				sumE2.intoArray(lanesE2, k*nDoubleLanes);
+				sumTER.intoArray(lanesTER, k*nDoubleLanes);
+			}
+		}
+		for (int k = 0; k < nHeights; k++) {
+			sumsE2[k] += DoubleVector.fromArray(DOUBLE_SPECIES, lanesE2, k*nDoubleLanes).reduceLanes(VectorOperators.ADD);
+			sumsTER[k] += DoubleVector.fromArray(DOUBLE_SPECIES, lanesTER, k*nDoubleLanes).reduceLanes(VectorOperators.ADD);
+		}
+
+		// The radio sources that do not fill a vector, lane by lane: the same formulas from the same
+		// float coordinates, but evaluated in double, with E2 rounded to float as in the lanes
+		for (; r < lastRadio; r++) {
+			double dLat = (latRelative - latitude[r])*DEGREE_TO_RAD;
+			double dLong = wrap(longRelative - longitude[r])*DEGREE_TO_RAD;
+			double d_2d;
+			if (projected) {
+				double x = dLong*(cosLatitude[r] - sinLatitude[r]*dLat/2);
+				d_2d = 6371*sqrt(dLat*dLat + x*x);
+			} else {
+				double sinLat = sin(dLat/2);
+				double sinLong = sin(dLong/2);
+				d_2d = 2*6371*asin(sqrt(sinLat*sinLat + cosLatProbe*cosLatitude[r]*sinLong*sinLong));
+			}
+			for (int k = 0; k < nHeights; k++) {
+				double dh = height[r] - (float) heights[k];
+				double theta_vertical_rad = (float) atan2(dh, d_2d*1000);
+				double Fr;
+				if (pattern[r] != null)
+					Fr = pattern[r].getFdB(theta_vertical_rad, tilt_rad[r]);
+				else
+					Fr = DirectivityCat2BS.getFdB(theta_vertical_rad, tilt_rad[r], theta_bw_vertical_rad[r], envelope_db[r]);
+				double dhKm = dh/1000;
+				float E2 = (float) (squaredEAt1km[r]*pow(10, Fr/10)/(d_2d*d_2d + dhKm*dhKm));
+				sumsE2[k] += E2;
+				sumsTER[k] += E2*inverseSquaredLimit[r];
+			}
+		}
+	}
+	/**
+	 * Returns the 2D distances (km) of the radio sources [r, r + lanes) to the probe, whose coordinates
+	 * are relative to the origin
+	 */
+	private FloatVector get2DDistanceKM(int r, float latRelative, float longRelative, float cosLatProbe) {
+		FloatVector deltaLong = FloatVector.fromArray(SPECIES, longitude, r).neg().add(longRelative);
+		VectorMask<Float> east = deltaLong.compare(VectorOperators.GT, 180);
+		VectorMask<Float> west = deltaLong.compare(VectorOperators.LT, -180);
+		deltaLong = deltaLong.sub(360, east).add(360, west).mul(DEGREE_TO_RAD_F);
+		FloatVector dLat = FloatVector.fromArray(SPECIES, latitude, r).neg().add(latRelative).mul(DEGREE_TO_RAD_F);
+		if (projected) {
+			FloatVector x = deltaLong.mul(FloatVector.fromArray(SPECIES, cosLatitude, r)
+					.sub(FloatVector.fromArray(SPECIES, sinLatitude, r).mul(dLat).div(2)));
+			return dLat.mul(dLat).add(x.mul(x)).sqrt().mul(6371);
+		}
+		// Haversine: hav(d/R) = hav(dLat) + cos(lat1) cos(lat2) hav(dLong)
+		FloatVector sinLat = dLat.div(2).lanewise(VectorOperators.SIN);
+		FloatVector sinLong = deltaLong.div(2).lanewise(VectorOperators.SIN);
+		FloatVector a = sinLat.mul(sinLat).add(FloatVector.fromArray(SPECIES, cosLatitude, r).mul(cosLatProbe).mul(sinLong).mul(sinLong));
+		return a.sqrt().lanewise(VectorOperators.ASIN).mul(2*6371);
+	}
+	/**
+	 * Returns the longitude difference wrapped to [-180, 180]
+	 */
+	private static double wrap(double deltaLong) {
+		if (deltaLong > 180)
+			return deltaLong - 360;
+		if (deltaLong < -180)
+			return deltaLong + 360;
+		return deltaLong;
+	}
+}
@@ -0,0 +1,235 @@
+package telecom.nir;
+
+import static java.lang.Math.abs;
+import static java.lang.Math.acos;
+import static java.lang.Math.atan2;
+import static java.lang.Math.cos;
+import static java.lang.Math.log10;
+import static java.lang.Math.pow;
+import static java.lang.Math.sqrt;
+import static telecom.util.Constants.DEGREE_TO_RAD;
+import static telecom.util.Functions.getProjected2DDistanceKM;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import telecom.basestation.DirectivityCat2BS;
+import telecom.basestation.PatternTable;
+
+/**
+ * The radio source loop of CompiledScene with the radio sources in the lanes of
+ * jdk.incubator.vector (see CompiledScene.setVectorKernel): distance, elevation angle, path loss,
+ * dB to W, E field and TER are evaluated for SPECIES.length() radio sources at once over the
+ * packed arrays of the scene. The pattern is the only step evaluated lane by lane, as the radio
+ * sources of a block may have different tables (the tables have no trigonometric functions).
+ *
+ * The lanewise functions (acos, atan2, log10, pow) are the vector intrinsics of the JIT, which may
+ * differ from java.lang.Math in the last bits, and the sums are added in a different order, so the
+ * results agree with the scalar kernel up to rounding, not bit by bit.
+ *
+ * This class needs the incubator module: compile and run with --add-modules jdk.incubator.vector.
+ * It is in the source set vector/, which only the vector kernels need: CompiledScene loads it by
+ * reflection, and uses the scalar kernel when it or the module is absent.
+ */
+class VectorKernel implements RadioKernel {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	private double[] latitude;
+	private double[] longitude;
+	private double[] height;
+	private double[] eirp_max_dbm;
+	private double[] tilt_rad;
+	private double[] theta_bw_vertical_rad;
+	private double[] envelope_db;
+	private PatternTable[] pattern;
+	private double[] cosColatitude;
+	private double[] sinColatitude;
+	private double[] cosLatitude;
+	private double[] sinLatitude;
+	private double[] pathLossConstant;
+	private double[] aff;
+	private double[] icnirpLimit;
+	private boolean projected;
+	private ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+		protected Buffers initialValue() {
+			return new Buffers();
+		}
+	};
+
+	/**
+	 * The arrays of the calls of a thread, so that the evaluation of a probe does not allocate: the
+	 * lanes of the sums grow to the largest column evaluated by the thread
+	 */
+	private static class Buffers {
+		double[] theta = new double[SPECIES.length()];
+		double[] F = new double[SPECIES.length()];
+		double[] height = new double[1];
+		double[] sumE2 = new double[1];
+		double[] sumTER = new double[1];
+		double[] lanesE2 = new double[SPECIES.length()];
+		double[] lanesTER = new double[SPECIES.length()];
+
+		void clearLanes(int length) {
+			if (lanesE2.length < length) {
+				lanesE2 = new double[length];
+				lanesTER = new double[length];
+			} else {
+				Arrays.fill(lanesE2, 0, length, 0);
+				Arrays.fill(lanesTER, 0, length, 0);
+			}
+		}
+	}
+
+	VectorKernel(double[] latitude, double[] longitude, double[] height, double[] eirp_max_dbm,
+			double[] tilt_rad, double[] theta_bw_vertical_rad, double[] envelope_db, PatternTable[] pattern,
+			double[] cosColatitude, double[] sinColatitude, double[] cosLatitude, double[] sinLatitude,
+			double[] pathLossConstant, double[] aff, double[] icnirpLimit, boolean projected) {
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.height = height;
+		this.eirp_max_dbm = eirp_max_dbm;
+		this.tilt_rad = tilt_rad;
+		this.theta_bw_vertical_rad = theta_bw_vertical_rad;
+		this.envelope_db = envelope_db;
+		this.pattern = pattern;
+		this.cosColatitude = cosColatitude;
+		this.sinColatitude = sinColatitude;
+		this.cosLatitude = cosLatitude;
+		this.sinLatitude = sinLatitude;
+		this.pathLossConstant = pathLossConstant;
+		this.aff = aff;
+		this.icnirpLimit = icnirpLimit;
+		this.projected = projected;
+	}
+
+	/**
+	 * Returns the number of radio sources evaluated at once
+	 */
+	static int getNLanes() {
+		return SPECIES.length();
+	}
+
+	/**
+	 * Adds the squared E field and the TER (not in %) of the radio sources [firstRadio, lastRadio)
+	 * at the probe to sums[0] and sums[1]
+	 */
+	public void sum(double latProbe, double longProbe, double hProbe, double cosColatProbe, double sinColatProbe,
+			int firstRadio, int lastRadio, double[] sums) {
+		Buffers b = buffers.get();
+		b.height[0] = hProbe;
+		b.sumE2[0] = 0;
+		b.sumTER[0] = 0;
+		sumColumn(latProbe, longProbe, b.height, cosColatProbe, sinColatProbe, firstRadio, lastRadio, b.sumE2, b.sumTER, b);
+		sums[0] += b.sumE2[0];
+		sums[1] += b.sumTER[0];
+	}
+	/**
+	 * Adds the squared E field and the TER (not in %) of the radio sources [firstRadio, lastRadio)
+	 * at the probe at each height to sumsE2[k] and sumsTER[k]. The 2D distances are computed once for
+	 * all the heights.
+	 */
+	public void sumColumn(double latProbe, double longProbe, double[] heights, double cosColatProbe, double sinColatProbe,
+			int firstRadio, int lastRadio, double[] sumsE2, double[] sumsTER) {
+		sumColumn(latProbe, longProbe, heights, cosColatProbe, sinColatProbe, firstRadio, lastRadio, sumsE2, sumsTER, buffers.get());
+	}
+	private void sumColumn(double latProbe, double longProbe, double[] heights, double cosColatProbe, double sinColatProbe,
+			int firstRadio, int lastRadio, double[] sumsE2, double[] sumsTER, Buffers b) {
+		int nLanes = SPECIES.length();
+		int nHeights = heights.length;
+		double[] theta = b.theta;
+		double[] F = b.F;
+		// The lanes of the sums of each height, added lane by lane as the blocks are evaluated
+		b.clearLanes(nHeights*nLanes);
+		double[] lanesE2 = b.lanesE2;
+		double[] lanesTER = b.lanesTER;
+
+		int r = firstRadio;
+		for (; r + nLanes <= lastRadio; r += nLanes) {
+			DoubleVector d_2d = get2DDistanceKM(r, latProbe, longProbe, cosColatProbe, sinColatProbe);
+			DoubleVector d_2d_squared = d_2d.mul(d_2d);
+			DoubleVector d_2d_m = d_2d.mul(1000);
+			for (int k = 0; k < nHeights; k++) {
+				DoubleVector dh = DoubleVector.fromArray(SPECIES, height, r).sub(heights[k]);
+				dh.lanewise(VectorOperators.ATAN2, d_2d_m).intoArray(theta, 0);
+				for (int l = 0; l < nLanes; l++) {
+					int i = r + l;
+					if (pattern[i] != null)
+						F[l] = pattern[i].getFdB(theta[l], tilt_rad[i]);
+					else
+						F[l] = DirectivityCat2BS.getFdB(theta[l], tilt_rad[i], theta_bw_vertical_rad[i], envelope_db[i]);
+				}
+				DoubleVector eirpToProbe_dBm = DoubleVector.fromArray(SPECIES, eirp_max_dbm, r)
+						.add(DoubleVector.fromArray(SPECIES, F, 0));
+
+				DoubleVector dhKm = dh.abs().div(1000);
+				DoubleVector d_km = d_2d_squared.add(dhKm.mul(dhKm)).sqrt();
+				DoubleVector pathLoss = DoubleVector.fromArray(SPECIES, pathLossConstant, r)
+						.add(d_km.lanewise(VectorOperators.LOG10).mul(20));
+				DoubleVector rxIsotropicPower = eirpToProbe_dBm.sub(30).sub(pathLoss);
+
+				DoubleVector watt = DoubleVector.broadcast(SPECIES, 10).lanewise(VectorOperators.POW, rxIsotropicPower.div(10));
+				DoubleVector E = watt.mul(377).div(DoubleVector.fromArray(SPECIES, aff, r)).sqrt();
+				DoubleVector ER = E.div(DoubleVector.fromArray(SPECIES, icnirpLimit, r));
+				DoubleVector.fromArray(SPECIES, lanesE2, k*nLanes).add(E.mul(E)).intoArray(lanesE2, k*nLanes);
+				DoubleVector.fromArray(SPECIES, lanesTER, k*nLanes).add(ER.mul(ER)).intoArray(lanesTER, k*nLanes);
+			}
+		}
+		for (int k = 0; k < nHeights; k++) {
+			sumsE2[k] += DoubleVector.fromArray(SPECIES, lanesE2, k*nLanes).reduceLanes(VectorOperators.ADD);
+			sumsTER[k] += DoubleVector.fromArray(SPECIES, lanesTER, k*nLanes).reduceLanes(VectorOperators.ADD);
+		}
+
+		// The radio sources that do not fill a vector
+		for (; r < lastRadio; r++) {
+			double d_2d;
+			if (projected)
+				d_2d = getProjected2DDistanceKM(cosLatitude[r], sinLatitude[r],
+						latProbe - latitude[r], longProbe - longitude[r]);
+			else
+				d_2d = 6371*acos(cosColatProbe*cosColatitude[r]
+						+ sinColatProbe*sinColatitude[r]*cos((longitude[r]-longProbe)*DEGREE_TO_RAD));
+			for (int k = 0; k < nHeights; k++) {
+				double hProbe = heights[k];
+				double theta_vertical_rad = atan2(height[r]-hProbe, d_2d*1000);
+				double Fr;
+				if (pattern[r] != null)
+					Fr = pattern[r].getFdB(theta_vertical_rad, tilt_rad[r]);
+				else
+					Fr = DirectivityCat2BS.getFdB(theta_vertical_rad, tilt_rad[r], theta_bw_vertical_rad[r], envelope_db[r]);
+				double dhKm = abs(height[r]-hProbe)/1000;
+				double d_km = sqrt(d_2d*d_2d + dhKm*dhKm);
+				double rxIsotropicPower = eirp_max_dbm[r] + Fr - 30 - (pathLossConstant[r] + 20*log10(d_km));
+				double E = sqrt(377*pow(10, rxIsotropicPower/10)/aff[r]);
+				double ER = E/icnirpLimit[r];
+				sumsE2[k] += E*E;
+				sumsTER[k] += ER*ER;
+			}
+		}
+	}
+	/**
+	 * Returns the 2D distances (km) of the radio sources [r, r + lanes) to the probe, as
+	 * Functions.get2DDistanceKM with the geodesy of the scene
+	 */
+	private DoubleVector get2DDistanceKM(int r, double latProbe, double longProbe, double cosColatProbe, double sinColatProbe) {
+		DoubleVector longitudes = DoubleVector.fromArray(SPECIES, longitude, r);
+		if (!projected) {
+			DoubleVector cosDeltaLong = longitudes.sub(longProbe).mul(DEGREE_TO_RAD).lanewise(VectorOperators.COS);
+			return DoubleVector.fromArray(SPECIES, sinColatitude, r).mul(sinColatProbe).mul(cosDeltaLong)
+					.add(DoubleVector.fromArray(SPECIES, cosColatitude, r).mul(cosColatProbe))
+					.lanewise(VectorOperators.ACOS).mul(6371);
+		}
+		// Same as Functions.getProjected2DDistanceKM, with the longitude difference wrapped to [-180, 180]
+		DoubleVector deltaLong = longitudes.neg().add(longProbe);
+		VectorMask<Double> east = deltaLong.compare(VectorOperators.GT, 180);
+		VectorMask<Double> west = deltaLong.compare(VectorOperators.LT, -180);
+		deltaLong = deltaLong.sub(360, east).add(360, west);
+		DoubleVector dLat = DoubleVector.fromArray(SPECIES, latitude, r).neg().add(latProbe).mul(DEGREE_TO_RAD);
+		DoubleVector x = deltaLong.mul(DEGREE_TO_RAD).mul(DoubleVector.fromArray(SPECIES, cosLatitude, r)
+				.sub(DoubleVector.fromArray(SPECIES, sinLatitude, r).mul(dLat).div(2)));
+		return dLat.mul(dLat).add(x.mul(x)).sqrt().mul(6371);
+	}
+}